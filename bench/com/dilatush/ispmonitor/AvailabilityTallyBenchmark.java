@@ -0,0 +1,203 @@
+package com.dilatush.ispmonitor;
+
+import java.util.Random;
+
+import static com.dilatush.ispmonitor.SystemAvailability.*;
+
+/**
+ * Measures how long it takes to keep the availability of a large collection (such as a connectivity test group with many tests) up to date as its
+ * members' results arrive, both by rescanning every member after each result (as was done before {@link AvailabilityTally}) and with an
+ * {@link AvailabilityTally}.  Each result changes one random member's state, after which the collection's availability (both "all must be up" and
+ * "any may be up") is figured.  As in a healthy network, nearly every result is up: on average only a couple of members are in any other state at
+ * once, so the rescan usually has to examine most of the members.
+ *
+ * <p>It also checks the tally: its counts, and the availability it figures, must match a full recount of the members, both for a small collection
+ * whose members change state freely (recounted after every change) and for the full-sized one (recounted after every thousandth change).  The
+ * process exits with status 1 if they ever don't.
+ *
+ * <p>Usage: {@code AvailabilityTallyBenchmark [members [sweeps]]}; the defaults are 50,000 members and 3 sweeps (a sweep being as many results as
+ * there are members).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AvailabilityTallyBenchmark {
+
+    private static final SystemAvailability[] STATES = SystemAvailability.values();
+    private static final int                  CHECKS = 100_000;
+    private static final int                  SMALL  = 100;
+
+    private final Random random;
+    private int          problems;
+    private long         sink;     // so that the availability figured isn't optimized away...
+
+
+    private AvailabilityTallyBenchmark() {
+        random = new Random( 1 );
+    }
+
+
+    public static void main( final String[] _args ) {
+
+        int members = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 50_000;
+        int sweeps  = (_args.length > 1) ? Integer.parseInt( _args[1] ) : 3;
+
+        AvailabilityTallyBenchmark benchmark = new AvailabilityTallyBenchmark();
+        benchmark.check( SMALL, 0.5, 1 );
+        benchmark.check( members, 2.0 / members, 1000 );
+        benchmark.time( members, sweeps );
+        System.out.println( benchmark.problems + " problems" );
+        System.exit( (benchmark.problems == 0) ? 0 : 1 );
+    }
+
+
+    /**
+     * Makes random changes to the members of a collection of the specified size, each of them to a state other than up with the specified
+     * probability, checking the tally against a full recount after each specified number of them.
+     */
+    private void check( final int _members, final double _failure, final int _every ) {
+
+        SystemAvailability[] states = randomStates( _members, _failure );
+        AvailabilityTally    tally  = tally( states );
+        for( int i = 0; i < CHECKS; i++ ) {
+            change( states, tally, _failure );
+            if( ((i + 1) % _every) != 0 )
+                continue;
+            int[] counts = new int[STATES.length];
+            for( SystemAvailability state : states ) {
+                counts[state.ordinal()]++;
+            }
+            for( SystemAvailability state : STATES ) {
+                if( tally.count( state ) != counts[state.ordinal()] ) {
+                    problem( "after " + (i + 1) + " changes to " + _members + " members, tally has " + tally.count( state ) + " " + state
+                            + ", recount has " + counts[state.ordinal()] );
+                    return;
+                }
+            }
+            if( (tally.worst() != worst( states )) || (tally.best() != best( states )) ) {
+                problem( "after " + (i + 1) + " changes to " + _members + " members, tally figures " + tally.worst() + "/" + tally.best()
+                        + ", rescan figures " + worst( states ) + "/" + best( states ) );
+                return;
+            }
+        }
+        System.out.println( String.format( "Tally matched a full recount %,d times over %,d changes to %,d members", CHECKS / _every, CHECKS,
+                _members ) );
+    }
+
+
+    /**
+     * Times figuring the availability after each result, by rescanning and by tally, over the specified number of sweeps of results.
+     */
+    private void time( final int _members, final int _sweeps ) {
+
+        int    results = _members * _sweeps;
+        double failure = 2.0 / _members;
+
+        // warm up both ways, briefly...
+        runRescan( randomStates( _members, failure ), Math.min( results, 1000 ), failure );
+        runTally( randomStates( _members, failure ), results, failure );
+
+        long start = System.nanoTime();
+        runRescan( randomStates( _members, failure ), results, failure );
+        long rescanNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runTally( randomStates( _members, failure ), results, failure );
+        long tallyNanos = System.nanoTime() - start;
+
+        System.out.println( String.format( "%,d members, %,d results:", _members, results ) );
+        System.out.println( String.format( "  rescan: %,.1f ms (%,.1f us per result)", rescanNanos / 1e6, rescanNanos / 1e3 / results ) );
+        System.out.println( String.format( "  tally:  %,.1f ms (%,.0f ns per result)", tallyNanos / 1e6, (double) tallyNanos / results ) );
+        if( sink == 42 )
+            System.out.println();
+    }
+
+
+    private void runRescan( final SystemAvailability[] _states, final int _results, final double _failure ) {
+        for( int i = 0; i < _results; i++ ) {
+            _states[random.nextInt( _states.length )] = randomState( _failure );
+            sink += worst( _states ).ordinal() + best( _states ).ordinal();
+        }
+    }
+
+
+    private void runTally( final SystemAvailability[] _states, final int _results, final double _failure ) {
+        AvailabilityTally tally = tally( _states );
+        for( int i = 0; i < _results; i++ ) {
+            change( _states, tally, _failure );
+            sink += tally.worst().ordinal() + tally.best().ordinal();
+        }
+    }
+
+
+    /**
+     * Changes a random member to a random state, reporting the change to the specified tally.
+     */
+    private void change( final SystemAvailability[] _states, final AvailabilityTally _tally, final double _failure ) {
+        int                member = random.nextInt( _states.length );
+        SystemAvailability state  = randomState( _failure );
+        _tally.change( _states[member], state );
+        _states[member] = state;
+    }
+
+
+    private SystemAvailability[] randomStates( final int _members, final double _failure ) {
+        SystemAvailability[] states = new SystemAvailability[_members];
+        for( int i = 0; i < _members; i++ ) {
+            states[i] = randomState( _failure );
+        }
+        return states;
+    }
+
+
+    /**
+     * Returns a state other than up (chosen at random) with the specified probability, or up otherwise.
+     */
+    private SystemAvailability randomState( final double _failure ) {
+        return (random.nextDouble() < _failure) ? STATES[1 + random.nextInt( STATES.length - 1 )] : UP;
+    }
+
+
+    private static AvailabilityTally tally( final SystemAvailability[] _states ) {
+        AvailabilityTally tally = new AvailabilityTally();
+        for( SystemAvailability state : _states ) {
+            tally.add( state );
+        }
+        return tally;
+    }
+
+
+    /**
+     * Figures the availability of a collection that needs all its members up, by examining every member.
+     */
+    private static SystemAvailability worst( final SystemAvailability[] _states ) {
+        boolean unknown  = false;
+        boolean degraded = false;
+        for( SystemAvailability state : _states ) {
+            if( state == DOWN )
+                return DOWN;
+            unknown  |= (state == UNKNOWN);
+            degraded |= (state == DEGRADED);
+        }
+        return unknown ? UNKNOWN : degraded ? DEGRADED : UP;
+    }
+
+
+    /**
+     * Figures the availability of a collection that needs only one of its members up, by examining every member.
+     */
+    private static SystemAvailability best( final SystemAvailability[] _states ) {
+        boolean degraded = false;
+        for( SystemAvailability state : _states ) {
+            if( state == UP )
+                return UP;
+            degraded |= (state == DEGRADED);
+        }
+        return degraded ? DEGRADED : DOWN;
+    }
+
+
+    private void problem( final String _problem ) {
+        problems++;
+        System.out.println( "PROBLEM: " + _problem );
+    }
+}
@@ -0,0 +1,175 @@
+package com.dilatush.ispmonitor;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the memory allocated by the {@link DNSProber}'s thread for each probe, to check its claim that, once warmed up, probing a DNS server
+ * allocates nothing (because each server's {@link DNSProber.Probe}, with its {@link DNSResult} and {@link Event}, is reused, and the queries are
+ * precompiled).  A responder on the loopback interface answers every query at once, and each probe is started as soon as the last one's result has
+ * been handled, so the prober's thread does nothing but probe.  The bytes allocated by that thread (and by the event thread, which handles the
+ * results) are read from the JVM's per-thread allocation counters, over a run of probes after a warm-up run.  For comparison, the bytes that a new
+ * {@link DNSResult} and {@link Event} for each probe would cost are measured too.
+ *
+ * <p>The process exits with status 1 if any probe goes unanswered, or if (with the ring-backed event queue) the prober's thread allocates more than
+ * {@link #MAX_BYTES_PER_PROBE} bytes per probe, on average.  The allowance is for the JDK's internals (a selector or channel may occasionally
+ * allocate), not for anything per probe.  With the plain event queue, posting each result allocates a queue slot on the prober's thread (see
+ * {@link EventQueue}); that's reported, but not checked.
+ *
+ * <p>Usage: {@code DNSProberAllocation [probes [queue|ring]]}; the defaults are 200,000 probes and the ring-backed event queue.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class DNSProberAllocation implements StateMachine<MainState> {
+
+    private static final double MAX_BYTES_PER_PROBE = 1.0;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Semaphore   handled;
+    private volatile Thread   eventThread;
+    private long              completed;
+    private final Object[]    sink;      // so that the comparison's allocations aren't optimized away...
+
+
+    private DNSProberAllocation() {
+        handled = new Semaphore( 0 );
+        sink    = new Object[2];
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        int     probes  = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 200_000;
+        boolean useRing = (_args.length <= 1) || "ring".equals( _args[1] );
+        Logger.getLogger( "com.dilatush.ispmonitor" ).setLevel( Level.SEVERE );
+
+        DNSProberAllocation measurement = new DNSProberAllocation();
+        ISPMonitor.startEventQueue( measurement, useRing );
+        System.exit( measurement.measure( probes, useRing ) ? 0 : 1 );
+    }
+
+
+    @Override
+    public void handleEvent( final Event _event ) {
+        if( _event.type == EventType.DNSResult ) {
+            eventThread = Thread.currentThread();
+            ((DNSResult) _event.payload).handler.handle( (DNSResult) _event.payload );
+        }
+    }
+
+
+    @Override
+    public MainState getState() {
+        return MainState.RUNNING;
+    }
+
+
+    private void handleResult( final DNSResult _result ) {
+        if( _result.type == DNSResultType.COMPLETED )
+            completed++;
+        handled.release();
+    }
+
+
+    private boolean measure( final int _probes, final boolean _useRing ) throws Exception {
+
+        // start our responder, and a prober to probe it...
+        DatagramChannel responder = DatagramChannel.open();
+        responder.bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+        Thread responderThread = new Thread( () -> respond( responder ), "Responder" );
+        responderThread.setDaemon( true );
+        responderThread.start();
+        DNSProber prober = new DNSProber();
+        DNSProber.Probe probe = new DNSProber.Probe( this::handleResult, (InetSocketAddress) responder.getLocalAddress(), 3, 2000 );
+        DNSQuery query = DNSQuery.compile( "www.example.com" );
+        Thread proberThread = thread( "DNSProber" );
+
+        // warm up, then probe while we count the bytes allocated...
+        run( prober, probe, query, _probes / 4 );
+        long proberBefore = THREADS.getThreadAllocatedBytes( proberThread.getId() );
+        long eventBefore  = THREADS.getThreadAllocatedBytes( eventThread.getId() );
+        long start        = System.nanoTime();
+        completed = 0;
+        run( prober, probe, query, _probes );
+        long elapsed      = System.nanoTime() - start;
+        double proberBytes = (double)(THREADS.getThreadAllocatedBytes( proberThread.getId() ) - proberBefore) / _probes;
+        double eventBytes  = (double)(THREADS.getThreadAllocatedBytes( eventThread.getId()  ) - eventBefore ) / _probes;
+
+        // what a new result and event for each probe would cost...
+        long mine = THREADS.getThreadAllocatedBytes( Thread.currentThread().getId() );
+        for( int i = 0; i < _probes; i++ ) {
+            DNSResult result = new DNSResult( this::handleResult, "127.0.0.1" );
+            sink[i & 1] = new Event( EventType.DNSResult, result );
+        }
+        double freshBytes = (double)(THREADS.getThreadAllocatedBytes( Thread.currentThread().getId() ) - mine) / _probes;
+
+        System.out.println( String.format( "%,d probes (%s event queue), %,d answered, %.1fus per probe", _probes, _useRing ? "ring" : "queue",
+                completed, elapsed / 1000.0 / _probes ) );
+        System.out.println( String.format( "  prober thread: %.2f bytes per probe", proberBytes ) );
+        System.out.println( String.format( "  event thread:  %.2f bytes per probe", eventBytes ) );
+        System.out.println( String.format( "  a new DNSResult and Event per probe would add %.1f bytes per probe", freshBytes ) );
+
+        boolean ok = true;
+        if( completed != _probes ) {
+            System.out.println( "PROBLEM: not every probe was answered" );
+            ok = false;
+        }
+        if( _useRing && (proberBytes > MAX_BYTES_PER_PROBE) ) {
+            System.out.println( "PROBLEM: the prober thread allocates per probe" );
+            ok = false;
+        }
+        return ok;
+    }
+
+
+    /**
+     * Runs the specified number of probes, one after another.
+     */
+    private void run( final DNSProber _prober, final DNSProber.Probe _probe, final DNSQuery _query, final int _probes ) throws InterruptedException {
+        for( int i = 0; i < _probes; i++ ) {
+            _prober.probe( _probe, _query );
+            if( !handled.tryAcquire( 5, TimeUnit.SECONDS ) )
+                throw new IllegalStateException( "Probe result never arrived" );
+        }
+    }
+
+
+    /**
+     * The body of the responder's thread: answers each query with a response claiming one answer (which is all the prober looks at).
+     */
+    private static void respond( final DatagramChannel _channel ) {
+        ByteBuffer buffer = ByteBuffer.allocate( 512 );
+        try {
+            //noinspection InfiniteLoopStatement
+            while( true ) {
+                buffer.clear();
+                SocketAddress from = _channel.receive( buffer );
+                buffer.flip();
+                buffer.put( 2, (byte) (buffer.get( 2 ) | 0x80) );   // QR: a response...
+                buffer.putShort( 6, (short) 1 );                      // ANCOUNT: one answer...
+                _channel.send( buffer, from );
+            }
+        }
+        catch( Exception _e ) {
+            System.out.println( "Responder failed: " + _e );
+        }
+    }
+
+
+    private static Thread thread( final String _name ) {
+        for( Thread thread : Thread.getAllStackTraces().keySet() ) {
+            if( _name.equals( thread.getName() ) )
+                return thread;
+        }
+        throw new IllegalStateException( "No thread named " + _name );
+    }
+}
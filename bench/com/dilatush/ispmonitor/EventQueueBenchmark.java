@@ -0,0 +1,162 @@
+package com.dilatush.ispmonitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the {@link EventQueue} in each of its modes (the synchronized queue, and the lock-free {@link EventRing}): how many events per second
+ * several producer threads can post through it to the state machine, and how many bytes the queue itself allocates on the producers' threads for
+ * each event posted.  Each producer posts the same {@link Event} instance over and over, so any allocation is the queue's.  Two kinds of event are
+ * posted: essential events (which must all be dispatched) and heartbeats (which are coalesced while one is waiting).  Producers of essential
+ * events hold off whenever half the queue's limit is waiting, so that the queue never goes over its limit.
+ *
+ * <p>The process exits with status 1 if any essential event isn't dispatched, or if any heartbeat is neither dispatched nor coalesced.
+ *
+ * <p>Usage: {@code EventQueueBenchmark [events [producers]]}; the defaults are 500,000 events of each kind for each of 4 producers.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class EventQueueBenchmark implements StateMachine<MainState> {
+
+    private static final int LIMIT = 1 << 16;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final AtomicLong essentials;    // the essential events dispatched...
+    private final AtomicLong heartbeats;    // the heartbeats dispatched...
+    private final AtomicLong posted;        // the essential events posted that haven't been dispatched yet...
+
+    private int              problems;
+
+
+    private EventQueueBenchmark() {
+        essentials = new AtomicLong();
+        heartbeats = new AtomicLong();
+        posted     = new AtomicLong();
+    }
+
+
+    public static void main( final String[] _args ) throws InterruptedException {
+
+        int events    = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 500_000;
+        int producers = (_args.length > 1) ? Integer.parseInt( _args[1] ) : 4;
+        Logger.getLogger( "com.dilatush.ispmonitor" ).setLevel( Level.SEVERE );
+
+        EventQueueBenchmark benchmark = new EventQueueBenchmark();
+        System.out.println( String.format( "%d producers, %,d events of each kind per producer", producers, events ) );
+        System.out.println( String.format( "  %-6s %18s %18s %20s", "mode", "essential/s", "bytes/essential", "bytes/heartbeat" ) );
+        for( boolean useRing : new boolean[] { false, true } ) {
+            benchmark.measure( useRing, events, producers );
+        }
+        System.out.println( benchmark.problems + " problems" );
+        System.exit( (benchmark.problems == 0) ? 0 : 1 );
+    }
+
+
+    @Override
+    public void handleEvent( final Event _event ) {
+        if( _event.type == EventType.Heartbeat )
+            heartbeats.incrementAndGet();
+        else {
+            essentials.incrementAndGet();
+            posted.decrementAndGet();
+        }
+    }
+
+
+    @Override
+    public MainState getState() {
+        return MainState.RUNNING;
+    }
+
+
+    private void measure( final boolean _useRing, final int _events, final int _producers ) throws InterruptedException {
+
+        EventQueue queue = new EventQueue( this, LIMIT, _useRing );
+        essentials.set( 0 );
+        heartbeats.set( 0 );
+        posted.set( 0 );
+
+        // warm up, then post essential events, then heartbeats...
+        run( queue, new Event( EventType.Start ), _events / 4, _producers );
+        waitForDispatch( _producers * (long)(_events / 4), essentials );
+        essentials.set( 0 );
+
+        long   start          = System.nanoTime();
+        double essentialBytes = run( queue, new Event( EventType.Start ), _events, _producers );
+        boolean dispatched    = waitForDispatch( _producers * (long) _events, essentials );
+        long   elapsed        = System.nanoTime() - start;
+        if( !dispatched )
+            problem( mode( _useRing ) + ": " + essentials.get() + " of " + (_producers * (long) _events) + " essential events dispatched" );
+
+        long   coalescedBefore = queue.getCoalescedCount();
+        double heartbeatBytes  = run( queue, new Event( EventType.Heartbeat ), _events, _producers );
+        long   expected        = _producers * (long) _events - (queue.getCoalescedCount() - coalescedBefore);
+        if( !waitForDispatch( expected, heartbeats ) )
+            problem( mode( _useRing ) + ": " + heartbeats.get() + " of " + expected + " uncoalesced heartbeats dispatched" );
+
+        System.out.println( String.format( "  %-6s %18s %18.2f %20.2f", mode( _useRing ),
+                String.format( "%,.0f", _producers * (double) _events / (elapsed / 1e9) ), essentialBytes, heartbeatBytes ) );
+    }
+
+
+    /**
+     * Posts the specified event the specified number of times from each of the specified number of producer threads, and returns the bytes the
+     * producers allocated per event posted.
+     */
+    private double run( final EventQueue _queue, final Event _event, final int _events, final int _producers ) throws InterruptedException {
+
+        boolean    throttle  = !_event.type.coalesce;   // coalesced events can't pile up, and may never be dispatched...
+        AtomicLong allocated = new AtomicLong();
+        Thread[] threads = new Thread[_producers];
+        for( int p = 0; p < _producers; p++ ) {
+            threads[p] = new Thread( () -> {
+                long id     = Thread.currentThread().getId();
+                long before = THREADS.getThreadAllocatedBytes( id );
+                for( int i = 0; i < _events; i++ ) {
+                    if( throttle ) {
+                        while( posted.get() >= LIMIT / 2 ) {
+                            Thread.onSpinWait();
+                        }
+                        posted.incrementAndGet();
+                    }
+                    _queue.postEvent( _event );
+                }
+                allocated.addAndGet( THREADS.getThreadAllocatedBytes( id ) - before );
+            }, "Producer-" + p );
+            threads[p].start();
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        return (double) allocated.get() / (_producers * (long) _events);
+    }
+
+
+    /**
+     * Waits (for up to 30 seconds) until the specified counter of dispatched events reaches the specified count, returning {@code true} if it did.
+     */
+    private boolean waitForDispatch( final long _count, final AtomicLong _counter ) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 30 );
+        while( _counter.get() < _count ) {
+            if( System.nanoTime() - deadline > 0 )
+                return false;
+            Thread.sleep( 1 );
+        }
+        return _counter.get() == _count;
+    }
+
+
+    private static String mode( final boolean _useRing ) {
+        return _useRing ? "ring" : "queue";
+    }
+
+
+    private void problem( final String _problem ) {
+        problems++;
+        System.out.println( "PROBLEM: " + _problem );
+    }
+}
@@ -0,0 +1,321 @@
+package com.dilatush.ispmonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.FailoverRecord.Phase.*;
+import static com.dilatush.ispmonitor.ISPChoice.*;
+import static com.dilatush.ispmonitor.SystemAvailability.*;
+
+/**
+ * Runs a series of simulated outages through {@link Failover}, against a simulated router and simulated remote services, and reports the time to
+ * recover (p50, p95, p99) and the time spent in each phase.  The simulated router and services answer after random latencies (in the ranges below,
+ * which are typical of commands over a multiplexed SSH connection), posting their answers as {@link EventType#SSHResult} events, just as the real
+ * ones do, so the failover runs on a real {@link EventQueue} and {@link TimingWheel}.  Each outage is backdated by a random detection time (the time
+ * from an ISP's first failed DNS test to its confirmed outage).  Some outages inject a problem: a router that doesn't switch, or a service that never
+ * answers.
+ *
+ * <p>Each failover record is checked: its phases must be in order, each phase must take at least its simulated latency, and it must succeed or fail
+ * exactly as injected.  The process exits with status 1 if any check fails.
+ *
+ * <p>Usage: {@code FailoverSimulation [outages [services]]}; the defaults are 100 outages and 3 services.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class FailoverSimulation implements StateMachine<MainState> {
+
+    private static final int    DETECT_MIN_MS         = 200;
+    private static final int    DETECT_MAX_MS         = 1500;
+    private static final int    ROUTER_MIN_MS         = 5;
+    private static final int    ROUTER_MAX_MS         = 40;
+    private static final int    SERVICE_MIN_MS        = 20;
+    private static final int    SERVICE_MAX_MS        = 120;
+    private static final double PHASE_TIMEOUT_SECONDS = 1;
+    private static final double TICK_SECONDS          = 0.125;   // the timing wheel's granularity; a timeout may expire up to a tick early...
+    private static final int    FAILED_SWITCH_EVERY   = 25;   // every this many outages, the router doesn't switch...
+    private static final int    HUNG_SERVICE_EVERY    = 40;   // every this many outages, a service never answers its stop...
+
+    private final int                      outages;
+    private final Random                   random;
+    private final ScheduledExecutorService latency;
+    private final SimRouter                router;
+    private final List<SimService>         services;
+    private final List<long[]>             phaseMicros;   // for each successful failover, the time spent in each phase...
+    private final LatencyHistory           history;
+    private final Object                   done;
+
+    private int                            run;
+    private int                            problems;
+    private boolean                        injectFailedSwitch;
+    private boolean                        injectHungService;
+    private long                           detectMS;
+
+
+    private FailoverSimulation( final int _outages, final int _services ) {
+        outages     = _outages;
+        random      = new Random( 1 );
+        latency     = Executors.newSingleThreadScheduledExecutor();
+        router      = new SimRouter();
+        services    = new ArrayList<>();
+        for( int i = 0; i < _services; i++ ) {
+            services.add( new SimService() );
+        }
+        phaseMicros = new ArrayList<>();
+        history     = new LatencyHistory();
+        done        = new Object();
+    }
+
+
+    public static void main( final String[] _args ) throws InterruptedException {
+
+        int outages  = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 100;
+        int services = (_args.length > 1) ? Integer.parseInt( _args[1] ) : 3;
+        Logger.getLogger( "com.dilatush.ispmonitor" ).setLevel( Level.SEVERE );
+
+        FailoverSimulation simulation = new FailoverSimulation( outages, services );
+        ISPMonitor.startTimingWheel();
+        ISPMonitor.startEventQueue( simulation, false );
+        synchronized( simulation.done ) {
+            ISPMonitor.postEvent( new Event( EventType.Start ) );
+            simulation.done.wait();
+        }
+        simulation.report();
+        System.exit( (simulation.problems == 0) ? 0 : 1 );
+    }
+
+
+    @Override
+    public void handleEvent( final Event _event ) {
+        switch( _event.type ) {
+            case Heartbeat: ISPMonitor.getTimingWheel().advance();                   break;
+            case Start:     startOutage();                                            break;
+            case SSHResult: ((SSHResult) _event.payload).handler.handle( (SSHResult) _event.payload ); break;
+            default:        break;
+        }
+    }
+
+
+    @Override
+    public MainState getState() {
+        return MainState.RUNNING;
+    }
+
+
+    /**
+     * Starts the next simulated outage: the ISP the router is using has just been confirmed down, some time after it first failed a test.
+     */
+    private void startOutage() {
+
+        run++;
+        injectFailedSwitch = (run % FAILED_SWITCH_EVERY == 0);
+        injectHungService  = (run % HUNG_SERVICE_EVERY == 0) && !services.isEmpty();
+        for( SimService service : services ) {
+            service.state = UP;
+            service.hung  = false;
+        }
+        if( injectHungService )
+            services.get( 0 ).hung = true;
+        router.stuck = injectFailedSwitch;
+
+        detectMS = between( DETECT_MIN_MS, DETECT_MAX_MS );
+        long now    = System.nanoTime();
+        long outage = now - TimeUnit.MILLISECONDS.toNanos( detectMS );
+        ISPChoice to = (router.isp == PRIMARY) ? SECONDARY : PRIMARY;
+        new Failover( router, services, to, outage, now, PHASE_TIMEOUT_SECONDS, this::handleDone ).start();
+    }
+
+
+    /**
+     * Checks the record of a finished failover, then starts the next outage (or finishes the simulation).
+     */
+    private void handleDone( final FailoverRecord _record ) {
+
+        // it must have succeeded or failed just as we injected...
+        if( _record.succeeded() == injectFailedSwitch )
+            problem( "expected " + (injectFailedSwitch ? "failure" : "success") + ", but got " + _record );
+
+        // its phases must be in order, and each must have taken at least as long as we made it...
+        long last = 0;
+        for( FailoverRecord.Phase phase : FailoverRecord.Phase.values() ) {
+            if( _record.reached( phase ) ) {
+                if( _record.micros( phase ) < last )
+                    problem( phase + " out of order in " + _record );
+                last = _record.micros( phase );
+            }
+        }
+        if( Math.abs( _record.micros( DETECTED ) - detectMS * 1000 ) > 1000 )
+            problem( "detection took " + _record.micros( DETECTED ) + "us, not " + detectMS + "ms, in " + _record );
+        if( !injectHungService && !services.isEmpty() && (_record.micros( TORN_DOWN ) - _record.micros( DETECTED ) < SERVICE_MIN_MS * 1000) )
+            problem( "teardown faster than the services could stop in " + _record );
+        if( injectHungService && (_record.micros( TORN_DOWN ) - _record.micros( DETECTED ) < (PHASE_TIMEOUT_SECONDS - TICK_SECONDS) * 1_000_000) )
+            problem( "teardown didn't wait out the phase timeout for a hung service in " + _record );
+        if( _record.succeeded() ) {
+            if( _record.micros( SWITCHED ) - _record.micros( TORN_DOWN ) < ROUTER_MIN_MS * 1000 )
+                problem( "switch faster than the router could answer in " + _record );
+            if( _record.micros( VERIFIED ) - _record.micros( SWITCHED ) < ROUTER_MIN_MS * 1000 )
+                problem( "verification faster than the router could answer in " + _record );
+            for( SimService service : services ) {
+                if( service.state != UP )
+                    problem( "service not restored after " + _record );
+            }
+        }
+
+        // tally it up, just as MainSM does...
+        history.record( _record.succeeded() ? UP : DOWN, _record.getRecoveryMicros() );
+        if( _record.succeeded() && !injectHungService ) {
+            long[] micros = new long[FailoverRecord.Phase.values().length];
+            for( FailoverRecord.Phase phase : FailoverRecord.Phase.values() ) {
+                micros[phase.ordinal()] = _record.micros( phase );
+            }
+            phaseMicros.add( micros );
+        }
+
+        if( run < outages )
+            startOutage();
+        else {
+            synchronized( done ) {
+                done.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Prints the time to recover, and the time spent in each phase, across all the successful failovers that had no hung service.
+     */
+    private void report() {
+
+        System.out.println( "Simulated " + outages + " outages with " + services.size() + " services; " + problems + " problems" );
+        System.out.println( "Last " + LatencyHistory.SIZE + " failovers: " + history.summarize() );
+        FailoverRecord.Phase[] phases = FailoverRecord.Phase.values();
+        for( int p = 1; p < phases.length; p++ ) {
+            long[] times = new long[phaseMicros.size()];
+            for( int i = 0; i < times.length; i++ ) {
+                times[i] = phaseMicros.get( i )[p] - phaseMicros.get( i )[p - 1];
+            }
+            System.out.println( String.format( "  %-10s %s", phases[p].name().toLowerCase(), percentiles( times ) ) );
+        }
+        long[] recovery = new long[phaseMicros.size()];
+        for( int i = 0; i < recovery.length; i++ ) {
+            recovery[i] = phaseMicros.get( i )[RESTORED.ordinal()];
+        }
+        System.out.println( String.format( "  %-10s %s", "recovery", percentiles( recovery ) ) );
+    }
+
+
+    private static String percentiles( final long[] _micros ) {
+        if( _micros.length == 0 )
+            return "none";
+        long[] sorted = _micros.clone();
+        Arrays.sort( sorted );
+        return String.format( "p50 %.1fms, p99 %.1fms, max %.1fms", percentile( sorted, 0.50 ) / 1000.0, percentile( sorted, 0.99 ) / 1000.0,
+                sorted[sorted.length - 1] / 1000.0 );
+    }
+
+
+    private static long percentile( final long[] _sorted, final double _percentile ) {
+        return _sorted[ Math.max( 0, (int) Math.ceil( _percentile * _sorted.length ) - 1 ) ];
+    }
+
+
+    private void problem( final String _problem ) {
+        problems++;
+        System.out.println( "PROBLEM (outage " + run + "): " + _problem );
+    }
+
+
+    private int between( final int _min, final int _max ) {
+        return _min + random.nextInt( _max - _min + 1 );
+    }
+
+
+    /**
+     * Runs the specified action on the event thread after a random latency in the specified range, the way a task posts its result.
+     */
+    private void later( final int _minMS, final int _maxMS, final Runnable _action ) {
+        SSHResult result = new SSHResult( _result -> _action.run(), null, SSHResultType.COMPLETED, 0, "" );
+        latency.schedule( () -> ISPMonitor.postEvent( new Event( EventType.SSHResult, result ) ), between( _minMS, _maxMS ), TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * A simulated router, which switches ISPs (unless it's stuck) and answers queries after a random latency.
+     */
+    private class SimRouter implements Failover.Router {
+
+        private ISPChoice isp       = PRIMARY;
+        private boolean   confirmed = true;
+        private boolean   stuck;
+
+
+        @Override
+        public ISPChoice getIspInUse() {
+            return isp;
+        }
+
+
+        @Override
+        public boolean isISPConfirmed() {
+            return confirmed;
+        }
+
+
+        @Override
+        public void switchISP( final ISPChoice _isp, final Runnable _then ) {
+            confirmed = false;
+            later( ROUTER_MIN_MS, ROUTER_MAX_MS, () -> {
+                if( !stuck )
+                    isp = _isp;
+                confirmed = !stuck;
+                _then.run();
+            } );
+        }
+
+
+        @Override
+        public void refreshCurrentISP( final Runnable _then ) {
+            confirmed = false;
+            later( ROUTER_MIN_MS, ROUTER_MAX_MS, () -> {
+                confirmed = true;
+                _then.run();
+            } );
+        }
+    }
+
+
+    /**
+     * A simulated service, which stops and starts after a random latency (or, if it's hung, never answers a stop).
+     */
+    private class SimService implements Failover.Service {
+
+        private SystemAvailability state = UP;
+        private boolean            hung;
+
+
+        @Override
+        public SystemAvailability getState() {
+            return state;
+        }
+
+
+        @Override
+        public void stop( final Runnable _then ) {
+            if( hung )
+                return;
+            later( SERVICE_MIN_MS, SERVICE_MAX_MS, () -> { state = DOWN; _then.run(); } );
+        }
+
+
+        @Override
+        public void start( final Runnable _then ) {
+            later( SERVICE_MIN_MS, SERVICE_MAX_MS, () -> { state = UP; _then.run(); } );
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.dilatush.ispmonitor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Simulates outages of an ISP whose DNS servers are tested on a schedule, to compare how quickly the outage is detected (and how many tests the
+ * servers get in the meantime) with the DNS test intervals chosen uniformly at random between the minimum and maximum (as they were before
+ * {@link ProbeCadence}) and with them chosen by {@link ProbeCadence}.  Time is simulated, not real, so thousands of outages take a moment.
+ *
+ * <p>Each trial runs the ISP's DNS servers for a while with no outage, so their schedules are in a steady state (with each try of each test lost
+ * with a small probability, as happens on a real network), then starts an outage, after which every test fails at its timeout.  The outage is
+ * detected when every DNS server's test has failed.  With {@link ProbeCadence}, the first failure also has every other DNS server tested at once
+ * (standing in for the ISP's confirmation probe; see {@link ISP}), just as {@link DNS} does.  The steady-state test rate is counted before the
+ * outage.
+ *
+ * <p>The process exits with status 1 unless, with the same limits, {@link ProbeCadence} both detects outages faster on average and makes fewer
+ * tests in the steady state.
+ *
+ * <p>Usage: {@code ProbeCadenceSimulation [trials]}; the default is 20,000 trials.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ProbeCadenceSimulation {
+
+    private static final int    SERVERS         = 2;
+    private static final int    TRIES           = 3;
+    private static final double TIMEOUT_SECONDS = 2.0;     // the total of all tries' timeouts...
+    private static final double LOSS            = 0.01;    // the chance that any one try is lost...
+    private static final double RTT_SECONDS     = 0.02;
+    private static final double STEADY_SECONDS  = 3600;    // how long to run before each outage...
+
+    private final Random random;
+
+
+    private ProbeCadenceSimulation() {
+        random = new Random( 1 );
+    }
+
+
+    public static void main( final String[] _args ) {
+
+        int trials = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 20_000;
+        ProbeCadenceSimulation simulation = new ProbeCadenceSimulation();
+
+        System.out.println( String.format( "%,d outages, %d DNS servers, %.0fs test timeout in %d tries, %.0f%% loss per try", trials, SERVERS,
+                TIMEOUT_SECONDS, TRIES, LOSS * 100 ) );
+        Result uniform      = simulation.run( trials, false, 10, 30 );
+        Result adaptive     = simulation.run( trials, true,  10, 30 );
+        Result adaptiveFast = simulation.run( trials, true,  10, 20 );
+        System.out.println( "  uniform 10-30s:  " + uniform );
+        System.out.println( "  adaptive 10-30s: " + adaptive );
+        System.out.println( "  adaptive 10-20s: " + adaptiveFast );
+
+        boolean ok = (adaptive.meanSeconds < uniform.meanSeconds) && (adaptive.testsPerHour < uniform.testsPerHour);
+        if( !ok )
+            System.out.println( "PROBLEM: adaptive cadence isn't both faster to detect and lighter in steady state than uniform" );
+        System.exit( ok ? 0 : 1 );
+    }
+
+
+    /**
+     * Runs the specified number of simulated outages, and returns the detection times and the steady-state test rate.
+     */
+    private Result run( final int _trials, final boolean _adaptive, final double _minSeconds, final double _maxSeconds ) {
+
+        double[] detections = new double[_trials];
+        long     steadyTests = 0;
+        for( int t = 0; t < _trials; t++ ) {
+
+            // each DNS server's next test time, relative to the start of the outage, and its cadence...
+            double[]       next     = new double[SERVERS];
+            double[]       downAt   = new double[SERVERS];
+            ProbeCadence[] cadences = new ProbeCadence[SERVERS];
+            for( int s = 0; s < SERVERS; s++ ) {
+                cadences[s] = new ProbeCadence( _minSeconds, _maxSeconds, random );
+                next[s]     = -STEADY_SECONDS + random.nextDouble() * _maxSeconds;
+                downAt[s]   = Double.NaN;
+            }
+
+            // run tests in time order until every server has failed...
+            while( true ) {
+                int s = earliest( next, downAt );
+                if( s < 0 )
+                    break;
+                double now = next[s];
+
+                // a test sent after the outage started fails at its timeout; one sent before gets an answer (perhaps after a lost try or two)...
+                if( now >= 0 ) {
+                    double failed = now + TIMEOUT_SECONDS;
+                    downAt[s] = failed;
+
+                    // the first failure has every other server tested at once...
+                    if( _adaptive ) {
+                        for( int o = 0; o < SERVERS; o++ ) {
+                            if( Double.isNaN( downAt[o] ) && (o != s) )
+                                next[o] = Math.min( next[o], failed );
+                        }
+                    }
+                    continue;
+                }
+                int tries = 1;
+                while( (tries < TRIES) && (random.nextDouble() < LOSS) ) {
+                    tries++;
+                }
+                boolean lost     = (tries == TRIES) && (random.nextDouble() < LOSS);
+                double  answered = now + (lost ? TIMEOUT_SECONDS : tryStart( tries ) + RTT_SECONDS);
+                steadyTests++;
+                boolean suspicious = lost || (tries > 1);
+                next[s] = answered + (_adaptive ? cadences[s].next( suspicious ) : _minSeconds + random.nextDouble() * (_maxSeconds - _minSeconds));
+            }
+
+            double detected = 0;
+            for( double down : downAt ) {
+                detected = Math.max( detected, down );
+            }
+            detections[t] = detected;
+        }
+
+        Arrays.sort( detections );
+        return new Result( detections, steadyTests / (double) _trials / SERVERS / (STEADY_SECONDS / 3600) );
+    }
+
+
+    /**
+     * Returns the index of the server whose next test is earliest, among those that haven't failed yet, or -1 if they all have.
+     */
+    private static int earliest( final double[] _next, final double[] _downAt ) {
+        int earliest = -1;
+        for( int s = 0; s < _next.length; s++ ) {
+            if( Double.isNaN( _downAt[s] ) && ((earliest < 0) || (_next[s] < _next[earliest])) )
+                earliest = s;
+        }
+        return earliest;
+    }
+
+
+    /**
+     * Returns when the specified try (counting from one) is sent, relative to the start of the test: each try's timeout is double the last's, and
+     * they add up to the test's timeout, as in {@link DNSProber}.
+     */
+    private static double tryStart( final int _try ) {
+        double first = TIMEOUT_SECONDS / ((1 << TRIES) - 1);
+        return first * ((1 << (_try - 1)) - 1);
+    }
+
+
+    private static class Result {
+
+        private final double meanSeconds;
+        private final double p95Seconds;
+        private final double testsPerHour;
+
+
+        private Result( final double[] _sortedSeconds, final double _testsPerHour ) {
+            meanSeconds  = Arrays.stream( _sortedSeconds ).average().orElse( 0 );
+            p95Seconds   = _sortedSeconds[ Math.max( 0, (int) Math.ceil( 0.95 * _sortedSeconds.length ) - 1 ) ];
+            testsPerHour = _testsPerHour;
+        }
+
+
+        public String toString() {
+            return String.format( "detection mean %.1fs, p95 %.1fs; %.0f tests/hour/server", meanSeconds, p95Seconds, testsPerHour );
+        }
+    }
+}
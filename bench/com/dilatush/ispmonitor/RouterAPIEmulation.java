@@ -0,0 +1,462 @@
+package com.dilatush.ispmonitor;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.ISPChoice.*;
+import static com.dilatush.ispmonitor.SSHResultType.*;
+
+/**
+ * Checks {@link RouterAPI} against an emulated RouterOS API server on the loopback interface.  First the sentence framing is checked directly: the
+ * word length encoding at each of its size boundaries, multi-byte (UTF-8) words, and truncated or invalid input.  Then {@link RouterAPI}'s tasks
+ * are run against the emulated router, which answers the requests {@link RouterAPI} makes (logging in, reading the default routes, and setting
+ * their gateway) the way a RouterOS router does, and which can be told to misbehave:
+ * <ul>
+ *     <li>renumber its routes, so that a route ID we cached is rejected with a "!trap";</li>
+ *     <li>reject every route change with a "!trap";</li>
+ *     <li>accept every route change, but keep the old route active (as when the new gateway is unreachable);</li>
+ *     <li>answer the next request with a "!fatal", and close the connection;</li>
+ *     <li>close the connection without answering the next request;</li>
+ *     <li>log in the way routers before RouterOS 6.43 do, with an MD5 challenge;</li>
+ *     <li>describe its routes the way RouterOS 6 does (by gateway status) or the way RouterOS 7 does (by immediate gateway).</li>
+ * </ul>
+ * Each operation's result, and the number of connections and logins it took, is checked.  The process exits with status 1 if any check fails.
+ *
+ * <p>Usage: {@code RouterAPIEmulation}
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class RouterAPIEmulation implements StateMachine<MainState> {
+
+    private static final String USER               = "ispmonitor";
+    private static final String PASSWORD           = "secret";
+    private static final String PRIMARY_GATEWAY    = "10.0.1.1";
+    private static final String SECONDARY_GATEWAY  = "10.0.2.1";
+    private static final long   RESULT_TIMEOUT_MS  = 5000;
+
+    private final LinkedBlockingQueue<SSHResult> results;
+
+    private int                                  problems;
+
+
+    private RouterAPIEmulation() {
+        results = new LinkedBlockingQueue<>();
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        Logger.getLogger( "com.dilatush.ispmonitor" ).setLevel( Level.SEVERE );
+
+        RouterAPIEmulation emulation = new RouterAPIEmulation();
+        ISPMonitor.startHostResolver( 60, 10 );
+        ISPMonitor.startEventQueue( emulation, false );
+
+        emulation.checkFraming();
+        emulation.checkOperations();
+        emulation.checkLegacyLogin();
+        emulation.checkFailedLogin();
+        emulation.checkRouterDown();
+
+        System.out.println( "RouterOS API emulation: " + emulation.problems + " problems" );
+        System.exit( (emulation.problems == 0) ? 0 : 1 );
+    }
+
+
+    @Override
+    public void handleEvent( final Event _event ) {
+        if( _event.type == EventType.SSHResult )
+            results.add( (SSHResult) _event.payload );
+    }
+
+
+    @Override
+    public MainState getState() {
+        return MainState.RUNNING;
+    }
+
+
+    /**
+     * Checks the sentence framing: each word length encoding (one to five bytes) round-trips, and bad input is rejected.
+     */
+    private void checkFraming() throws IOException {
+
+        // each length on either side of an encoding boundary must be written with the right number of bytes, and read back intact...
+        int[] lengths = { 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000 };
+        int[] sizes   = { 1, 1,    2,    2,      3,      3,        4        };
+        for( int i = 0; i < lengths.length; i++ ) {
+            char[] chars = new char[lengths[i]];
+            Arrays.fill( chars, 'x' );
+            String word = new String( chars );
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            RouterAPI.writeSentence( bytes, word );
+            byte[] written = bytes.toByteArray();
+            int size = written.length - lengths[i] - 1;
+            if( size != sizes[i] )
+                problem( "length " + lengths[i] + " encoded in " + size + " bytes, not " + sizes[i] );
+            if( written[written.length - 1] != 0 )
+                problem( "sentence with a word of length " + lengths[i] + " not ended by an empty word" );
+            List<String> read = RouterAPI.readSentence( new ByteArrayInputStream( written ) );
+            if( !read.equals( List.of( word ) ) )
+                problem( "word of length " + lengths[i] + " didn't read back intact" );
+        }
+
+        // the five byte encoding (which we never write, as we never send a word that long) must be readable...
+        List<String> read = RouterAPI.readSentence( new ByteArrayInputStream( new byte[] { (byte) 0xF0, 0, 0, 0, 3, 'a', 'b', 'c', 0 } ) );
+        if( !read.equals( List.of( "abc" ) ) )
+            problem( "five byte length read as " + read );
+
+        // several words, with multi-byte characters (whose lengths are in bytes, not characters), must round-trip...
+        String[] words = { "/ip/route/print", "?comment=Z\u00FCrich \u260E", "=.proplist=.id" };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RouterAPI.writeSentence( bytes, words );
+        RouterAPI.writeSentence( bytes, "!done" );
+        ByteArrayInputStream in = new ByteArrayInputStream( bytes.toByteArray() );
+        if( !RouterAPI.readSentence( in ).equals( Arrays.asList( words ) ) || !RouterAPI.readSentence( in ).equals( List.of( "!done" ) ) )
+            problem( "multi-word, multi-byte sentences didn't read back intact" );
+
+        // a truncated sentence, or an invalid length, must be rejected...
+        byte[] truncated = Arrays.copyOf( bytes.toByteArray(), 10 );
+        expectFailure( truncated, EOFException.class, "truncated sentence" );
+        expectFailure( new byte[] { (byte) 0xF8, 0 }, IOException.class, "invalid length byte" );
+    }
+
+
+    private void expectFailure( final byte[] _bytes, final Class<? extends IOException> _expected, final String _what ) {
+        try {
+            RouterAPI.readSentence( new ByteArrayInputStream( _bytes ) );
+            problem( _what + " was accepted" );
+        }
+        catch( IOException _e ) {
+            if( !_expected.isInstance( _e ) )
+                problem( _what + " rejected with " + _e + ", not " + _expected.getSimpleName() );
+        }
+    }
+
+
+    /**
+     * Checks querying and switching the ISP over one persistent connection, and recovering from traps, fatal errors, and dropped connections.
+     */
+    private void checkOperations() throws Exception {
+
+        try( EmulatedRouter router = new EmulatedRouter( false, false ) ) {
+            RouterAPI api = new RouterAPI( "127.0.0.1", config( router.getPort(), PASSWORD ) );
+
+            // queries and switches use one connection...
+            expect( api.getCurrentISP( null ), COMPLETED, "PRIMARY", "first query" );
+            expect( api.setISP( SECONDARY, null ), COMPLETED, "SUCCESS", "switch to secondary" );
+            expect( api.getCurrentISP( null ), COMPLETED, "SECONDARY", "query after switch" );
+            expectConnections( router, 1, 1, "queries and switches" );
+
+            // RouterOS 7 describes the route's interface by its immediate gateway...
+            router.version7 = true;
+            expect( api.getCurrentISP( null ), COMPLETED, "SECONDARY", "RouterOS 7 query" );
+            router.version7 = false;
+
+            // if the router renumbers its routes, the switch is rejected, and retried with the new route IDs...
+            router.renumber();
+            expect( api.setISP( PRIMARY, null ), COMPLETED, "SUCCESS", "switch after renumbering" );
+            expect( api.getCurrentISP( null ), COMPLETED, "PRIMARY", "query after renumbered switch" );
+            expectConnections( router, 1, 1, "renumbered switch" );
+
+            // a switch the router rejects is an error, but leaves the connection up...
+            router.rejectSets = true;
+            expect( api.setISP( SECONDARY, null ), COMPLETED, "ERROR", "rejected switch" );
+            router.rejectSets = false;
+            expectConnections( router, 1, 1, "rejected switch" );
+
+            // so is a switch the router accepts, but that doesn't make the new route active...
+            router.ignoreSets = true;
+            expect( api.setISP( SECONDARY, null ), COMPLETED, "ERROR", "switch that didn't take effect" );
+            router.ignoreSets = false;
+            expect( api.getCurrentISP( null ), COMPLETED, "PRIMARY", "query after switch that didn't take effect" );
+            expectConnections( router, 1, 1, "switch that didn't take effect" );
+
+            // a fatal error closes the connection; we reconnect and retry...
+            router.fatalNext = true;
+            expect( api.getCurrentISP( null ), COMPLETED, "PRIMARY", "query after fatal error" );
+            expectConnections( router, 2, 2, "fatal error" );
+
+            // so does a connection that drops...
+            router.dropNext = true;
+            expect( api.setISP( SECONDARY, null ), COMPLETED, "SUCCESS", "switch after dropped connection" );
+            expect( api.getCurrentISP( null ), COMPLETED, "SECONDARY", "query after dropped connection" );
+            expectConnections( router, 3, 3, "dropped connection" );
+        }
+    }
+
+
+    /**
+     * Checks logging in to a router before RouterOS 6.43, which answers the login with an MD5 challenge.
+     */
+    private void checkLegacyLogin() throws Exception {
+        try( EmulatedRouter router = new EmulatedRouter( true, false ) ) {
+            RouterAPI api = new RouterAPI( "127.0.0.1", config( router.getPort(), PASSWORD ) );
+            expect( api.getCurrentISP( null ), COMPLETED, "PRIMARY", "query with challenge login" );
+            expectConnections( router, 1, 1, "challenge login" );
+        }
+    }
+
+
+    /**
+     * Checks that a login with the wrong password fails.
+     */
+    private void checkFailedLogin() throws Exception {
+        for( boolean legacy : new boolean[] { false, true } ) {
+            try( EmulatedRouter router = new EmulatedRouter( legacy, false ) ) {
+                RouterAPI api = new RouterAPI( "127.0.0.1", config( router.getPort(), "wrong" ) );
+                expect( api.getCurrentISP( null ), COMPLETED, "ERROR", (legacy ? "challenge" : "plain") + " login with wrong password" );
+                expectConnections( router, 1, 0, "login with wrong password" );
+            }
+        }
+    }
+
+
+    /**
+     * Checks that an operation on a router that isn't listening fails.
+     */
+    private void checkRouterDown() throws Exception {
+        int port;
+        try( EmulatedRouter router = new EmulatedRouter( false, false ) ) {
+            port = router.getPort();
+        }
+        RouterAPI api = new RouterAPI( "127.0.0.1", config( port, PASSWORD ) );
+        expect( api.getCurrentISP( null ), ERROR, null, "query of router that's down" );
+    }
+
+
+    private static JSONObject config( final int _port, final String _password ) {
+        JSONObject config = new JSONObject();
+        config.put( "port",               _port             );
+        config.put( "user",               USER              );
+        config.put( "password",           _password         );
+        config.put( "timeoutMS",          1000              );
+        config.put( "primaryGateway",     PRIMARY_GATEWAY   );
+        config.put( "secondaryGateway",   SECONDARY_GATEWAY );
+        config.put( "primaryInterface",   "ether1"          );
+        config.put( "secondaryInterface", "ether2"          );
+        return config;
+    }
+
+
+    /**
+     * Runs the specified task (on this thread, as a task worker would), and checks the result it posts.
+     */
+    private void expect( final Task _task, final SSHResultType _type, final String _output, final String _what ) throws InterruptedException {
+        _task.run();
+        SSHResult result = results.poll( RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        if( result == null )
+            problem( _what + ": no result" );
+        else if( (result.type != _type) || ((_output != null) && !_output.equals( result.output )) )
+            problem( _what + ": got " + result.type + " \"" + result.output + "\", expected " + _type + " \"" + _output + "\"" );
+    }
+
+
+    private void expectConnections( final EmulatedRouter _router, final int _connections, final int _logins, final String _what ) {
+        if( (_router.connections != _connections) || (_router.logins != _logins) )
+            problem( _what + ": " + _router.connections + " connections and " + _router.logins + " logins, expected " + _connections + " and "
+                    + _logins );
+    }
+
+
+    private void problem( final String _problem ) {
+        problems++;
+        System.out.println( "PROBLEM: " + _problem );
+    }
+
+
+    /**
+     * An emulated RouterOS API server, with two default routes (whose gateway is switched together), serving one connection at a time.
+     */
+    private static class EmulatedRouter implements AutoCloseable {
+
+        private final ServerSocket       server;
+        private final boolean            legacyLogin;
+
+        private volatile boolean         version7;     // true to describe routes the way RouterOS 7 does...
+        private volatile boolean         rejectSets;   // true to reject every route change...
+        private volatile boolean         ignoreSets;   // true to accept every route change, but keep the old route active...
+        private volatile boolean         fatalNext;    // true to answer the next request with a "!fatal", and close the connection...
+        private volatile boolean         dropNext;     // true to close the connection without answering the next request...
+        private volatile int             connections;
+        private volatile int             logins;
+
+        private String                   gateway;      // the gateway of both default routes...
+        private int                      firstID;      // the ID of the first default route (the second is the next one)...
+
+
+        private EmulatedRouter( final boolean _legacyLogin, final boolean _version7 ) throws IOException {
+            server      = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+            legacyLogin = _legacyLogin;
+            version7    = _version7;
+            gateway     = PRIMARY_GATEWAY;
+            firstID     = 1;
+            Thread thread = new Thread( this::serve, "EmulatedRouter" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+
+        private int getPort() {
+            return server.getLocalPort();
+        }
+
+
+        private synchronized void renumber() {
+            firstID += 2;
+        }
+
+
+        private void serve() {
+            while( !server.isClosed() ) {
+                try( Socket socket = server.accept() ) {
+                    connections++;
+                    InputStream  in  = new BufferedInputStream( socket.getInputStream() );
+                    OutputStream out = new BufferedOutputStream( socket.getOutputStream() );
+                    boolean loggedIn = false;
+                    String  challenge = null;
+                    while( true ) {
+                        List<String> request = RouterAPI.readSentence( in );
+                        if( dropNext ) {
+                            dropNext = false;
+                            break;
+                        }
+                        if( fatalNext ) {
+                            fatalNext = false;
+                            RouterAPI.writeSentence( out, "!fatal", "session terminated on request" );
+                            break;
+                        }
+
+                        // log in, either with the password, or (before RouterOS 6.43) with the response to a challenge...
+                        if( "/login".equals( request.get( 0 ) ) ) {
+                            String response = attribute( request, "response" );
+                            if( legacyLogin && (response == null) ) {
+                                challenge = "0123456789abcdef0123456789abcdef";
+                                RouterAPI.writeSentence( out, "!done", "=ret=" + challenge );
+                            }
+                            else if( legacyLogin ? ("00" + challengeResponse( challenge )).equals( response )
+                                                 : PASSWORD.equals( attribute( request, "password" ) ) ) {
+                                loggedIn = true;
+                                logins++;
+                                RouterAPI.writeSentence( out, "!done" );
+                            }
+                            else
+                                trap( out, "invalid user name or password (6)" );
+                            continue;
+                        }
+                        if( !loggedIn ) {
+                            trap( out, "not logged in" );
+                            continue;
+                        }
+                        answer( request, out );
+                    }
+                }
+                catch( IOException _e ) {
+                    // the client closed the connection (or we closed the server); wait for the next one...
+                }
+            }
+        }
+
+
+        /**
+         * Answers a request made after logging in: reading the default routes, or setting their gateway.
+         */
+        private synchronized void answer( final List<String> _request, final OutputStream _out ) throws IOException {
+
+            switch( _request.get( 0 ) ) {
+
+                case "/ip/route/print":
+                    boolean activeOnly = _request.contains( "?active=yes" );
+                    String  iface      = PRIMARY_GATEWAY.equals( gateway ) ? "ether1" : "ether2";
+                    for( int id = firstID; id < firstID + (activeOnly ? 1 : 2); id++ ) {
+                        if( version7 )
+                            RouterAPI.writeSentence( _out, "!re", "=.id=*" + id, "=gateway=" + gateway, "=immediate-gw=" + gateway + "%" + iface );
+                        else
+                            RouterAPI.writeSentence( _out, "!re", "=.id=*" + id, "=gateway=" + gateway,
+                                    "=gateway-status=" + gateway + " reachable via  " + iface );
+                    }
+                    RouterAPI.writeSentence( _out, "!done" );
+                    break;
+
+                case "/ip/route/set":
+                    String ids = "*" + firstID + ",*" + (firstID + 1);
+                    if( rejectSets )
+                        trap( _out, "failure: not allowed" );
+                    else if( !ids.equals( attribute( _request, ".id" ) ) )
+                        trap( _out, "no such item" );
+                    else {
+                        if( !ignoreSets )
+                            gateway = attribute( _request, "gateway" );
+                        RouterAPI.writeSentence( _out, "!done" );
+                    }
+                    break;
+
+                default:
+                    trap( _out, "no such command" );
+                    break;
+            }
+        }
+
+
+        private static void trap( final OutputStream _out, final String _message ) throws IOException {
+            RouterAPI.writeSentence( _out, "!trap", "=message=" + _message );
+            RouterAPI.writeSentence( _out, "!done" );
+        }
+
+
+        private static String attribute( final List<String> _sentence, final String _name ) {
+            String prefix = "=" + _name + "=";
+            for( String word : _sentence ) {
+                if( word.startsWith( prefix ) )
+                    return word.substring( prefix.length() );
+            }
+            return null;
+        }
+
+
+        private static String challengeResponse( final String _challenge ) throws IOException {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+                md5.update( (byte) 0 );
+                md5.update( PASSWORD.getBytes( StandardCharsets.UTF_8 ) );
+                for( int i = 0; i + 1 < _challenge.length(); i += 2 ) {
+                    md5.update( (byte) Integer.parseInt( _challenge.substring( i, i + 2 ), 16 ) );
+                }
+                StringBuilder hex = new StringBuilder();
+                for( byte b : md5.digest() ) {
+                    hex.append( String.format( "%02x", b & 0xFF ) );
+                }
+                return hex.toString();
+            }
+            catch( NoSuchAlgorithmException _e ) {
+                throw new IOException( "MD5 not available", _e );
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
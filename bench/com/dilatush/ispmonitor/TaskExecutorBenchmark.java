@@ -0,0 +1,157 @@
+package com.dilatush.ispmonitor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long a {@link TaskExecutor} takes to run a burst of blocking tasks (standing in for DNS probes, connectivity tests, and SSH commands,
+ * which spend nearly all their time waiting on the network), each with its own target, in each execution mode: a pool with a single worker, a pool
+ * of four workers (the default), and a virtual thread per task.  Virtual threads need Java 21 or later; on an earlier runtime the "virtual"
+ * executor falls back to a pool of four workers, and is reported as such.  A run that would take longer than {@link #MAX_RUN_MS} is estimated from
+ * the task time instead of being run.
+ *
+ * <p>It also checks that lanes still work in each mode: tasks with the same target must run one at a time, in the order they were submitted.  The
+ * process exits with status 1 if that check fails.
+ *
+ * <p>Usage: {@code TaskExecutorBenchmark [taskMS [tasks...]]}; the defaults are 20ms tasks, in bursts of 10, 100, 1000, and 5000 tasks.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TaskExecutorBenchmark {
+
+    private static final int  POOL_WORKERS      = 4;
+    private static final int  MAX_QUEUED_TASKS  = 100_000;
+    private static final long MAX_RUN_MS        = 30_000;
+    private static final int  LANE_TARGETS      = 10;
+    private static final int  LANE_TASKS        = 200;   // per target...
+
+    private int problems;
+
+
+    public static void main( final String[] _args ) throws InterruptedException {
+
+        int   taskMS = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 20;
+        int[] bursts = { 10, 100, 1000, 5000 };
+        if( _args.length > 1 ) {
+            bursts = new int[_args.length - 1];
+            for( int i = 1; i < _args.length; i++ ) {
+                bursts[i - 1] = Integer.parseInt( _args[i] );
+            }
+        }
+        Logger.getLogger( "com.dilatush.ispmonitor" ).setLevel( Level.SEVERE );
+
+        TaskExecutorBenchmark benchmark = new TaskExecutorBenchmark();
+        TaskExecutor single  = new TaskExecutor( TaskExecutionMode.POOL, 1, MAX_QUEUED_TASKS );
+        TaskExecutor pool    = new TaskExecutor( TaskExecutionMode.POOL, POOL_WORKERS, MAX_QUEUED_TASKS );
+        TaskExecutor virtual = new TaskExecutor( TaskExecutionMode.VIRTUAL, POOL_WORKERS, MAX_QUEUED_TASKS );
+
+        System.out.println( "Java " + System.getProperty( "java.version" ) + "; " + taskMS + "ms tasks, one target each; \"virtual\" is running in "
+                + virtual.getMode() + " mode" );
+        System.out.println( String.format( "  %8s %16s %16s %16s", "tasks", "single thread", "pool (" + POOL_WORKERS + ")", "virtual" ) );
+        for( int tasks : bursts ) {
+            System.out.println( String.format( "  %8d %16s %16s %16s", tasks, benchmark.time( single, 1, tasks, taskMS ),
+                    benchmark.time( pool, POOL_WORKERS, tasks, taskMS ), benchmark.time( virtual, POOL_WORKERS, tasks, taskMS ) ) );
+        }
+
+        benchmark.checkLanes( "single thread", single );
+        benchmark.checkLanes( "pool", pool );
+        benchmark.checkLanes( "virtual", virtual );
+
+        System.out.println( benchmark.problems + " problems" );
+        System.exit( (benchmark.problems == 0) ? 0 : 1 );
+    }
+
+
+    /**
+     * Runs the specified number of tasks, each blocking for the specified time and with its own target, and returns how long it took to run them
+     * all (or an estimate, if that would take too long).
+     */
+    private String time( final TaskExecutor _executor, final int _workers, final int _tasks, final int _taskMS ) throws InterruptedException {
+
+        // if this would take too long, estimate it instead...
+        long estimateMS = (_executor.getMode() == TaskExecutionMode.VIRTUAL) ? _taskMS : (long) Math.ceil( (double) _tasks / _workers ) * _taskMS;
+        if( estimateMS > MAX_RUN_MS )
+            return String.format( "~%.0f s (est.)", estimateMS / 1000.0 );
+
+        CountDownLatch done = new CountDownLatch( _tasks );
+        long start = System.nanoTime();
+        for( int i = 0; i < _tasks; i++ ) {
+            String target = "target-" + i;
+            _executor.execute( new Task() {
+                @Override
+                public void run() {
+                    sleep( _taskMS );
+                    done.countDown();
+                }
+
+                @Override
+                public String getTarget() {
+                    return target;
+                }
+            } );
+        }
+        done.await();
+        return String.format( "%d ms", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) );
+    }
+
+
+    /**
+     * Runs a number of short tasks in each of several lanes, and checks that each lane's tasks ran one at a time, in the order they were submitted.
+     */
+    private void checkLanes( final String _name, final TaskExecutor _executor ) throws InterruptedException {
+
+        ConcurrentHashMap<String, AtomicInteger> next    = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger                            wrong   = new AtomicInteger();
+        CountDownLatch                           done    = new CountDownLatch( LANE_TARGETS * LANE_TASKS );
+        for( int i = 0; i < LANE_TASKS; i++ ) {
+            for( int t = 0; t < LANE_TARGETS; t++ ) {
+                String target = "lane-" + t;
+                int    order  = i;
+                next.putIfAbsent( target, new AtomicInteger() );
+                running.putIfAbsent( target, new AtomicInteger() );
+                _executor.execute( new Task() {
+                    @Override
+                    public void run() {
+                        if( (running.get( target ).incrementAndGet() != 1) || (next.get( target ).getAndIncrement() != order) )
+                            wrong.incrementAndGet();
+                        sleep( 0 );
+                        running.get( target ).decrementAndGet();
+                        done.countDown();
+                    }
+
+                    @Override
+                    public String getTarget() {
+                        return target;
+                    }
+                } );
+            }
+        }
+        if( !done.await( 60, TimeUnit.SECONDS ) ) {
+            problem( _name + ": lane tasks didn't finish" );
+            return;
+        }
+        if( wrong.get() > 0 )
+            problem( _name + ": " + wrong.get() + " lane tasks ran out of order or overlapped" );
+    }
+
+
+    private static void sleep( final int _ms ) {
+        try {
+            Thread.sleep( _ms );
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void problem( final String _problem ) {
+        problems++;
+        System.out.println( "PROBLEM: " + _problem );
+    }
+}
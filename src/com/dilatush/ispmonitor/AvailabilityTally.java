@@ -0,0 +1,105 @@
+package com.dilatush.ispmonitor;
+
+import static com.dilatush.ispmonitor.SystemAvailability.*;
+
+/**
+ * Keeps count of how many members of some collection (such as the tests in a connectivity test group, or the DNS servers of an ISP) are in each
+ * {@link SystemAvailability} state.  The counts are updated as each member changes state, so the availability of the whole collection can be
+ * figured in constant time, no matter how many members it has, rather than by examining every member each time one of them changes.  It's up to
+ * the owner of the tally to report every change of every member's state, including the initial state of each member.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class AvailabilityTally {
+
+    private final int[] counts;    // the number of members in each state, indexed by the state's ordinal...
+    private int         members;   // the total number of members...
+
+
+    /* package-private */ AvailabilityTally() {
+        counts = new int[SystemAvailability.values().length];
+    }
+
+
+    /**
+     * Adds a member in the specified state.
+     *
+     * @param _availability the state of the new member
+     */
+    /* package-private */ void add( final SystemAvailability _availability ) {
+        counts[_availability.ordinal()]++;
+        members++;
+    }
+
+
+    /**
+     * Records that a member has changed from one state to another.  Nothing happens if the two states are the same.
+     *
+     * @param _from the state the member was in
+     * @param _to the state the member is now in
+     */
+    /* package-private */ void change( final SystemAvailability _from, final SystemAvailability _to ) {
+
+        // sanity check...
+        if( counts[_from.ordinal()] == 0 )
+            throw new IllegalStateException( "No member is " + _from );
+
+        counts[_from.ordinal()]--;
+        counts[_to.ordinal()]++;
+    }
+
+
+    /**
+     * Returns the number of members in the specified state.
+     *
+     * @param _availability the state to count
+     * @return the number of members in that state
+     */
+    /* package-private */ int count( final SystemAvailability _availability ) {
+        return counts[_availability.ordinal()];
+    }
+
+
+    /**
+     * Returns the total number of members.
+     *
+     * @return the number of members
+     */
+    /* package-private */ int size() {
+        return members;
+    }
+
+
+    /**
+     * Returns the availability of a collection that needs all its members to be up: down if any member is down, otherwise unknown if any member's
+     * state is unknown, otherwise degraded if any member is degraded, otherwise (including when there are no members) up.
+     *
+     * @return the availability of the collection as a whole
+     */
+    /* package-private */ SystemAvailability worst() {
+        return (count( DOWN )     > 0) ? DOWN
+             : (count( UNKNOWN )  > 0) ? UNKNOWN
+             : (count( DEGRADED ) > 0) ? DEGRADED
+             : UP;
+    }
+
+
+    /**
+     * Returns the availability of a collection that needs only one of its members to be up: up if any member is up, otherwise degraded if any
+     * member is degraded, otherwise (including when all members' states are unknown, or there are no members) down.
+     *
+     * @return the availability of the collection as a whole
+     */
+    /* package-private */ SystemAvailability best() {
+        return (count( UP )       > 0) ? UP
+             : (count( DEGRADED ) > 0) ? DEGRADED
+             : DOWN;
+    }
+
+
+    public String toString() {
+        return count( UP ) + " up, " + count( DEGRADED ) + " degraded, " + count( DOWN ) + " down, " + count( UNKNOWN ) + " unknown";
+    }
+}
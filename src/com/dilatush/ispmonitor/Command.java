@@ -33,6 +33,23 @@ public class Command {
     }
 
 
+    /**
+     * Creates a new instance of {@link Command} with the specified attributes.
+     *
+     * @param _name the name of the command
+     * @param _command the command line
+     * @param _expectedResponse the output expected from the command
+     * @param _timeoutMS the maximum time to wait for the command to complete, in milliseconds
+     */
+    /* package-private */ Command( final String _name, final String _command, final String _expectedResponse, final long _timeoutMS ) {
+
+        name             = _name;
+        command          = _command;
+        expectedResponse = _expectedResponse;
+        timeoutMS        = _timeoutMS;
+    }
+
+
     /**
      * Returns a map of {@link Command} instances, keyed by their name, as configured under the specified commands tag (as an array) in the specified
      * configuration.
@@ -0,0 +1,123 @@
+package com.dilatush.ispmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.dilatush.ispmonitor.SSHResultType.*;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.stripTrailingNewlines;
+
+/**
+ * A batch of commands to be run on the same remote host with a single SSH invocation, rather than one invocation apiece.  The commands are combined
+ * into a single shell command that runs each of them in turn (each in its own subshell, with no input), and follows the output of each with a
+ * delimiter line holding the command's exit code.  The delimiter includes a random boundary string chosen for each batch, so it can't be confused
+ * with anything the commands output.  When the batch's result comes back, it's split up into a separate {@link SSHResult} for each command, which
+ * is handed to that command's handler just as if the command had been run by itself.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe; they're used only on the {@link EventQueue}'s thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class CommandBatch {
+
+    private final List<Command>          commands;
+    private final List<SSHResultHandler> handlers;
+
+
+    /* package-private */ CommandBatch() {
+        commands = new ArrayList<>();
+        handlers = new ArrayList<>();
+    }
+
+
+    /**
+     * Adds the specified command, whose result will be handed to the specified handler, to this batch.
+     *
+     * @param _command the command to run
+     * @param _handler the handler for the command's result
+     */
+    /* package-private */ void add( final Command _command, final SSHResultHandler _handler ) {
+
+        // sanity check...
+        if( isNull( _command ) || isNull( _handler ) )
+            throw new IllegalArgumentException( "Command or handler missing" );
+
+        commands.add( _command );
+        handlers.add( _handler );
+    }
+
+
+    /* package-private */ int size() {
+        return commands.size();
+    }
+
+
+    /**
+     * Returns a task that runs all the commands in this batch on the specified host, as the specified user, with the specified identity file.  If
+     * there's just one command, it's run by itself, just as it always was.
+     *
+     * @param _hostname the host to run the commands on
+     * @param _user the user to run the commands as, or {@code null} for the same user as this process
+     * @param _identityFile the path to the identity file to authenticate with, or {@code null} for the same as this process
+     * @return the task
+     */
+    /* package-private */ SSHTask toTask( final String _hostname, final String _user, final String _identityFile ) {
+
+        // if we've just got one command, there's nothing to combine...
+        if( commands.size() == 1 )
+            return new SSHTask( handlers.get( 0 ), _hostname, _user, _identityFile, commands.get( 0 ) );
+
+        // otherwise, combine all our commands into one, with a delimiter (and exit code) after the output of each...
+        String        boundary = "ISPMONITOR-" + Long.toHexString( ThreadLocalRandom.current().nextLong() );
+        StringBuilder combined = new StringBuilder();
+        StringBuilder names    = new StringBuilder();
+        long          timeout  = 0;
+        for( Command command : commands ) {
+            combined.append( "( " ).append( command.command ).append( " ) </dev/null; printf '\\n" ).append( boundary ).append( " %d\\n' $?; " );
+            names.append( (names.length() == 0) ? "" : "," ).append( command.name );
+            timeout += command.timeoutMS;
+        }
+        Command batch = new Command( "batch(" + names + ")", combined.toString(), "", timeout );
+        return new SSHTask( _result -> handle( _result, boundary ), _hostname, _user, _identityFile, batch );
+    }
+
+
+    /**
+     * Splits the result of running this batch into the results of each of its commands, and hands each to its handler.  Any command whose output
+     * didn't come back (because the batch failed, or timed out before the command finished) gets the batch's result type, or ERROR if the batch
+     * completed.
+     */
+    private void handle( final SSHResult _batchResult, final String _boundary ) {
+
+        String output    = (_batchResult.type == COMPLETED) ? _batchResult.output : null;
+        String delimiter = "\n" + _boundary + " ";
+        int    start     = 0;
+        for( int i = 0; i < commands.size(); i++ ) {
+
+            // find the delimiter after this command's output; if there isn't one, this command (and all the rest) didn't finish...
+            int end = isNull( output ) ? -1 : output.indexOf( delimiter, start );
+            if( end < 0 ) {
+                SSHResultType type = (_batchResult.type == COMPLETED) ? ERROR : _batchResult.type;
+                handlers.get( i ).handle( new SSHResult( handlers.get( i ), commands.get( i ), type, -1, null ) );
+                continue;
+            }
+
+            // get the exit code from the delimiter line, and the start of the next command's output...
+            int codeStart = end + delimiter.length();
+            int codeEnd   = output.indexOf( '\n', codeStart );
+            if( codeEnd < 0 )
+                codeEnd = output.length();
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt( output.substring( codeStart, codeEnd ).trim() );
+            }
+            catch( NumberFormatException _e ) {
+                exitCode = -1;
+            }
+            String commandOutput = stripTrailingNewlines( output.substring( start, end ) );
+            handlers.get( i ).handle( new SSHResult( handlers.get( i ), commands.get( i ), COMPLETED, exitCode, commandOutput ) );
+            start = Math.min( output.length(), codeEnd + 1 );
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.dilatush.ispmonitor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.SystemAvailability.*;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * Tests TCP connectivity to services, by seeing whether a TCP connection to them can be established within a given time.  The connection is simply
+ * established and immediately closed; no data is sent or received.  All the connections are made from a single thread, using non-blocking
+ * {@link SocketChannel}s multiplexed with a {@link Selector}, with a priority queue of deadlines for the connections that haven't completed yet, so
+ * any number of services can be tested at once without any thread blocking on any of them.
+ *
+ * <p>A service whose connection is established in time is UP; one whose connection isn't established by its deadline is DOWN; and one whose
+ * connection fails outright (for instance, it's refused, or the host name can't be resolved) is UNKNOWN, as we have no idea whether the service is
+ * up or down.  The result of each test is posted as an {@link EventType#ConnectivityTest} event.  Host names are resolved through the
+ * {@link HostResolver}, so a test never waits on a DNS lookup.
+ *
+ * <p>The number of connections in flight (submitted but not yet finished) is tracked, along with its peak and its time-weighted average since
+ * startup, so that we can see whether tests are bunching up.
+ *
+ * <p>Instances of this class are threadsafe; {@link #probe(ConnectivityTestResultHandler, String, int, int, String)} may be called from any thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ConnectProber {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private final Selector                       selector;
+    private final ConcurrentLinkedQueue<Connect> submitted;  // connections submitted but not yet started by our thread...
+    private final PriorityQueue<Connect>         deadlines;  // pending connections by deadline (including some done ones); only used by our thread...
+    private final Consumer<SelectionKey>         onReady;
+    private final long                           startNanos;
+
+    private int                                  inFlight;        // connections submitted but not finished; guarded by this instance...
+    private int                                  peakInFlight;    // guarded by this instance...
+    private double                               inFlightNanos;   // the integral over time of connections in flight; guarded by this instance...
+    private long                                 changedNanos;    // when inFlight last changed; guarded by this instance...
+
+
+    /**
+     * Creates a new instance of {@link ConnectProber}, opening its selector and starting its thread.
+     *
+     * @throws IOException on any problem opening the selector
+     */
+    /* package-private */ ConnectProber() throws IOException {
+
+        selector     = Selector.open();
+        submitted    = new ConcurrentLinkedQueue<>();
+        deadlines    = new PriorityQueue<>();
+        onReady      = this::ready;
+        startNanos   = System.nanoTime();
+        changedNanos = startNanos;
+
+        Thread thread = new Thread( this::run, "ConnectProber" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Starts a test of TCP connectivity to the specified host and port.  This method returns immediately; the result is posted as an
+     * {@link EventType#ConnectivityTest} event, whose handler is the specified handler.
+     *
+     * @param _handler the handler for the result of this test
+     * @param _host the host name or dotted-form IP address of the service's host
+     * @param _port the TCP port of the service
+     * @param _timeoutMS the maximum time to wait for the connection to be established, in milliseconds
+     * @param _name the name of this test
+     */
+    /* package-private */ void probe( final ConnectivityTestResultHandler _handler, final String _host, final int _port, final int _timeoutMS,
+                                      final String _name ) {
+
+        // sanity checks...
+        if( isNull( _handler ) || isEmpty( _host ) || isEmpty( _name ) )
+            throw new IllegalArgumentException( "Handler, host, or name missing" );
+        if( (_port < 1) || (_port > 65535) || (_timeoutMS < 1) )
+            throw new IllegalArgumentException( "Invalid port or timeout: " + _port + ", " + _timeoutMS );
+
+        changeInFlight( 1 );
+        submitted.add( new Connect( _handler, _host, _port, _timeoutMS, _name ) );
+        selector.wakeup();
+    }
+
+
+    /**
+     * The body of our thread: start any submitted connections, wait for connections to complete (or the next deadline), then handle the completed
+     * connections and the expired deadlines.
+     */
+    private void run() {
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+
+            // we catch everything except Errors here, log them, then ignore them, so that we don't terminate this thread...
+            try {
+
+                // start anything that's been submitted...
+                Connect connect;
+                while( (connect = submitted.poll()) != null ) {
+                    start( connect );
+                }
+
+                // forget about any deadlines at the head of the queue for connections that are already done...
+                while( !deadlines.isEmpty() && deadlines.peek().done ) {
+                    deadlines.poll();
+                }
+
+                // wait for something to happen, but no longer than until the next deadline, handling any connections that completed...
+                Connect next = deadlines.peek();
+                if( next == null )
+                    selector.select( onReady );
+                else {
+                    long waitMS = TimeUnit.NANOSECONDS.toMillis( next.deadlineNanos - System.nanoTime() + 999_999 );  // rounded up...
+                    if( waitMS > 0 )
+                        selector.select( onReady, waitMS );
+                    else
+                        selector.selectNow( onReady );
+                }
+
+                // handle any connections whose deadline has passed...
+                long now = System.nanoTime();
+                while( !deadlines.isEmpty() && (deadlines.peek().deadlineNanos - now <= 0) ) {
+                    Connect expired = deadlines.poll();
+                    if( !expired.done )
+                        finish( expired, DOWN );
+                }
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in connect prober", _e );
+            }
+        }
+    }
+
+
+    /**
+     * Starts the specified connection, finishing it right away if it connects (or fails) immediately.
+     */
+    private void start( final Connect _connect ) {
+
+        try {
+            // get the host's address from the resolver's cache, as looking it up could block (especially when an ISP is down)...
+            InetAddress resolved = ISPMonitor.getHostResolver().resolve( _connect.host );
+            if( isNull( resolved ) ) {
+                LOGGER.finest( "No address (yet) for " + _connect.host );
+                finish( _connect, UNKNOWN );
+                return;
+            }
+            InetSocketAddress address = new InetSocketAddress( resolved, _connect.port );
+
+            _connect.startNanos    = System.nanoTime();
+            _connect.deadlineNanos = _connect.startNanos + TimeUnit.MILLISECONDS.toNanos( _connect.timeoutMS );
+            _connect.channel       = SocketChannel.open();
+            _connect.channel.configureBlocking( false );
+            if( _connect.channel.connect( address ) )
+                finish( _connect, UP );
+            else {
+                _connect.channel.register( selector, SelectionKey.OP_CONNECT, _connect );
+                deadlines.add( _connect );
+            }
+        }
+        catch( IOException _e ) {
+            finish( _connect, UNKNOWN );
+        }
+    }
+
+
+    /**
+     * Called by the selector for each connection that has completed (successfully or not).
+     */
+    private void ready( final SelectionKey _key ) {
+
+        Connect connect = (Connect) _key.attachment();
+        if( connect.done )
+            return;
+        try {
+            if( connect.channel.finishConnect() )
+                finish( connect, UP );
+        }
+        catch( IOException _e ) {
+            finish( connect, UNKNOWN );
+        }
+    }
+
+
+    /**
+     * Finishes the specified connection, closing its channel and posting its result.
+     */
+    private void finish( final Connect _connect, final SystemAvailability _availability ) {
+
+        _connect.done = true;
+        long rttMicros = (_availability == UP) ? TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - _connect.startNanos ) : 0;
+        if( _availability == UP )
+            LOGGER.finest( "Time to connect to " + _connect.host + ":" + _connect.port + " was " + rttMicros + "us" );
+
+        // closing the channel also cancels its selection key...
+        if( _connect.channel != null ) {
+            try {
+                _connect.channel.close();
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing connection to " + _connect.host + ":" + _connect.port, _e );
+            }
+        }
+
+        changeInFlight( -1 );
+        ISPMonitor.postEvent( new Event( EventType.ConnectivityTest,
+                new ConnectivityTestResult( _connect.handler, _availability, _connect.name, rttMicros ) ) );
+    }
+
+
+    private synchronized void changeInFlight( final int _delta ) {
+        long now = System.nanoTime();
+        inFlightNanos += (double) inFlight * (now - changedNanos);
+        changedNanos   = now;
+        inFlight      += _delta;
+        peakInFlight   = Math.max( peakInFlight, inFlight );
+    }
+
+
+    /**
+     * Returns the largest number of connections that have been in flight at once.
+     *
+     * @return the peak number of connections in flight
+     */
+    /* package-private */ synchronized int getPeakInFlight() {
+        return peakInFlight;
+    }
+
+
+    /**
+     * Returns the average number of connections in flight since startup, weighted by time.
+     *
+     * @return the average number of connections in flight
+     */
+    /* package-private */ synchronized double getAverageInFlight() {
+        long now = System.nanoTime();
+        return (now == startNanos) ? 0 : (inFlightNanos + (double) inFlight * (now - changedNanos)) / (now - startNanos);
+    }
+
+
+    public synchronized String toString() {
+        return String.format( "Connect prober: %d in flight, %d peak, %.2f average", inFlight, getPeakInFlight(), getAverageInFlight() );
+    }
+
+
+    /**
+     * The state of a single connection.  Other than the constructor's fields, only used by the prober's thread.
+     */
+    private static class Connect implements Comparable<Connect> {
+
+        private final ConnectivityTestResultHandler handler;
+        private final String                        host;
+        private final int                           port;
+        private final int                           timeoutMS;
+        private final String                        name;
+
+        private SocketChannel                       channel;
+        private long                                startNanos;
+        private long                                deadlineNanos;
+        private boolean                             done;
+
+
+        private Connect( final ConnectivityTestResultHandler _handler, final String _host, final int _port, final int _timeoutMS,
+                         final String _name ) {
+            handler   = _handler;
+            host      = _host;
+            port      = _port;
+            timeoutMS = _timeoutMS;
+            name      = _name;
+        }
+
+
+        @Override
+        public int compareTo( final Connect _other ) {
+            return Long.compare( deadlineNanos - _other.deadlineNanos, 0 );
+        }
+    }
+}
@@ -8,12 +8,20 @@ public class ConnectivityTestResult {
     public final SystemAvailability            availability;
     public final String                        name;
     public final ConnectivityTestResultHandler handler;
+    public final long                          rttMicros;  // the time it took to connect, if the availability is UP...
 
 
-    public ConnectivityTestResult( final ConnectivityTestResultHandler _handler, final SystemAvailability _availability, final String _name ) {
+    public ConnectivityTestResult( final ConnectivityTestResultHandler _handler, final SystemAvailability _availability, final String _name,
+                                   final long _rttMicros ) {
         handler      = _handler;
         availability = _availability;
         name         = _name;
+        rttMicros    = _rttMicros;
+    }
+
+
+    public ConnectivityTestResult( final ConnectivityTestResultHandler _handler, final SystemAvailability _availability, final String _name ) {
+        this( _handler, _availability, _name, 0 );
     }
 
 
@@ -1,5 +1,6 @@
 package com.dilatush.ispmonitor;
 
+import com.dilatush.mop.Message;
 import com.dilatush.util.Config;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -7,7 +8,6 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.SystemAvailability.*;
@@ -16,6 +16,21 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
  * Implements periodic connectivity testing to configured TCP services.  Changes in connectivity to those services are reported both as an event in
  * the {@link ISPMonitor} program and as a MOP event.
  *
+ * <p>The groups of tests form a dependency graph (a DAG): each group may list the groups it's reached through as its parents.  While any ancestor
+ * of a group is down, the group is suspended: its tests aren't run (as they'd only fail), and its availability is unknown.  When its ancestors are
+ * all back up, all of its tests are run right away.  Each group counts the tests it skipped while suspended (the probes saved); the counts are
+ * logged when a group resumes, are included in the periodic statistics log (see {@link #toString()}), and are sent in response to a
+ * "connectivity.statistics" MOP request.
+ *
+ * <p>Each test keeps a short history of its connect times and failures (see {@link LatencyHistory}), from which percentiles, trends, and failure
+ * ratios can be summarized for the test or for its whole group.  The group's summary is included when a change in its connectivity is reported,
+ * and summaries of every group and test are sent in response to a "connectivity.statistics" MOP request.
+ *
+ * <p>Rather than running all of a group's tests at once, each test has its own phase within the group's interval: the interval is divided into
+ * equal slots, one per test, and each test runs at a deterministically jittered point within its slot (the jitter comes from the test's name,
+ * so it's the same from run to run).  Each test is always scheduled for the next time in its phase, rather than an interval after its last
+ * result, so the tests never drift into lockstep, and the number of connections in flight stays flat.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class ConnectivityTester {
@@ -42,7 +57,9 @@ public class ConnectivityTester {
             // get our tests from configuration...
             JSONArray testsConfig = connectivityTestsConfig.getJSONArray( "tests" );
             for( int i = 0; i < testsConfig.length(); i++ ) {
-                tests.add( new Test( testsConfig.getJSONObject( i ) ) );
+                Test test = new Test( testsConfig.getJSONObject( i ) );
+                tests.add( test );
+                ISPMonitor.getHostResolver().prefetch( test.host );   // so the host's address is ready by the time we test it...
             }
 
             // get our groups from configuration...
@@ -55,33 +72,124 @@ public class ConnectivityTester {
             for( Test test : tests ) {
                 test.groupInstance = groups.get( test.group );
             }
+
+            // link the groups to their parents and children, and make sure they form a DAG...
+            for( Group group : groups ) {
+                for( int parentNum : group.parentNums ) {
+                    if( (parentNum < 0) || (parentNum >= groups.size()) )
+                        throw new IllegalArgumentException( "Connectivity group " + group.name + " has nonexistent parent " + parentNum );
+                    Group parent = groups.get( parentNum );
+                    group.parents.add( parent );
+                    parent.children.add( group );
+                }
+            }
+            for( Group group : groups ) {
+                checkForCycle( group, new ArrayList<>() );
+            }
         }
         catch( JSONException _e ) {
             throw new IllegalArgumentException( "Configuration malformed", _e );
         }
 
-        // everything is configured, so now kick off the initial tests for all the tests we have configured...
-        for( Test test : tests ) {
-            test.executeTest();
+        // everything is configured, so now schedule the initial tests, spread across each group's interval...
+        long now = System.currentTimeMillis();
+        for( Group group : groups ) {
+            group.spread( now );
+        }
+    }
+
+
+    /**
+     * Responds to the specified MOP request for connectivity statistics, with a summary of the recent history of each group and each test.
+     *
+     * @param _request the request message
+     */
+    /* package-private */ void handleStatisticsRequest( final Message _request ) {
+
+        JSONArray groupsStats = new JSONArray();
+        for( Group group : groups ) {
+            JSONArray testsStats = new JSONArray();
+            for( Test test : group.tests ) {
+                testsStats.put( toJSON( test.name, test.availability, test.history.summarize() ) );
+            }
+            groupsStats.put( toJSON( group.name, group.availability, group.summarize() )
+                    .put( "suspended", group.suspended ).put( "probesSaved", group.probesSaved ).put( "tests", testsStats ) );
+        }
+
+        Message reply = ISPMonitor.getMailbox().createDirectMessage( _request.from, "connectivity.statistics", false );
+        reply.put( "groups", groupsStats );
+        ISPMonitor.getMailbox().send( reply );
+    }
+
+
+    private static JSONObject toJSON( final String _name, final SystemAvailability _availability, final LatencyHistory.Summary _summary ) {
+        JSONObject stats = new JSONObject();
+        stats.put( "name",         _name                 );
+        stats.put( "availability", _availability.name()  );
+        stats.put( "probes",       _summary.probes       );
+        stats.put( "failureRatio", _summary.failureRatio );
+        stats.put( "p50Micros",    _summary.p50Micros    );
+        stats.put( "p95Micros",    _summary.p95Micros    );
+        stats.put( "p99Micros",    _summary.p99Micros    );
+        stats.put( "trend",        _summary.trend        );
+        return stats;
+    }
+
+
+    /**
+     * Returns the number of tests each group has skipped while suspended (the probes saved), and the groups that are suspended now.  This may be
+     * called from any thread.
+     *
+     * @return a description of the probes saved
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder( "Connectivity tests: probes saved while suspended:" );
+        for( Group group : groups ) {
+            sb.append( ' ' ).append( group.name ).append( "=" ).append( group.probesSaved ).append( group.suspended ? " (suspended)" : "" );
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Throws an {@link IllegalArgumentException} if the specified group is its own ancestor.
+     */
+    private static void checkForCycle( final Group _group, final List<Group> _path ) {
+
+        if( _path.contains( _group ) )
+            throw new IllegalArgumentException( "Connectivity group " + _group.name + " is its own ancestor" );
+        _path.add( _group );
+        for( Group parent : _group.parents ) {
+            checkForCycle( parent, _path );
         }
+        _path.remove( _path.size() - 1 );
     }
 
 
     private static class Group {
 
-        private final List<Test>   tests;
-        private final int          intervalSeconds;
-        private final int          level;
-        private final String       name;
-        private final boolean      internalNetwork;
+        private final List<Test>        tests;
+        private final List<Group>       parents;
+        private final List<Group>       children;
+        private final AvailabilityTally testStates;    // the number of our tests in each state...
+        private final int[]             parentNums;
+        private final int               intervalSeconds;
+        private final int               level;
+        private final String            name;
+        private final boolean           internalNetwork;
 
-        private SystemAvailability availability;
+        private SystemAvailability      availability;
+        private volatile boolean        suspended;     // true while any of our ancestors is down...
+        private volatile long           probesSaved;   // the number of tests we didn't run because we were suspended (event thread only)...
 
 
         private Group( final int _groupNum, final JSONObject _groupConfig, final List<Test> _tests ) {
 
             // the basics...
-            tests  = new ArrayList<>();
+            tests        = new ArrayList<>();
+            parents      = new ArrayList<>();
+            children     = new ArrayList<>();
+            testStates   = new AvailabilityTally();
             availability = UNKNOWN;
 
             // get our attributes...
@@ -90,10 +198,18 @@ public class ConnectivityTester {
             name            = _groupConfig.getString(  "name"            );
             internalNetwork = _groupConfig.getBoolean( "internalNetwork" );
 
+            // get the numbers of the groups we're reached through, if there are any...
+            JSONArray parentsConfig = _groupConfig.optJSONArray( "parents" );
+            parentNums = new int[ (parentsConfig == null) ? 0 : parentsConfig.length() ];
+            for( int i = 0; i < parentNums.length; i++ ) {
+                parentNums[i] = parentsConfig.getInt( i );
+            }
+
             // filter tests by our group number...
             for( Test test : _tests ) {
                 if( _groupNum == test.group ) {
                     tests.add( test );
+                    testStates.add( test.availability );
                 }
             }
         }
@@ -101,25 +217,94 @@ public class ConnectivityTester {
 
         private void handleConnectivityChange() {
 
-            // see if the entire group is available...
-            SystemAvailability sa = UP;  // assume it's up until proven otherwise...
-            for( Test test : tests ) {
-                if( test.availability != UP )
-                    sa = test.availability;
-            }
+            // the entire group is available only if all its tests are (and it's down if any of them are)...
+            SystemAvailability sa = testStates.worst();
 
             // if we've changed group availability, time to tell the world...
             if( sa != availability ) {
-                LOGGER.finer( "Connectivity for " + name + " changed from " + availability + " to " + sa );
-
-                // but if we're going from unknown to up, skip this because that's just a startup thing...
-                if( !((availability == UNKNOWN) && (sa == UP)) ) {
-                    availability = sa;
-                    String msg = "Connectivity to " + name + " just went " + availability + ".";
+                LatencyHistory.Summary summary = summarize();
+                LOGGER.finer( "Connectivity for " + name + " changed from " + availability + " to " + sa + " (" + summary + ")" );
+
+                // but if we're going from unknown to up, skip this because that's just a startup (or resumption) thing...
+                boolean tell = !((availability == UNKNOWN) && (sa == UP));
+                availability = sa;
+                if( tell ) {
+                    String msg = "Connectivity to " + name + " just went " + availability + " (recent history: " + summary + ").";
                     String type = "connectivity." + availability.toString().toLowerCase();
                     String sub = "Connectivity to " + name + " just went " + availability + ".";
                     ISPMonitor.sendMOPEvent( "connectivity", type, sub, msg, level );
                 }
+
+                // our children may need to be suspended or resumed...
+                for( Group child : children ) {
+                    child.updateSuspension();
+                }
+            }
+        }
+
+
+        /**
+         * Returns a summary of the recent history of all our tests together.
+         */
+        private LatencyHistory.Summary summarize() {
+            LatencyHistory[] histories = new LatencyHistory[tests.size()];
+            for( int i = 0; i < histories.length; i++ ) {
+                histories[i] = tests.get( i ).history;
+            }
+            return LatencyHistory.summarize( histories );
+        }
+
+
+        /**
+         * Gives each of our tests its own phase within our interval, starting from the specified time, and schedules its first test.
+         */
+        private void spread( final long _startMS ) {
+
+            double slotMS = intervalSeconds * 1000.0 / Math.max( 1, tests.size() );
+            for( int i = 0; i < tests.size(); i++ ) {
+                Test test = tests.get( i );
+                double jitter = (test.name.hashCode() & 0xFFFF) / 65536.0 - 0.5;     // -0.5..0.5, but always the same for a given test...
+                test.anchorMS = _startMS + Math.round( slotMS * (i + 0.5 + 0.5 * jitter) );
+                test.scheduleNext();
+            }
+        }
+
+
+        /**
+         * Suspends this group if any of its parents is down or suspended, or resumes it if none are, then does the same for its children.
+         */
+        private void updateSuspension() {
+
+            // figure out whether we should be suspended, and if that hasn't changed, we're done...
+            boolean shouldSuspend = false;
+            for( Group parent : parents ) {
+                shouldSuspend |= parent.suspended || (parent.availability == DOWN);
+            }
+            if( shouldSuspend == suspended )
+                return;
+            suspended = shouldSuspend;
+
+            // if we're suspended, we don't know anything about our tests (and we don't tell the world about it)...
+            if( suspended ) {
+                LOGGER.info( "Suspending connectivity tests of " + name + ", as a group it's reached through is down" );
+                for( Test test : tests ) {
+                    test.setAvailability( UNKNOWN );
+                }
+                availability = UNKNOWN;
+            }
+
+            // if we're resumed, run all our tests right away (except any that are already running)...
+            else {
+                LOGGER.info( "Resuming connectivity tests of " + name + "; " + probesSaved + " probes saved while suspended, so far" );
+                for( Test test : tests ) {
+                    if( test.testTimeout.isScheduled() )
+                        ISPMonitor.getTimingWheel().schedule( test.testTimeout, 1 );
+                }
+            }
+
+            // our children follow along...
+            for( Group child : children ) {
+                child.updateSuspension();
             }
         }
     }
@@ -133,8 +318,11 @@ public class ConnectivityTester {
         /* package-private */ final int    group;
         /* package-private */ final String name;
 
-        private SystemAvailability availability;
-        private Group              groupInstance;
+        private final TimingWheel.Timeout testTimeout;
+        private SystemAvailability        availability;
+        private Group                     groupInstance;
+        private final LatencyHistory      history;
+        private long                      anchorMS;       // a time (ms since the epoch) in our phase; we're tested an interval apart from it...
 
 
         private Test( final JSONObject _testConfig ) {
@@ -145,29 +333,60 @@ public class ConnectivityTester {
             timeoutMS    = _testConfig.getInt(    "timeoutMS" );
             group        = _testConfig.getInt(    "group"     );
             name         = _testConfig.getString( "name"      );
+            testTimeout  = new TimingWheel.Timeout( this::executeTest );
+            history      = new LatencyHistory();
         }
 
 
         private void executeTest() {
-            ISPMonitor.executeTask( new ConnectivityTestTask( this::handleResult, host, port, timeoutMS, name ) );
+
+            // if our group is suspended, there's no point in testing; just check again later...
+            if( groupInstance.suspended ) {
+                groupInstance.probesSaved++;
+                scheduleNext();
+                return;
+            }
+
+            ISPMonitor.getConnectProber().probe( this::handleResult, host, port, timeoutMS, name );
         }
 
 
         private void handleResult( final ConnectivityTestResult _result ) {
 
+            // if our group was suspended while we were testing, the result tells us nothing...
+            if( !groupInstance.suspended )
+                history.record( _result.availability, _result.rttMicros );
+
             // handle a change in availability...
-            if( _result.availability != availability ) {
-                availability = _result.availability;
+            if( !groupInstance.suspended && (_result.availability != availability) ) {
+                setAvailability( _result.availability );
                 groupInstance.handleConnectivityChange();
             }
 
             // schedule the next test...
-            ISPMonitor.getTimer().schedule( new TimerTask() {
-                @Override
-                public void run() {
-                    executeTest();
-                }
-            }, groupInstance.intervalSeconds * 1000 );
+            scheduleNext();
+        }
+
+
+        /**
+         * Sets our availability, keeping our group's tally of its tests' states up to date.
+         */
+        private void setAvailability( final SystemAvailability _availability ) {
+            groupInstance.testStates.change( availability, _availability );
+            availability = _availability;
+        }
+
+
+        /**
+         * Schedules our next test for the next time in our phase that's still in the future.  Because that's computed from our anchor, rather than
+         * from when our last test finished, we never drift; and if we've fallen behind, we skip the missed times rather than trying to catch up.
+         */
+        private void scheduleNext() {
+
+            long now        = System.currentTimeMillis();
+            long intervalMS = groupInstance.intervalSeconds * 1000L;
+            long next       = (now < anchorMS) ? anchorMS : anchorMS + ((now - anchorMS) / intervalMS + 1) * intervalMS;
+            ISPMonitor.getTimingWheel().schedule( testTimeout, Math.max( 1, next - now ) / 1000.0 );
         }
     }
 }
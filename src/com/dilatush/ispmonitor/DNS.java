@@ -2,74 +2,160 @@ package com.dilatush.ispmonitor;
 
 import org.json.JSONObject;
 
+import java.util.logging.Logger;
+
 import static com.dilatush.ispmonitor.SystemAvailability.*;
 
 /**
+ * Tests a DNS server periodically, keeping rolling statistics of its latency and loss (see {@link RollingStatistics}).  A DNS server that answers
+ * is UP, unless its average latency or its loss ratio over the statistics window is over the router's configured threshold, in which case it's
+ * DEGRADED.  A degraded DNS server must get comfortably below the thresholds (by {@link #RECOVERY_FACTOR}) before it's UP again, so that a server
+ * hovering near a threshold doesn't flap.
+ *
+ * <p>The interval between tests adapts (see {@link ProbeCadence}): it stretches while tests are consistently good, and drops to a quick burst of
+ * tests as soon as one is suspicious (it fails, it needed more than one try, or the server is degraded).  When a test fails, the ISP runs a
+ * confirmation probe of all its DNS servers (see {@link ISP}), so that an outage of the whole ISP is confirmed (or ruled out) quickly.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 /* package-private */ class DNS {
 
+    private static final Logger LOGGER          = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final int    MIN_SAMPLES     = 10;    // the fewest samples we'll judge degradation from...
+    private static final double RECOVERY_FACTOR = 0.75;  // how far under the thresholds a degraded server must be to be UP again...
+
     public final String ip;
     public final int    timeoutMS;
     public final ISP    isp;
 
-    private int                heartbeatsUntilTest;
-    private SystemAvailability availability;
+    private final TimingWheel.Timeout testTimeout;
+    private final DNSProber.Probe     probe;
+    private final RollingStatistics   statistics;
+    private final ProbeCadence        cadence;
+    private SystemAvailability        availability;
 
 
     /* package-private */ DNS( final ISP _isp, final JSONObject _config ) {
 
         // the basics...
-        isp       = _isp;
-        ip        = _config.getString( "ip" );
-        timeoutMS = _config.getInt( "timeoutMS" );
+        isp        = _isp;
+        ip         = _config.getString( "ip" );
+        timeoutMS  = _config.getInt( "timeoutMS" );
+        probe      = new DNSProber.Probe( this::handleDNSResponse, ip, isp.edgeRouter.maxDNSTestTries, timeoutMS );
+        statistics = new RollingStatistics( isp.edgeRouter.dnsStatisticsWindow, isp.edgeRouter.dnsLatencyWeight );
+        cadence    = new ProbeCadence( isp.edgeRouter.minDNSTestIntervalSeconds, isp.edgeRouter.maxDNSTestIntervalSeconds, isp.edgeRouter.random );
 
-        // initially we set the heartbeats until test to 1, so the first heartbeat will kick off a test...
-        heartbeatsUntilTest = 1;
+        // schedule our first test for the next tick...
+        testTimeout = new TimingWheel.Timeout( this::test );
+        ISPMonitor.getTimingWheel().schedule( testTimeout, 1 );
 
         // and the DNS server's availability is unknown at first...
         availability = UNKNOWN;
     }
 
 
-    /* package-private */ void heartbeat() {
+    /**
+     * Kicks off a test of this DNS server; called by the {@link TimingWheel} when the test is due.
+     */
+    private void test() {
 
-        // see if it's time to kick off a test...
-        if( (heartbeatsUntilTest > 0) && (--heartbeatsUntilTest <= 0) ) {
+        // pick a random domain to test...
+        DNSQuery query = isp.edgeRouter.testQueries[ isp.edgeRouter.random.nextInt( isp.edgeRouter.testQueries.length )];
 
-            // pick a random domain to test...
-            String domain = isp.edgeRouter.testDomains[ isp.edgeRouter.random.nextInt( isp.edgeRouter.testDomains.length )];
-
-            // kick off the DNS test query...
-            ISPMonitor.executeTask( new DNSTestQueryTask( this::handleDNSResponse, ip, domain, isp.edgeRouter.maxDNSTestTries, timeoutMS ) );
-        }
+        // kick off the DNS test query...
+        ISPMonitor.getDNSProber().probe( probe, query );
     }
 
 
     private void handleDNSResponse( final DNSResult _dnsResult ) {
 
+        // record our statistics; every try that wasn't answered is a loss...
+        if( _dnsResult.type != DNSResultType.ERROR ) {
+            int losses = (_dnsResult.type == DNSResultType.COMPLETED) ? _dnsResult.actualTries - 1 : _dnsResult.actualTries;
+            for( int i = 0; i < losses; i++ ) {
+                statistics.recordLoss();
+            }
+            if( _dnsResult.type == DNSResultType.COMPLETED )
+                statistics.recordLatency( _dnsResult.rttMicros );
+        }
+
         // figure out what the new availability is...
         SystemAvailability current = UNKNOWN;
         switch( _dnsResult.type ) {
-            case COMPLETED: current = UP;   break;
-            case TIMEOUT:   current = DOWN; break;
+            case COMPLETED: current = isDegraded() ? DEGRADED : UP; break;
+            case FAILED:
+            case TIMEOUT:   current = DOWN;                         break;
         }
 
         // if our availability has changed, update the local availability and let the ISP know there was a change...
         if( current != availability ) {
-            availability = current;
+            LOGGER.info( "DNS server " + ip + " is " + current + " (was " + availability + "): " + statistics );
+            setAvailability( current );
             isp.dnsAvailabilityChanged();
         }
 
-        // figure out when to kick off the next DNS test query...
-        double minSecs = 1.0d * isp.edgeRouter.minDNSTestIntervalSeconds;
-        double maxSecs = 1.0d * isp.edgeRouter.maxDNSTestIntervalSeconds;
-        double nextSecs = minSecs + isp.edgeRouter.random.nextDouble() * (maxSecs - minSecs);
-        heartbeatsUntilTest = ISPMonitor.secondsToTicks( nextSecs );
+        // figure out when to kick off the next DNS test query: sooner if anything looks amiss, later if all is well...
+        boolean suspicious   = (current != UP) || (_dnsResult.actualTries > 1);
+        boolean newSuspicion = suspicious && !cadence.isSuspected();
+        ISPMonitor.getTimingWheel().schedule( testTimeout, cadence.next( suspicious ) );
+
+        // if we just failed, have the ISP confirm whether it's just us or the whole ISP...
+        if( newSuspicion && (current == DOWN) )
+            isp.dnsSuspected( this );
+    }
+
+
+    /**
+     * Sets the availability of this DNS server as determined by the ISP's confirmation probe.  An answer doesn't clear a degradation that our
+     * statistics show.
+     *
+     * @param _availability the confirmed availability
+     * @return {@code true} if our availability changed
+     */
+    /* package-private */ boolean confirm( final SystemAvailability _availability ) {
+
+        SystemAvailability current = ((_availability == UP) && (availability == DEGRADED)) ? DEGRADED : _availability;
+        if( current == availability )
+            return false;
+
+        LOGGER.info( "DNS server " + ip + " is confirmed " + current + " (was " + availability + ")" );
+        setAvailability( current );
+        return true;
+    }
+
+
+    /**
+     * Sets our availability, keeping our ISP's tally of its DNS servers' states up to date.
+     */
+    private void setAvailability( final SystemAvailability _availability ) {
+        isp.dnsStates.change( availability, _availability );
+        availability = _availability;
+    }
+
+
+    /**
+     * Returns {@code true} if our statistics show that this DNS server is degraded.  If it's already degraded, it stays that way until it's well
+     * under the thresholds.
+     */
+    private boolean isDegraded() {
+
+        // if we don't have enough samples to judge by yet, assume all is well...
+        if( statistics.getSamples() < Math.min( MIN_SAMPLES, isp.edgeRouter.dnsStatisticsWindow ) )
+            return false;
+
+        double scale = (availability == DEGRADED) ? RECOVERY_FACTOR : 1.0;
+        return (statistics.getEWMA()      >= scale * isp.edgeRouter.degradedDNSLatencyMicros)
+            || (statistics.getLossRatio() >= scale * isp.edgeRouter.degradedDNSLossRatio);
     }
 
 
     public SystemAvailability getAvailability() {
         return availability;
     }
+
+
+    /* package-private */ RollingStatistics getStatistics() {
+        return statistics;
+    }
 }
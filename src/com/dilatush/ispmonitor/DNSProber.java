@@ -0,0 +1,427 @@
+package com.dilatush.ispmonitor;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.DNSResultType.*;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * Queries DNS servers to test their availability by seeing if they can resolve a domain name (in other words, queries for A records).  All the
+ * queries are made from a single thread, using one non-blocking {@link DatagramChannel} for each address family (IPv4 and IPv6), multiplexed with a
+ * {@link Selector}.  Responses are matched to queries by their transaction ID (and the address they came from), and retries and timeouts are managed
+ * with a priority queue of deadlines, so any number of DNS servers can be probed at once without any thread blocking on any of them.
+ *
+ * <p>A query that gets no response is retried, with a new transaction ID, up to the specified number of tries.  The timeout for each try is double
+ * that of the previous one, with the total of the timeouts equal to the specified maximum time; a late response to an earlier try still counts.
+ * A response is decoded just enough (see {@link DNSResponse}) to tell whether the DNS server actually answered the query; a server that responds
+ * with an error (like SERVFAIL or REFUSED), or with no answer, has {@link DNSResultType#FAILED}.  The result of each probe, including the
+ * round-trip time of the try that was answered, is posted as an {@link EventType#DNSResult} event.
+ *
+ * <p>Each DNS server has its own {@link Probe}, which is reused for every probe of that server.  The queries are precompiled {@link DNSQuery}s,
+ * responses are received into a single reused buffer, and transaction IDs are looked up in a table indexed by the ID, so once things are warmed up,
+ * probing a DNS server allocates nothing at all (except that posting its result allocates a queue slot, unless the event queue is backed by its
+ * ring; see {@link EventQueue}).  The "bench" directory's DNSProberAllocation measures this.
+ *
+ * <p>Instances of this class are threadsafe; {@link #probe(Probe, DNSQuery)} may be called from any thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class DNSProber {
+
+    private static final Logger LOGGER                = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final int    DNS_PORT              = 53;
+    private static final int    DNS_ANSWER_MAX_LENGTH = 1500;
+    private static final int    TRANSACTION_IDS       = 0x10000;
+
+    private final Selector                 selector;
+    private final DatagramChannel          ipv4;
+    private final DatagramChannel          ipv6;       // null if this host doesn't support IPv6...
+    private final ArrayDeque<Probe>        submitted;  // probes submitted but not yet started by our thread; guarded by itself...
+    private final Probe[]                  inFlight;   // indexed by transaction ID; only used by our thread...
+    private final PriorityQueue<Probe>     timeouts;   // probes waiting for a response, by timeout; only used by our thread...
+    private final ByteBuffer               received;   // only used by our thread...
+    private final SplittableRandom         random;     // only used by our thread...
+    private final Consumer<SelectionKey>   onReady;
+
+
+    /**
+     * Creates a new instance of {@link DNSProber}, opening its channels and starting its thread.
+     *
+     * @throws IOException on any problem opening the selector or the IPv4 channel
+     */
+    /* package-private */ DNSProber() throws IOException {
+
+        selector  = Selector.open();
+        ipv4      = open( StandardProtocolFamily.INET );
+        ipv6      = openIfSupported( StandardProtocolFamily.INET6 );
+        submitted = new ArrayDeque<>();
+        inFlight  = new Probe[TRANSACTION_IDS];
+        timeouts  = new PriorityQueue<>();
+        received  = ByteBuffer.allocateDirect( DNS_ANSWER_MAX_LENGTH );
+        random    = new SplittableRandom( new SecureRandom().nextLong() );
+        onReady   = this::ready;
+
+        Thread thread = new Thread( this::run, "DNSProber" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Starts the specified probe, querying its DNS server with the specified query.  This method returns immediately; the result is posted as an
+     * {@link EventType#DNSResult} event, whose handler is the probe's handler.  A probe may not be started again until its result has been posted.
+     *
+     * @param _probe the probe to start
+     * @param _query the query to send
+     */
+    /* package-private */ void probe( final Probe _probe, final DNSQuery _query ) {
+
+        // sanity checks...
+        if( isNull( _probe ) || isNull( _query ) )
+            throw new IllegalArgumentException( "Probe or query missing" );
+        if( _probe.busy )
+            throw new IllegalStateException( "Probe of " + _probe.result.ip + " is already in progress" );
+
+        _probe.busy  = true;
+        _probe.query = _query;
+        synchronized( submitted ) {
+            submitted.add( _probe );
+        }
+        selector.wakeup();
+    }
+
+
+    /**
+     * The body of our thread: start any submitted probes, wait for responses (or the next timeout), then handle the responses and timeouts.
+     */
+    private void run() {
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+
+            // we catch everything except Errors here, log them, then ignore them, so that we don't terminate this thread...
+            try {
+
+                // start anything that's been submitted...
+                Probe probe;
+                while( (probe = nextSubmitted()) != null ) {
+                    start( probe );
+                }
+
+                // wait for something to happen, but no longer than until the next timeout, reading any responses we got...
+                Probe next = timeouts.peek();
+                if( next == null )
+                    selector.select( onReady );
+                else {
+                    long waitMS = TimeUnit.NANOSECONDS.toMillis( next.timeoutNanos - System.nanoTime() + 999_999 );  // rounded up...
+                    if( waitMS > 0 )
+                        selector.select( onReady, waitMS );
+                    else
+                        selector.selectNow( onReady );
+                }
+
+                // handle any timeouts...
+                long now = System.nanoTime();
+                while( !timeouts.isEmpty() && (timeouts.peek().timeoutNanos - now <= 0) ) {
+                    timeout( timeouts.poll() );
+                }
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in DNS prober", _e );
+            }
+        }
+    }
+
+
+    private Probe nextSubmitted() {
+        synchronized( submitted ) {
+            return submitted.poll();
+        }
+    }
+
+
+    /**
+     * Starts the specified probe, by picking the channel for its DNS server and sending the first try.
+     */
+    private void start( final Probe _probe ) {
+
+        _probe.channel    = (_probe.server.getAddress() instanceof Inet6Address) ? ipv6 : ipv4;
+        _probe.tries      = 0;
+        _probe.timeoutMS  = _probe.firstTimeoutMS;
+        _probe.startNanos = System.nanoTime();
+        if( isNull( _probe.channel ) ) {
+            LOGGER.severe( "IPv6 is not supported on this host; can't query " + _probe.result.ip );
+            finish( _probe, ERROR );
+            return;
+        }
+        send( _probe );
+    }
+
+
+    /**
+     * Sends the next try of the specified probe, with a new transaction ID, and schedules its timeout.
+     */
+    private void send( final Probe _probe ) {
+
+        // pick a transaction ID that isn't already in use...
+        int id;
+        do {
+            id = random.nextInt( TRANSACTION_IDS );
+        } while( inFlight[id] != null );
+
+        // send the query with that ID...
+        try {
+            _probe.channel.send( _probe.query.withID( id ), _probe.server );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Unexpected exception while querying DNS", _e );
+            finish( _probe, ERROR );
+            return;
+        }
+        long now = System.nanoTime();
+        _probe.ids[_probe.tries]       = id;
+        _probe.sentNanos[_probe.tries] = now;
+        _probe.tries++;
+        inFlight[id] = _probe;
+
+        // schedule the timeout for this try...
+        _probe.timeoutNanos = now + TimeUnit.MILLISECONDS.toNanos( _probe.timeoutMS );
+        timeouts.add( _probe );
+    }
+
+
+    /**
+     * Called by the selector for each channel that has datagrams waiting to be read.
+     */
+    private void ready( final SelectionKey _key ) {
+        try {
+            if( _key.isValid() && _key.isReadable() )
+                receive( (DatagramChannel) _key.channel() );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Unexpected exception while reading DNS responses", _e );
+        }
+    }
+
+
+    /**
+     * Reads all the datagrams waiting on the specified channel, completing any probes they're responses to.
+     */
+    private void receive( final DatagramChannel _channel ) throws IOException {
+
+        SocketAddress from;
+        while( true ) {
+
+            received.clear();
+            if( (from = _channel.receive( received )) == null )
+                return;
+
+            // if it isn't a query response, or it doesn't match a probe in flight to the server it came from, ignore it...
+            if( !DNSResponse.isResponse( received ) )
+                continue;
+            long now = System.nanoTime();
+            int id = DNSResponse.id( received );
+            Probe probe = inFlight[id];
+            if( isNull( probe ) || !probe.server.equals( from ) )
+                continue;
+
+            // figure out which try this responds to, so we know its round-trip time...
+            int attempt = 0;
+            while( probe.ids[attempt] != id ) {
+                attempt++;
+            }
+            long rttMicros = TimeUnit.NANOSECONDS.toMicros( now - probe.sentNanos[attempt] );
+
+            // if the DNS server answered our query, it's working; if it responded with an error or without an answer, it isn't...
+            int     rcode     = DNSResponse.rcode( received );
+            int     answers   = DNSResponse.answerCount( received );
+            boolean truncated = DNSResponse.isTruncated( received );
+            boolean answered  = (rcode == DNSResponse.RCODE_NOERROR) && ((answers > 0) || truncated);
+
+            // either way, we're done...
+            timeouts.remove( probe );
+            finish( probe, answered ? COMPLETED : FAILED, now, rcode, answers, truncated, rttMicros );
+        }
+    }
+
+
+    /**
+     * Handles the timeout of the latest try of the specified probe: either try again or give up.
+     */
+    private void timeout( final Probe _probe ) {
+
+        // if we're out of tries, it's a timeout...
+        if( _probe.tries >= _probe.ids.length ) {
+            finish( _probe, TIMEOUT );
+            return;
+        }
+
+        // otherwise try again, with double the timeout...
+        _probe.timeoutMS += _probe.timeoutMS;
+        send( _probe );
+    }
+
+
+    /**
+     * Finishes the specified probe, which got no response, posting its result.
+     */
+    private void finish( final Probe _probe, final DNSResultType _type ) {
+        release( _probe );
+        _probe.result.set( _type, 0, _probe.tries );
+        post( _probe );
+    }
+
+
+    /**
+     * Finishes the specified probe, which got a response with the specified contents at the specified time, posting its result.
+     */
+    private void finish( final Probe _probe, final DNSResultType _type, final long _nowNanos,
+                         final int _rcode, final int _answers, final boolean _truncated, final long _rttMicros ) {
+        release( _probe );
+        long actualTime = TimeUnit.NANOSECONDS.toMillis( _nowNanos - _probe.startNanos );
+        _probe.result.set( _type, actualTime, _probe.tries, _rcode, _answers, _truncated, _rttMicros );
+        post( _probe );
+    }
+
+
+    private void release( final Probe _probe ) {
+        for( int i = 0; i < _probe.tries; i++ ) {
+            inFlight[_probe.ids[i]] = null;
+        }
+    }
+
+
+    private void post( final Probe _probe ) {
+        _probe.busy = false;
+        ISPMonitor.postEvent( _probe.event );
+    }
+
+
+    private DatagramChannel open( final StandardProtocolFamily _family ) throws IOException {
+        DatagramChannel channel = DatagramChannel.open( _family );
+        channel.configureBlocking( false );
+        channel.register( selector, SelectionKey.OP_READ );
+        return channel;
+    }
+
+
+    private DatagramChannel openIfSupported( final StandardProtocolFamily _family ) {
+        try {
+            return open( _family );
+        }
+        catch( IOException | UnsupportedOperationException _e ) {
+            LOGGER.info( "DNS prober can't open a " + _family + " channel; only IPv4 DNS servers can be probed" );
+            return null;
+        }
+    }
+
+
+    /**
+     * The state of probes of a single DNS server, each of which may involve several tries.  Each DNS server owns one instance, which is reused for
+     * every probe of that server, along with the result and event that report each probe.  Other than {@link #busy} and {@link #query}, which are
+     * set when a probe is submitted, only used by the prober's thread.
+     */
+    /* package-private */ static class Probe implements Comparable<Probe> {
+
+        private final InetSocketAddress server;
+        private final DNSResult         result;
+        private final Event             event;
+        private final int[]             ids;             // the transaction ID of each try...
+        private final long[]            sentNanos;       // when each try was sent...
+        private final int               firstTimeoutMS;
+
+        private volatile boolean        busy;            // true from when a probe is submitted until its result is posted...
+        private DNSQuery                query;
+        private DatagramChannel         channel;
+        private long                    startNanos;
+        private long                    timeoutNanos;    // when the current try times out...
+        private int                     timeoutMS;       // the timeout for the current try...
+        private int                     tries;           // the number of tries made so far...
+
+
+        /**
+         * Creates a new instance of {@link Probe} for the specified DNS server, which will make no more than the specified number of tries,
+         * waiting no more than the specified maximum amount of time in total.
+         *
+         * @param _handler the handler for the results of probes
+         * @param _dnsServer  the DNS server, which must be a dotted-form IP address (like 8.8.8.8)
+         * @param _tries  the number of tries to make
+         * @param _maxMs  the maximum number of milliseconds to wait for a response
+         */
+        /* package-private */ Probe( final DNSResultHandler _handler, final String _dnsServer, final int _tries, final int _maxMs ) {
+            this( _handler, serverAddress( _dnsServer ), _dnsServer, _tries, _maxMs );
+        }
+
+
+        /**
+         * Creates a new instance of {@link Probe} for the DNS server at the specified socket address (which need not be on the standard DNS port),
+         * which will make no more than the specified number of tries, waiting no more than the specified maximum amount of time in total.
+         *
+         * @param _handler the handler for the results of probes
+         * @param _server  the DNS server's IP address and port
+         * @param _tries  the number of tries to make
+         * @param _maxMs  the maximum number of milliseconds to wait for a response
+         */
+        /* package-private */ Probe( final DNSResultHandler _handler, final InetSocketAddress _server, final int _tries, final int _maxMs ) {
+            this( _handler, _server, isNull( _server ) ? null : _server.getHostString(), _tries, _maxMs );
+        }
+
+
+        private Probe( final DNSResultHandler _handler, final InetSocketAddress _server, final String _ip, final int _tries, final int _maxMs ) {
+
+            // sanity checks...
+            if( isNull( _handler ) || isNull( _server ) )
+                throw new IllegalArgumentException( "Handler or DNS server missing" );
+            if( (_tries < 1) || (_tries > 30) )
+                throw new IllegalArgumentException( "Number of tries out of range: " + _tries );
+
+            server         = _server;
+            result         = new DNSResult( _handler, _ip );
+            event          = new Event( EventType.DNSResult, result );
+            ids            = new int[_tries];
+            sentNanos      = new long[_tries];
+            firstTimeoutMS = Math.max( 1, _maxMs / ((1 << _tries) - 1) );
+        }
+
+
+        private static InetSocketAddress serverAddress( final String _dnsServer ) {
+
+            // sanity check...
+            if( isEmpty( _dnsServer ) )
+                throw new IllegalArgumentException( "DNS server missing" );
+
+            try {
+                return new InetSocketAddress( InetAddress.getByName( _dnsServer ), DNS_PORT );
+            }
+            catch( UnknownHostException _e ) {
+                throw new IllegalArgumentException( "Invalid DNS server: " + _dnsServer, _e );
+            }
+        }
+
+
+        @Override
+        public int compareTo( final Probe _other ) {
+            return Long.compare( timeoutNanos - _other.timeoutNanos, 0 );
+        }
+    }
+}
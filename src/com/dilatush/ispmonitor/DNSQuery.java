@@ -0,0 +1,109 @@
+package com.dilatush.ispmonitor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A DNS query datagram (see RFC 1035, sections 4.1.1 and 4.1.2) for the A record of a particular domain, compiled once into wire format so that it
+ * can be sent any number of times without being rebuilt.  The query is held in a direct buffer; each time it's sent, only the transaction ID (the
+ * first two bytes) is patched.  Instances are compiled once at startup (see {@link EdgeRouter}), and thereafter are used only by the
+ * {@link DNSProber}'s thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class DNSQuery {
+
+    /* package-private */ static final int HEADER_LENGTH = 12;
+
+    /* package-private */ final String domain;
+
+    private final ByteBuffer query;
+
+
+    private DNSQuery( final String _domain, final ByteBuffer _query ) {
+        domain = _domain;
+        query  = _query;
+    }
+
+
+    /**
+     * Compiles a query for the A record of the specified domain (like "google.com").
+     *
+     * @param _domain the domain to query for
+     * @return the compiled query
+     */
+    /* package-private */ static DNSQuery compile( final String _domain ) {
+
+        // sanity check...
+        if( isEmpty( _domain ) )
+            throw new IllegalArgumentException( "Domain missing" );
+
+        // figure out how big our query is: the header, a length byte and the characters for each label, a terminator, and QTYPE and QCLASS...
+        String[] labels = _domain.trim().split( "\\." );
+        int length = HEADER_LENGTH + 1 + 4;
+        for( String label : labels ) {
+            if( label.isEmpty() || (label.length() > 63) )
+                throw new IllegalArgumentException( "Invalid domain: " + _domain );
+            length += 1 + label.length();
+        }
+        ByteBuffer query = ByteBuffer.allocateDirect( length );
+
+        // first the header...
+        query.putShort( (short) 0 );          // ID field (filled in for each try)...
+        query.putShort( (short) 0x0100 );     // QR, OPCODE, AA, TC, RD (set), RA, Z, and RCODE fields...
+        query.putShort( (short) 1 );          // QDCOUNT field...
+        query.putShort( (short) 0 );          // ANCOUNT field...
+        query.putShort( (short) 0 );          // NSCOUNT field...
+        query.putShort( (short) 0 );          // ARCOUNT field...
+
+        // then the question section...
+        for( String label : labels ) {
+            query.put( (byte) label.length() );                           // the label length...
+            query.put( label.getBytes( StandardCharsets.US_ASCII ) );     // the label characters...
+        }
+        query.put( (byte) 0 );                                            // the label terminator...
+        query.putShort( (short) 1 );                                      // QTYPE field (A record)...
+        query.putShort( (short) 1 );                                      // QCLASS field (Internet)...
+
+        return new DNSQuery( _domain.trim(), query );
+    }
+
+
+    /**
+     * Compiles a query for each of the domains in the specified comma-separated list.
+     *
+     * @param _domains the comma-separated list of domains
+     * @return the compiled queries
+     */
+    /* package-private */ static DNSQuery[] compileAll( final String _domains ) {
+
+        String[] domains = _domains.split( "," );
+        DNSQuery[] queries = new DNSQuery[domains.length];
+        for( int i = 0; i < domains.length; i++ ) {
+            queries[i] = compile( domains[i] );
+        }
+        return queries;
+    }
+
+
+    /**
+     * Returns this query, ready to send, with the specified transaction ID patched in.  The returned buffer is reused for every send, so it must be
+     * sent before this method is called again.
+     *
+     * @param _id the transaction ID for this try
+     * @return the buffer holding the query
+     */
+    /* package-private */ ByteBuffer withID( final int _id ) {
+        query.put( 0, (byte) (_id >>> 8) );
+        query.put( 1, (byte) _id );
+        query.clear();
+        return query;
+    }
+
+
+    public String toString() {
+        return domain;
+    }
+}
@@ -0,0 +1,82 @@
+package com.dilatush.ispmonitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the few fields of a DNS response header (see RFC 1035, section 4.1.1) that we need to judge the health of a DNS server.  The fields are
+ * read directly from the buffer the response was received into (from its start up to its position), so decoding allocates nothing.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ final class DNSResponse {
+
+    /* package-private */ static final int RCODE_NOERROR  = 0;
+    /* package-private */ static final int RCODE_SERVFAIL = 2;
+    /* package-private */ static final int RCODE_NXDOMAIN = 3;
+    /* package-private */ static final int RCODE_REFUSED  = 5;
+
+    private static final int QR_BIT   = 0x8000;
+    private static final int OPCODE   = 0x7800;
+    private static final int TC_BIT   = 0x0200;
+    private static final int RCODE    = 0x000F;
+
+
+    private DNSResponse() {
+    }
+
+
+    /**
+     * Returns {@code true} if the specified buffer holds something that looks like a response to a standard query: it has a complete header, its QR
+     * bit is set, and its opcode is zero.
+     *
+     * @param _response the buffer holding the received datagram
+     * @return {@code true} if the datagram is a standard query response
+     */
+    /* package-private */ static boolean isResponse( final ByteBuffer _response ) {
+        return (_response.position() >= DNSQuery.HEADER_LENGTH) && ((flags( _response ) & (QR_BIT | OPCODE)) == QR_BIT);
+    }
+
+
+    /* package-private */ static int id( final ByteBuffer _response ) {
+        return _response.getShort( 0 ) & 0xFFFF;
+    }
+
+
+    /* package-private */ static int rcode( final ByteBuffer _response ) {
+        return flags( _response ) & RCODE;
+    }
+
+
+    /* package-private */ static boolean isTruncated( final ByteBuffer _response ) {
+        return (flags( _response ) & TC_BIT) != 0;
+    }
+
+
+    /* package-private */ static int answerCount( final ByteBuffer _response ) {
+        return _response.getShort( 6 ) & 0xFFFF;
+    }
+
+
+    /**
+     * Returns a short name for the specified RCODE, for logging.
+     *
+     * @param _rcode the RCODE
+     * @return the name of the RCODE
+     */
+    /* package-private */ static String rcodeName( final int _rcode ) {
+        switch( _rcode ) {
+            case RCODE_NOERROR:  return "NOERROR";
+            case 1:              return "FORMERR";
+            case RCODE_SERVFAIL: return "SERVFAIL";
+            case RCODE_NXDOMAIN: return "NXDOMAIN";
+            case 4:              return "NOTIMP";
+            case RCODE_REFUSED:  return "REFUSED";
+            default:             return "RCODE " + _rcode;
+        }
+    }
+
+
+    private static int flags( final ByteBuffer _response ) {
+        return _response.getShort( 2 ) & 0xFFFF;
+    }
+}
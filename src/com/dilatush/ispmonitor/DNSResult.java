@@ -1,16 +1,26 @@
 package com.dilatush.ispmonitor;
 
 /**
+ * The result of a probe of a DNS server.  If the server responded, the result includes the response's RCODE, answer count, and TC (truncated)
+ * flag, along with the round-trip time of the try that was answered (as opposed to the actual time, which includes any tries that weren't
+ * answered).  The {@link DNSProber} reuses a single instance for every probe of a given DNS server, so a handler should
+ * copy anything it needs to keep rather than holding on to the instance itself.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class DNSResult {
 
     public final DNSResultHandler handler;
-    public final DNSResultType    type;
-    public final long             actualTimeMS;
-    public final int              actualTries;
     public final String           ip;
 
+    public DNSResultType          type;
+    public long                   actualTimeMS;
+    public int                    actualTries;
+    public int                    rcode;         // -1 if there was no response...
+    public int                    answerCount;
+    public boolean                truncated;
+    public long                   rttMicros;     // zero if there was no response...
+
 
     public DNSResult( final DNSResultHandler _handler, final DNSResultType _type, final long _actualTimeMS, final int _actualTries, final String _ip ) {
         handler      = _handler;
@@ -18,10 +28,43 @@ public class DNSResult {
         actualTimeMS = _actualTimeMS;
         actualTries  = _actualTries;
         ip           = _ip;
+        rcode        = -1;
+    }
+
+
+    /* package-private */ DNSResult( final DNSResultHandler _handler, final String _ip ) {
+        this( _handler, null, 0, 0, _ip );
+    }
+
+
+    /**
+     * Sets the outcome of the latest probe of this result's DNS server, when the server didn't respond.
+     */
+    /* package-private */ void set( final DNSResultType _type, final long _actualTimeMS, final int _actualTries ) {
+        set( _type, _actualTimeMS, _actualTries, -1, 0, false, 0 );
+    }
+
+
+    /**
+     * Sets the outcome of the latest probe of this result's DNS server.
+     */
+    /* package-private */ void set( final DNSResultType _type, final long _actualTimeMS, final int _actualTries,
+                                    final int _rcode, final int _answerCount, final boolean _truncated, final long _rttMicros ) {
+        type         = _type;
+        actualTimeMS = _actualTimeMS;
+        actualTries  = _actualTries;
+        rcode        = _rcode;
+        answerCount  = _answerCount;
+        truncated    = _truncated;
+        rttMicros    = _rttMicros;
     }
 
 
     public String toString() {
-        return "Queried " + ip + ", " + type + ", actual time: " + actualTimeMS + "ms; tries: " + actualTries;
+        String result = "Queried " + ip + ", " + type + ", actual time: " + actualTimeMS + "ms; tries: " + actualTries;
+        if( rcode < 0 )
+            return result;
+        return result + "; " + DNSResponse.rcodeName( rcode ) + ", " + answerCount + " answers" + (truncated ? " (truncated)" : "")
+                + ", RTT: " + rttMicros + "us";
     }
 }
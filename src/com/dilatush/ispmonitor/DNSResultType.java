@@ -4,5 +4,8 @@ package com.dilatush.ispmonitor;
  * @author Tom Dilatush  tom@dilatush.com
  */
 public enum DNSResultType {
-    COMPLETED, TIMEOUT, ERROR;
+    COMPLETED,   // the DNS server answered the query...
+    FAILED,      // the DNS server responded, but with an error (like SERVFAIL or REFUSED) or without an answer...
+    TIMEOUT,     // the DNS server never responded...
+    ERROR;       // we couldn't query the DNS server at all...
 }
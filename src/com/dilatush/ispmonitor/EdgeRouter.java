@@ -4,16 +4,24 @@ import com.dilatush.util.Config;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.EventType.ISPChangeNeeded;
+import static com.dilatush.ispmonitor.EventType.RouterISP;
 import static com.dilatush.ispmonitor.ISPChoice.*;
 import static com.dilatush.ispmonitor.SSHResultType.COMPLETED;
+import static com.dilatush.ispmonitor.SystemAvailability.DEGRADED;
 import static com.dilatush.ispmonitor.SystemAvailability.DOWN;
 import static com.dilatush.ispmonitor.SystemAvailability.UP;
+import static com.dilatush.ispmonitor.TaskPriority.CONTROL;
+import static com.dilatush.ispmonitor.TaskPriority.VERIFICATION;
+import static com.dilatush.util.General.isNotNull;
 import static com.dilatush.util.General.isNull;
 
 /**
@@ -21,25 +29,35 @@ import static com.dilatush.util.General.isNull;
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
-public class EdgeRouter {
+public class EdgeRouter implements Failover.Router {
 
     private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
 
+    private static final int DEFAULT_STATE_VALIDITY_SECONDS = 60;
+
     /* package-private */ final String       hostname;
     /* package-private */ final String       user;
     /* package-private */ final String       identityFile;
     /* package-private */ final int          minDNSTestIntervalSeconds;
     /* package-private */ final int          maxDNSTestIntervalSeconds;
     /* package-private */ final int          maxDNSTestTries;
-    /* package-private */ final String[]     testDomains;
+    /* package-private */ final DNSQuery[]   testQueries;
+    /* package-private */ final int          dnsStatisticsWindow;
+    /* package-private */ final double       dnsLatencyWeight;
+    /* package-private */ final long         degradedDNSLatencyMicros;
+    /* package-private */ final double       degradedDNSLossRatio;
     /* package-private */ final Random       random;
     private final Map<String,Command>        commands;
     private final ISP                        primaryISP;
     private final ISP                        secondaryISP;
+    private final RouterAPI                  api;             // null if we control the router by running scripts over SSH...
+
+    private final RouterState                state;           // the ISP the router last confirmed it's using...
+    private final List<Runnable>             queryWaiters;    // the things waiting on the outstanding query of the router...
 
-    private ISPChoice          ispInUse;
     private ISPChoice          ispShouldUse;
     private SystemAvailability availability;
+    private long               changeNeededNanos;   // when we first noticed we should be using a different ISP, or 0 if nobody's asked yet...
 
 
     /**
@@ -58,24 +76,43 @@ public class EdgeRouter {
 
             // the basics...
             hostname                  = routerConfig.getString( "hostname"                  );
+            ISPMonitor.getHostResolver().prefetch( hostname );   // before anything can query the router...
             user                      = routerConfig.optString( "user", null                );
             identityFile              = routerConfig.optString( "identityFile", null        );
-            testDomains               = routerConfig.getString( "testDomains"               ).split( "," );
+            testQueries               = DNSQuery.compileAll( routerConfig.getString( "testDomains" ) );
             minDNSTestIntervalSeconds = routerConfig.getInt(    "minDNSTestIntervalSeconds" );
             maxDNSTestIntervalSeconds = routerConfig.getInt(    "maxDNSTestIntervalSeconds" );
             maxDNSTestTries           = routerConfig.getInt(    "maxDNSTestTries"           );
+            dnsStatisticsWindow       = routerConfig.optInt(    "dnsStatisticsWindow",    50  );
+            dnsLatencyWeight          = routerConfig.optDouble( "dnsLatencyWeight",       0.2 );
+            degradedDNSLatencyMicros  = routerConfig.optInt(    "degradedDNSLatencyMS",   500 ) * 1000L;
+            degradedDNSLossRatio      = routerConfig.optInt(    "degradedDNSLossPercent", 15  ) / 100.0;
 
             // get any commands we might have...
             commands = Command.getCommands( routerConfig, "commands" );
 
-            // get our ISP records...
+            // if we're configured to control the router through its API, get our API client...
+            api = routerConfig.has( "api" ) ? new RouterAPI( hostname, routerConfig.getJSONObject( "api" ) ) : null;
+
+            // get our ISP records (their DNS servers use our random number generator, so we make that first)...
+            random       = new Random( System.currentTimeMillis() + hostname.hashCode() );
             primaryISP   = new ISP( this, routerConfig.getJSONObject( "primaryISP"   ) );
             secondaryISP = new ISP( this, routerConfig.getJSONObject( "secondaryISP" ) );
 
             // set up our initial state...
-            random       = new Random( System.currentTimeMillis() + hostname.hashCode() );
-            ispInUse = UNKNOWN;
+            state = new RouterState( routerConfig.optInt( "stateValiditySeconds", DEFAULT_STATE_VALIDITY_SECONDS ) );
+            queryWaiters = new ArrayList<>();
             availability = SystemAvailability.UNKNOWN;
+
+            // if the router is configured to tell us when its default route changes, listen for it...
+            if( routerConfig.has( "notificationPort" ) ) {
+                try {
+                    new RouterNotificationListener( hostname, routerConfig.getInt( "notificationPort" ) );
+                }
+                catch( SocketException _e ) {
+                    LOGGER.log( Level.SEVERE, "Can't listen for router notifications; the router will only be queried", _e );
+                }
+            }
         }
         catch( JSONException _je ) {
             throw new IllegalArgumentException( "Configuration malformed", _je );
@@ -83,43 +120,84 @@ public class EdgeRouter {
     }
 
 
-    /* package-private */ void heartbeat() {
-
-        // iterate over all the DNS instances, checking to see if it's time to test them again...
-        for( DNS dns : primaryISP.dnss )   { dns.heartbeat(); }
-        for( DNS dns : secondaryISP.dnss ) { dns.heartbeat(); }
-    }
-
-
     /* package-private */ void ispAvailabilityChanged() {
 
-        // figure out which ISP we should be using...
+        // figure out which ISP we should be using; a degraded ISP is better than none, but we'd rather use one that's up...
         if( primaryISP.getAvailability() == UP )
             ispShouldUse = PRIMARY;
         else if( secondaryISP.getAvailability() == UP )
             ispShouldUse = SECONDARY;
+        else if( primaryISP.getAvailability() == DEGRADED )
+            ispShouldUse = PRIMARY;
+        else if( secondaryISP.getAvailability() == DEGRADED )
+            ispShouldUse = SECONDARY;
         else
             ispShouldUse = NONE;
 
         // if what we ARE using and what we SHOULD BE using are different, send an event to notify...
-        if( ispInUse != ispShouldUse )
+        if( state.getISP() != ispShouldUse ) {
+            if( changeNeededNanos == 0 )
+                changeNeededNanos = System.nanoTime();
             ISPMonitor.postEvent( new Event( ISPChangeNeeded, this ) );
+        }
+    }
+
+
+    /**
+     * Returns when we first noticed that the router should be using a different ISP (as {@link System#nanoTime()}), since this method was last
+     * called, or 0 if we haven't.  The failover workflow calls this when it starts, so that its record shows when the need was detected.
+     *
+     * @return when the need to change ISPs was detected, or 0 if it wasn't
+     */
+    /* package-private */ long takeChangeNeededNanos() {
+        long nanos = changeNeededNanos;
+        changeNeededNanos = 0;
+        return nanos;
     }
 
 
     /**
      * Queries the router to get the current ISP that the router is using (as determined by the router's default route).  This command works by
-     * querying the router via SSH; this job is queued and may not execute immediately.  Once the job completes, an {@link Event} of type
-     * {@link EventType#SSHResult} is dispatched, with a payload of {@link SSHResult} that describes the result.  The event handler calls
-     * {@link #handleGetCurrentISP(SSHResult)} to process the result.
+     * querying the router via SSH (or through its API, if so configured; see {@link RouterAPI}); this job is queued (ahead of any routine tasks) and
+     * may not execute immediately.  Once the job completes, an {@link Event} of type {@link EventType#SSHResult} is dispatched, with a payload of
+     * {@link SSHResult} that describes the result.  The event handler calls {@link #handleGetCurrentISP(SSHResult)} to process the result.  If the
+     * router has confirmed its ISP recently enough (see {@link RouterState}), or a query is already outstanding, the router isn't queried again.
      */
     /* package-private */ void getCurrentISP() {
-        ISPMonitor.executeTask( new SSHTask( this::handleGetCurrentISP, hostname, user, identityFile, commands.get( "queryISP" ) ) );
+        getCurrentISP( null );
+    }
+
+
+    /**
+     * Queries the router to get the current ISP that the router is using, just as {@link #getCurrentISP()} does, and runs the specified action
+     * (on the state machine's thread) once the answer is in: right away, if the router has confirmed its ISP recently enough, or when the
+     * outstanding query (whether started by this call or an earlier one) is answered.
+     *
+     * @param _then the action to run when the answer is in, or {@code null} for none
+     */
+    /* package-private */ void getCurrentISP( final Runnable _then ) {
+        if( !state.startQuery() ) {
+            LOGGER.finer( "Not querying router; " + state );
+            if( state.isValid() )
+                run( _then );
+            else if( isNotNull( _then ) )
+                queryWaiters.add( _then );
+            return;
+        }
+        if( isNotNull( _then ) )
+            queryWaiters.add( _then );
+        if( isNotNull( api ) )
+            ISPMonitor.executeTask( api.getCurrentISP( this::handleGetCurrentISP ) );
+        else
+            ISPMonitor.executeTask(
+                    new SSHTask( this::handleGetCurrentISP, hostname, user, identityFile, commands.get( "queryISP" ), VERIFICATION ) );
     }
 
 
     private void handleGetCurrentISP( final SSHResult _sshResult ) {
 
+        state.queryDone();
+
         // if the SSH task completed, then we process the result...
         if( _sshResult.type == COMPLETED ) {
 
@@ -128,31 +206,74 @@ public class EdgeRouter {
 
             // figure out our state by the output from the router script: PRIMARY, SECONDARY, or ERROR...
             if( "PRIMARY".equals( _sshResult.output ) )
-                ispInUse = PRIMARY;
+                confirmISP( PRIMARY );
             else if( "SECONDARY".equals( _sshResult.output ) )
-                ispInUse = SECONDARY;
+                confirmISP( SECONDARY );
 
-            // if we get here, then something bad happened and we don't know which ISP the router is using - but the router itself is up...
+            // if we get here, then something bad happened and we're not sure which ISP the router is using - but the router itself is up...
             else
-                ispInUse = UNKNOWN;
+                state.invalidate();
         }
 
         // otherwise we got an error or timeout, and we have no idea what ISP the router is using - and we assume the router is down...
         else {
-            ispInUse = UNKNOWN;
+            state.forget();
             availability = DOWN;
         }
+
+        // let anything waiting on this answer know it's in...
+        List<Runnable> waiters = new ArrayList<>( queryWaiters );
+        queryWaiters.clear();
+        waiters.forEach( Runnable::run );
+    }
+
+
+    /**
+     * Queries the router to get the current ISP that the router is using, even if the router has confirmed its ISP recently, and runs the specified
+     * action once the answer is in (see {@link #getCurrentISP(Runnable)}).
+     *
+     * @param _then the action to run when the answer is in, or {@code null} for none
+     */
+    @Override
+    public void refreshCurrentISP( final Runnable _then ) {
+        state.invalidate();
+        getCurrentISP( _then );
+    }
+
+
+    /**
+     * Commands the router to switch to the specified ISP (primary or secondary), and runs the specified action (on the state machine's thread) once
+     * the router has answered.  See {@link #setPrimaryISP(Runnable)} and {@link #setSecondaryISP(Runnable)}.
+     *
+     * @param _isp the ISP to switch to
+     * @param _then the action to run when the router has answered, or {@code null} for none
+     */
+    @Override
+    public void switchISP( final ISPChoice _isp, final Runnable _then ) {
+        if( _isp == PRIMARY )
+            setPrimaryISP( _then );
+        else if( _isp == SECONDARY )
+            setSecondaryISP( _then );
+        else
+            throw new IllegalArgumentException( "Can't switch router to ISP: " + _isp );
     }
 
 
     /**
      * Commands the router to set the current ISP that the router is using (as determined by the router's default route) to the primary ISP.  This
-     * command works by commanding the router via SSH; this job is queued and may not execute immediately.  Once the job completes, an {@link Event}
-     * of type {@link EventType#SSHResult} is dispatched, with a payload of {@link SSHResult} that describes the result.  The event handler calls
-     * {@link #handleSetPrimaryISP(SSHResult)} to process the result.
+     * command works by commanding the router via SSH (or through its API, if so configured; see {@link RouterAPI}); this job is queued (ahead of any
+     * other tasks) and may not execute immediately.  Once the job completes, an {@link Event} of type {@link EventType#SSHResult} is dispatched, with
+     * a payload of {@link SSHResult} that describes the result.  The event handler calls {@link #handleSetPrimaryISP(SSHResult)} to process the
+     * result, then runs the specified action.
+     *
+     * @param _then the action to run when the router has answered, or {@code null} for none
      */
-    /* package-private */ void setPrimaryISP() {
-        ISPMonitor.executeTask( new SSHTask( this::handleSetPrimaryISP, hostname, user, identityFile, commands.get( "setPrimaryISP" ) ) );
+    /* package-private */ void setPrimaryISP( final Runnable _then ) {
+        SSHResultHandler handler = _result -> { handleSetPrimaryISP( _result ); run( _then ); };
+        if( isNotNull( api ) )
+            ISPMonitor.executeTask( api.setISP( PRIMARY, handler ) );
+        else
+            ISPMonitor.executeTask( new SSHTask( handler, hostname, user, identityFile, commands.get( "setPrimaryISP" ), CONTROL ) );
     }
 
 
@@ -166,16 +287,16 @@ public class EdgeRouter {
 
             // figure out our state by the output from the router script: PRIMARY, SECONDARY, or ERROR...
             if( "SUCCESS".equals( _sshResult.output ) )
-                ispInUse = PRIMARY;
+                confirmISP( PRIMARY );
 
-            // if we get here, then something bad happened and we don't know which ISP the router is using - but the router itself is up...
+            // if we get here, then something bad happened and we're not sure which ISP the router is using - but the router itself is up...
             else
-                ispInUse = UNKNOWN;
+                state.invalidate();
         }
 
         // otherwise we got an error or timeout, and we have no idea what ISP the router is using - and we assume the router is down...
         else {
-            ispInUse = UNKNOWN;
+            state.forget();
             availability = DOWN;
         }
     }
@@ -183,16 +304,23 @@ public class EdgeRouter {
 
     /**
      * Commands the router to set the current ISP that the router is using (as determined by the router's default route) to the secondary ISP.  This
-     * command works by commanding the router via SSH; this job is queued and may not execute immediately.  Once the job completes, an {@link Event}
-     * of type {@link EventType#SSHResult} is dispatched, with a payload of {@link SSHResult} that describes the result.  The event handler calls
-     * {@link #handleSetSecondaryISP(SSHResult)} to process the result.
+     * command works by commanding the router via SSH (or through its API, if so configured; see {@link RouterAPI}); this job is queued (ahead of any
+     * other tasks) and may not execute immediately.  Once the job completes, an {@link Event} of type {@link EventType#SSHResult} is dispatched, with
+     * a payload of {@link SSHResult} that describes the result.  The event handler calls {@link #handleSetSecondaryISP(SSHResult)} to process the
+     * result, then runs the specified action.
+     *
+     * @param _then the action to run when the router has answered, or {@code null} for none
      */
-    /* package-private */ void setSecondaryISP() {
-        ISPMonitor.executeTask( new SSHTask( this::handleSetPrimaryISP, hostname, user, identityFile, commands.get( "setSecondaryISP" ) ) );
+    /* package-private */ void setSecondaryISP( final Runnable _then ) {
+        SSHResultHandler handler = _result -> { handleSetSecondaryISP( _result ); run( _then ); };
+        if( isNotNull( api ) )
+            ISPMonitor.executeTask( api.setISP( SECONDARY, handler ) );
+        else
+            ISPMonitor.executeTask( new SSHTask( handler, hostname, user, identityFile, commands.get( "setSecondaryISP" ), CONTROL ) );
     }
 
 
-    private void handleSetSecondaryISP( final SSHResult _sshResult ) throws IOException {
+    private void handleSetSecondaryISP( final SSHResult _sshResult ) {
 
         // if the SSH task completed, then we process the result...
         if( _sshResult.type == COMPLETED ) {
@@ -202,23 +330,84 @@ public class EdgeRouter {
 
             // figure out our state by the output from the router script: PRIMARY, SECONDARY, or ERROR...
             if( "SUCCESS".equals( _sshResult.output ) )
-                ispInUse = SECONDARY;
+                confirmISP( SECONDARY );
 
-                // if we get here, then something bad happened and we don't know which ISP the router is using - but the router itself is up...
+            // if we get here, then something bad happened and we're not sure which ISP the router is using - but the router itself is up...
             else
-                ispInUse = UNKNOWN;
+                state.invalidate();
         }
 
         // otherwise we got an error or timeout, and we have no idea what ISP the router is using - and we assume the router is down...
         else {
-            ispInUse = UNKNOWN;
+            state.forget();
             availability = DOWN;
         }
     }
 
 
+    /**
+     * Handles a notification pushed by the router (see {@link RouterNotificationListener}) that its default route has changed.  If the notification
+     * names the ISP the router is now using, that's as good as a query; otherwise we query the router to find out.
+     *
+     * @param _isp the ISP the router says it's using, or {@link ISPChoice#UNKNOWN} if it didn't say
+     */
+    /* package-private */ void handleNotification( final ISPChoice _isp ) {
+
+        // the router told us something, so it's up...
+        availability = UP;
+
+        if( (_isp == PRIMARY) || (_isp == SECONDARY) )
+            confirmISP( _isp );
+        else
+            refreshCurrentISP( null );
+    }
+
+
+    /**
+     * Records that the router has told us it's using the specified ISP.  If that's a different ISP than it was using the last time it told us, posts
+     * an {@link Event} of type {@link EventType#RouterISP}, so that anything riding on the old ISP's path (like our SSH tunnels) can move to the new
+     * one.
+     *
+     * @param _isp the ISP the router is using
+     */
+    private void confirmISP( final ISPChoice _isp ) {
+        if( state.confirm( _isp ) )
+            ISPMonitor.postEvent( new Event( RouterISP, _isp ) );
+    }
+
+
+    /**
+     * Returns the ISP the router last confirmed it was using, or {@link ISPChoice#UNKNOWN} if it hasn't (or the router seems to be down).  The
+     * router isn't queried; see {@link #getCurrentISP()}.
+     *
+     * @return the ISP the router is using
+     */
+    @Override
     public ISPChoice getIspInUse() {
-        return ispInUse;
+        return state.getISP();
+    }
+
+
+    /**
+     * Returns {@code true} if the router has confirmed the ISP it's using recently enough, and nothing since has cast doubt on it (see
+     * {@link RouterState#isValid()}).
+     *
+     * @return {@code true} if the ISP returned by {@link #getIspInUse()} is confirmed
+     */
+    @Override
+    public boolean isISPConfirmed() {
+        return state.isValid();
+    }
+
+
+    /**
+     * Returns the specified ISP's record, or {@code null} if it's neither the primary nor the secondary ISP.
+     *
+     * @param _isp the ISP whose record is desired
+     * @return the ISP's record
+     */
+    /* package-private */ ISP getISP( final ISPChoice _isp ) {
+        return (_isp == PRIMARY) ? primaryISP : (_isp == SECONDARY) ? secondaryISP : null;
     }
 
 
@@ -230,4 +419,10 @@ public class EdgeRouter {
     public SystemAvailability getAvailability() {
         return availability;
     }
+
+
+    private static void run( final Runnable _action ) {
+        if( isNotNull( _action ) )
+            _action.run();
+    }
 }
@@ -40,6 +40,24 @@ public class Event {
     }
 
 
+    /**
+     * Returns the subject of this event, which identifies the thing the event is about: the post office for {@link EventType#PostOfficeTest}, the
+     * result itself for {@link EventType#DNSResult} (each DNS probe reuses its own result, and a DNS server may have several probes running at
+     * once), the test name for {@link EventType#ConnectivityTest}, and the event type itself for any other event type.  Two waiting events of a
+     * coalescing type with equal subjects are coalesced by the {@link EventQueue}.
+     *
+     * @return the subject of this event
+     */
+    /* package-private */ Object getSubject() {
+        switch( type ) {
+            case PostOfficeTest:   return ((POTestResult)           payload).postOffice;
+            case DNSResult:        return payload;
+            case ConnectivityTest: return ((ConnectivityTestResult) payload).name;
+            default:               return type;
+        }
+    }
+
+
     public String toString() {
         if( isNull( payload ) )
             return type.toString();
@@ -1,6 +1,14 @@
 package com.dilatush.ispmonitor;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.SEVERE;
@@ -11,28 +19,89 @@ import static java.util.logging.Level.SEVERE;
  * processing for responsive operation.  That is, any event that blocked or consumed significant compute resources would hold up all other event
  * processing.
  *
+ * <p>When events arrive faster than they're handled, the queue sheds load according to the event's type (see {@link EventType}): events of a
+ * coalescing type replace a waiting event with the same subject, and droppable events are dropped once the queue is full.  Events that are neither
+ * are always queued, even past the limit.  The number of events coalesced, dropped, and queued past the limit are all counted, as is the deepest
+ * the queue has been, so that the limit can be sized appropriately.
+ *
+ * <p>Optionally, the queue can instead be backed by a lock-free {@link EventRing}, whose slots are allocated once and reused, so that posting and
+ * dispatching an event allocates nothing (and so heartbeats create no garbage at all).  In this mode only events whose subject is
+ * their type (such as {@link EventType#Heartbeat}) are coalesced, and events that can't be dropped when the ring is full go to an overflow queue
+ * (which does allocate, and which may dispatch them slightly out of order) rather than being lost.  The maximum depth isn't tracked in this mode.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class EventQueue extends Thread {
 
     private static final Logger LOGGER                    = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
     private static final int    DEFAULT_MAX_QUEUED_EVENTS = 100;
+    private static final long   MAX_PARK_NANOS            = TimeUnit.MILLISECONDS.toNanos( 10 );
 
-    private final LinkedBlockingQueue<Event> events;
-    private final StateMachine               stateMachine;
+    private final ArrayDeque<Slot>                     events;      // in queue mode; guarded by this instance...
+    private final EnumMap<EventType, Map<Object,Slot>> waiting;     // in queue mode, waiting coalescable events by type and subject...
+    private final EventRing                            ring;        // in ring mode; null in queue mode...
+    private final ConcurrentLinkedQueue<Event>         overflow;    // in ring mode, essential events that didn't fit in the ring...
+    private final AtomicIntegerArray                   typeWaiting; // in ring mode, 1 if an event of the type (by ordinal) is waiting...
+    private final StateMachine                         stateMachine;
+    private final int                                  limit;
+    private final AtomicLong                           coalesced;
+    private final AtomicLong                           dropped;
+    private final AtomicLong                           overLimit;
 
+    private int                                        maxDepth;    // in queue mode; guarded by this instance...
+    private volatile boolean                           parked;      // in ring mode, true if this thread is (or is about to be) parked...
 
-    public EventQueue( final StateMachine _stateMachine, final int _limit ) {
+
+    /**
+     * Creates a new instance of {@link EventQueue} that dispatches events to the specified state machine, holding the specified number of events
+     * before shedding load, and starts its dispatching thread.
+     *
+     * @param _stateMachine the state machine to dispatch events to
+     * @param _limit the number of events that may be waiting before load is shed (in ring mode, rounded up to a power of two)
+     * @param _useRing if {@code true}, the queue is backed by a lock-free {@link EventRing}
+     */
+    public EventQueue( final StateMachine _stateMachine, final int _limit, final boolean _useRing ) {
         stateMachine = _stateMachine;
-        events = new LinkedBlockingQueue<>( _limit );
+        coalesced    = new AtomicLong();
+        dropped      = new AtomicLong();
+        overLimit    = new AtomicLong();
+        waiting      = new EnumMap<>( EventType.class );
+        if( _useRing ) {
+            ring        = new EventRing( _limit );
+            limit       = ring.capacity();
+            overflow    = new ConcurrentLinkedQueue<>();
+            typeWaiting = new AtomicIntegerArray( EventType.values().length );
+            events      = null;
+        }
+        else {
+            ring        = null;
+            limit       = _limit;
+            overflow    = null;
+            typeWaiting = null;
+            events      = new ArrayDeque<>( _limit );
+            for( EventType type : EventType.values() ) {
+                if( type.coalesce )
+                    waiting.put( type, new HashMap<>() );
+            }
+        }
         setName( "EventQueue" );
         setDaemon( true );
         start();
     }
 
 
+    public EventQueue( final StateMachine _stateMachine, final int _limit ) {
+        this( _stateMachine, _limit, false );
+    }
+
+
+    public EventQueue( final StateMachine _stateMachine, final boolean _useRing ) {
+        this( _stateMachine, DEFAULT_MAX_QUEUED_EVENTS, _useRing );
+    }
+
+
     public EventQueue( final StateMachine _stateMachine ) {
-        this( _stateMachine, DEFAULT_MAX_QUEUED_EVENTS );
+        this( _stateMachine, DEFAULT_MAX_QUEUED_EVENTS, false );
     }
 
 
@@ -48,7 +117,7 @@ public class EventQueue extends Thread {
                 // we catch everything except InterruptedExceptions and Errors here, log them, then ignore them, so
                 // that we don't terminate this thread (which keeps the entire state machine running)...
                 try {
-                    stateMachine.handleEvent( events.take() );
+                    stateMachine.handleEvent( take() );
                 }
                 catch( Exception _e ) {
 
@@ -66,7 +135,185 @@ public class EventQueue extends Thread {
 
 
     /* package-private */ void postEvent( final Event _event ) {
-        if( !events.offer( _event ) )
-            throw new IllegalStateException( "Event queue is full" );
+        if( ring == null )
+            postToQueue( _event );
+        else
+            postToRing( _event );
+    }
+
+
+    private synchronized void postToQueue( final Event _event ) {
+
+        // if this event can be coalesced with one that's already waiting, just replace the waiting one...
+        Object subject = null;
+        if( _event.type.coalesce ) {
+            subject = _event.getSubject();
+            Slot slot = waiting.get( _event.type ).get( subject );
+            if( slot != null ) {
+                slot.event = _event;
+                coalesced.incrementAndGet();
+                return;
+            }
+        }
+
+        // if we're full, then drop the event if we can, otherwise queue it anyway...
+        if( events.size() >= limit ) {
+            if( _event.type.droppable ) {
+                dropped.incrementAndGet();
+                return;
+            }
+            overLimit.incrementAndGet();
+            LOGGER.warning( "Event queue is full; queueing " + _event.type + " anyway" );
+        }
+
+        // queue it up...
+        Slot slot = new Slot( _event, subject );
+        events.add( slot );
+        if( _event.type.coalesce )
+            waiting.get( _event.type ).put( subject, slot );
+        if( events.size() > maxDepth )
+            maxDepth = events.size();
+        notify();
+    }
+
+
+    private void postToRing( final Event _event ) {
+
+        // if this event's subject is its type, and one of its type is already waiting, then it's coalesced away...
+        boolean byType = _event.type.coalesce && (_event.getSubject() == _event.type);
+        if( byType && !typeWaiting.compareAndSet( _event.type.ordinal(), 0, 1 ) ) {
+            coalesced.incrementAndGet();
+            return;
+        }
+
+        // if the ring is full, then drop the event if we can, otherwise put it in the overflow queue...
+        if( !ring.offer( _event ) ) {
+            if( _event.type.droppable ) {
+                if( byType )
+                    typeWaiting.set( _event.type.ordinal(), 0 );
+                dropped.incrementAndGet();
+                return;
+            }
+            overLimit.incrementAndGet();
+            LOGGER.warning( "Event ring is full; queueing " + _event.type + " in overflow" );
+            overflow.add( _event );
+        }
+
+        // if our dispatching thread is waiting for something to do, wake it up...
+        if( parked )
+            LockSupport.unpark( this );
+    }
+
+
+    /**
+     * Waits until an event is available, then removes it from the queue (or ring) and returns it.
+     *
+     * @return the next event
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Event take() throws InterruptedException {
+        return (ring == null) ? takeFromQueue() : takeFromRing();
+    }
+
+
+    private synchronized Event takeFromQueue() throws InterruptedException {
+
+        while( events.isEmpty() ) {
+            wait();
+        }
+
+        Slot slot = events.poll();
+        if( slot.event.type.coalesce )
+            waiting.get( slot.event.type ).remove( slot.subject );
+        return slot.event;
+    }
+
+
+    private Event takeFromRing() throws InterruptedException {
+
+        while( true ) {
+
+            // if we've got an event, we're done (but first make room for another of its type, if it's coalesced by type)...
+            Event event = ring.poll();
+            if( event == null )
+                event = overflow.poll();
+            if( event != null ) {
+                if( event.type.coalesce && (event.getSubject() == event.type) )
+                    typeWaiting.set( event.type.ordinal(), 0 );
+                return event;
+            }
+
+            // otherwise, park until a producer wakes us up (checking once more after we say we're parked, in case we raced a producer)...
+            parked = true;
+            if( ring.isEmpty() && overflow.isEmpty() )
+                LockSupport.parkNanos( this, MAX_PARK_NANOS );
+            parked = false;
+            if( interrupted() )
+                throw new InterruptedException( "Event ring interrupted" );
+        }
+    }
+
+
+    /**
+     * Returns the number of events that replaced an event with the same subject that was already waiting.
+     *
+     * @return the number of events coalesced
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+
+    /**
+     * Returns the number of droppable events that were dropped because the queue was full.
+     *
+     * @return the number of events dropped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+
+    /**
+     * Returns the number of events that were queued even though the queue was full, because they couldn't be dropped.
+     *
+     * @return the number of events queued past the limit
+     */
+    public long getOverLimitCount() {
+        return overLimit.get();
+    }
+
+
+    /**
+     * Returns the largest number of events that have been waiting in the queue at once.  This isn't tracked in ring mode, and is always zero.
+     *
+     * @return the maximum queue depth
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+
+    public synchronized String toString() {
+        if( ring != null )
+            return "Event ring: " + coalesced + " coalesced, " + dropped + " dropped, " + overLimit + " overflowed capacity of " + limit;
+        return "Event queue: " + events.size() + " waiting, " + maxDepth + " max, " + coalesced + " coalesced, " + dropped + " dropped, "
+                + overLimit + " over limit of " + limit;
+    }
+
+
+    /**
+     * A place in the queue, holding the most recent event posted for it.
+     */
+    private static class Slot {
+
+        private Event        event;
+        private final Object subject;  // null if the event isn't coalescable...
+
+
+        private Slot( final Event _event, final Object _subject ) {
+            event   = _event;
+            subject = _subject;
+        }
     }
 }
@@ -0,0 +1,116 @@
+package com.dilatush.ispmonitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implements a bounded, lock-free, multiple-producer, single-consumer ring buffer of {@link Event}s.  All the slots are allocated when the ring is
+ * created, and are reused thereafter, so offering and polling events allocates nothing.  Each slot has a sequence number that tells producers when
+ * the slot is free and tells the consumer when the slot has been filled (this is Dmitry Vyukov's bounded queue algorithm, restricted to a single
+ * consumer).
+ *
+ * <p>Any number of threads may call {@link #offer(Event)} concurrently, but only one thread may ever call {@link #poll()}.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class EventRing {
+
+    private final int             capacity;
+    private final int             mask;
+    private final Event[]         events;
+    private final AtomicLongArray sequences;  // for each slot, the tail position it can be filled at, or that position + 1 once it's filled...
+    private final AtomicLong      tail;       // the next position a producer will claim...
+
+    private long                  head;       // the next position the consumer will take; only touched by the consumer...
+
+
+    /**
+     * Creates a new instance of {@link EventRing} with at least the specified capacity.  The actual capacity is rounded up to a power of two.
+     *
+     * @param _minCapacity the minimum number of events this ring must be able to hold
+     */
+    /* package-private */ EventRing( final int _minCapacity ) {
+
+        // sanity check...
+        if( (_minCapacity < 1) || (_minCapacity > (1 << 30)) )
+            throw new IllegalArgumentException( "Ring capacity out of range: " + _minCapacity );
+
+        capacity  = (_minCapacity == 1) ? 1 : Integer.highestOneBit( _minCapacity - 1 ) << 1;
+        mask      = capacity - 1;
+        events    = new Event[capacity];
+        sequences = new AtomicLongArray( capacity );
+        tail      = new AtomicLong();
+        for( int i = 0; i < capacity; i++ ) {
+            sequences.set( i, i );
+        }
+    }
+
+
+    /**
+     * Adds the specified event to this ring, if there is room for it.  May be called from any thread.
+     *
+     * @param _event the event to add
+     * @return {@code true} if the event was added, or {@code false} if the ring was full
+     */
+    /* package-private */ boolean offer( final Event _event ) {
+
+        long pos = tail.get();
+        while( true ) {
+
+            int  index = (int) (pos & mask);
+            long diff  = sequences.get( index ) - pos;
+
+            // if the slot is free at our position, try to claim it; if we do, fill it and publish it to the consumer...
+            if( diff == 0 ) {
+                if( tail.compareAndSet( pos, pos + 1 ) ) {
+                    events[index] = _event;
+                    sequences.set( index, pos + 1 );
+                    return true;
+                }
+                pos = tail.get();
+            }
+
+            // if the slot hasn't been consumed from the last time around, we're full...
+            else if( diff < 0 )
+                return false;
+
+            // otherwise another producer beat us to this position, so try again at the current tail...
+            else
+                pos = tail.get();
+        }
+    }
+
+
+    /**
+     * Removes and returns the oldest event in this ring, or returns {@code null} if the ring is empty.  Must only be called from the consumer thread.
+     *
+     * @return the oldest event, or {@code null} if none
+     */
+    /* package-private */ Event poll() {
+
+        int index = (int) (head & mask);
+        if( sequences.get( index ) != head + 1 )
+            return null;
+
+        Event event = events[index];
+        events[index] = null;
+        sequences.lazySet( index, head + capacity );  // free the slot for the producers' next time around...
+        head++;
+        return event;
+    }
+
+
+    /**
+     * Returns {@code true} if this ring has no events to be consumed.  Must only be called from the consumer thread.
+     *
+     * @return {@code true} if this ring is empty
+     */
+    /* package-private */ boolean isEmpty() {
+        return sequences.get( (int) (head & mask) ) != head + 1;
+    }
+
+
+    /* package-private */ int capacity() {
+        return capacity;
+    }
+}
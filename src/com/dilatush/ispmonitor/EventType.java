@@ -1,25 +1,40 @@
 package com.dilatush.ispmonitor;
 
+import com.dilatush.mop.Message;
+
 /**
- * Enumerates all the possible events that can occur to the ISPMonitor {@link StateMachine}.
+ * Enumerates all the possible events that can occur to the ISPMonitor {@link StateMachine}.  Each event type also specifies how the
+ * {@link EventQueue} treats it when events are arriving faster than they're being handled:
+ * <ul>
+ *     <li><b>coalesce</b>: if an event of this type with the same subject (see {@link Event#getSubject()}) is already waiting in the queue, the
+ *     new event replaces the waiting one (keeping its place in the queue), rather than being queued separately.</li>
+ *     <li><b>droppable</b>: if the queue is full, an event of this type is dropped.  Events that aren't droppable are queued even when the queue
+ *     is full, as something (such as a handler waiting for an SSH result) depends on them.</li>
+ * </ul>
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public enum EventType {
 
-    Heartbeat                       ( null                         ),
-    Start                           ( null                         ),
-    SSHResult                       ( SSHResult.class              ),
-    DNSResult                       ( DNSResult.class              ),
-    ISPAvailabilityChanged          ( ISP.class                    ),
-    ISPChangeNeeded                 ( EdgeRouter.class             ),
-    PostOfficeTest                  ( POTestResult.class           ),
-    RouterISP                       ( ISPChoice.class              ),
-    ConnectivityTest                ( ConnectivityTestResult.class );
+    Heartbeat                       ( null,                          true,  false ),   // posted by the TimingWheel when something is due...
+    Start                           ( null,                          false, false ),
+    SSHResult                       ( SSHResult.class,               false, false ),
+    DNSResult                       ( DNSResult.class,               true,  false ),
+    ISPAvailabilityChanged          ( ISP.class,                     false, false ),
+    ISPChangeNeeded                 ( EdgeRouter.class,              false, false ),
+    PostOfficeTest                  ( POTestResult.class,            true,  true  ),
+    RouterISP                       ( ISPChoice.class,               false, false ),
+    RouterNotification              ( ISPChoice.class,               true,  false ),   // pushed by the router when its default route changes...
+    ConnectivityTest                ( ConnectivityTestResult.class,  true,  false ),
+    MOPRequest                      ( Message.class,                 false, true  );   // a request sent to our MOP mailbox...
 
-    public final Class payloadClass;
+    public final Class   payloadClass;
+    public final boolean coalesce;
+    public final boolean droppable;
 
-    private EventType( final Class _payloadClass ) {
+    private EventType( final Class _payloadClass, final boolean _coalesce, final boolean _droppable ) {
         payloadClass = _payloadClass;
+        coalesce     = _coalesce;
+        droppable    = _droppable;
     }
 }
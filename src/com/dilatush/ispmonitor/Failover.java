@@ -0,0 +1,259 @@
+package com.dilatush.ispmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.FailoverRecord.Phase.*;
+import static com.dilatush.ispmonitor.SystemAvailability.DOWN;
+
+/**
+ * Switches the router from one ISP to the other, along with everything that depends on it, timing each phase into a {@link FailoverRecord}:
+ * <ol>
+ *     <li><b>Tear down</b>: the remote services that depend on the path to the Internet (those configured with "stopForFailover") are stopped, if
+ *     they're running.  Our SSH tunnels are <i>not</i> torn down; they're migrated make-before-break as soon as the router confirms the switch (see
+ *     {@link SSHTunnel#migrate()}), so they're dark for far less time than a teardown and restart would take.</li>
+ *     <li><b>Switch</b>: the router is commanded to switch ISPs, and must confirm that it did.</li>
+ *     <li><b>Verify</b>: the router is queried afresh, and must confirm that it's using the new ISP.</li>
+ *     <li><b>Restore</b>: the services that were stopped are started again.  This is done even if the switch or verification failed, as the services
+ *     are better off running on whatever path there is than not running at all.</li>
+ * </ol>
+ * Each phase must finish within the phase timeout.  A teardown or restoration that doesn't (because a remote host doesn't answer, say) is given up
+ * on, and the failover moves on; a switch or verification that doesn't fails the failover.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe; they're used only from the state machine's thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class Failover {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private enum Step { TEARDOWN, SWITCH, VERIFY, RESTORE, DONE }
+
+    private final Router                   router;
+    private final List<? extends Service>  services;    // the services that depend on the path to the Internet...
+    private final double                   phaseTimeoutSeconds;
+    private final Consumer<FailoverRecord> onDone;
+    private final FailoverRecord           record;
+    private final TimingWheel.Timeout      phaseTimeout;
+    private final List<Service>            stopped;     // the services we stopped, which we'll start again...
+
+    private Step                           step;
+    private int                            pending;     // the number of services we're waiting on in this step...
+
+
+    /**
+     * Creates a new instance of {@link Failover} that will switch the specified router to the specified ISP.
+     *
+     * @param _router the router to switch
+     * @param _services the services that depend on the path to the Internet, which are stopped while the router switches ISPs
+     * @param _to the ISP to switch to
+     * @param _outageNanos when the outage started (as {@link System#nanoTime()})
+     * @param _detectedNanos when the need to switch ISPs was detected (as {@link System#nanoTime()})
+     * @param _phaseTimeoutSeconds the longest each phase may take, in seconds
+     * @param _onDone the action to take, with the failover's record, when the failover is done (successfully or not)
+     */
+    /* package-private */ Failover( final Router _router, final List<? extends Service> _services, final ISPChoice _to, final long _outageNanos,
+                                    final long _detectedNanos, final double _phaseTimeoutSeconds, final Consumer<FailoverRecord> _onDone ) {
+
+        // sanity check...
+        if( _phaseTimeoutSeconds <= 0 )
+            throw new IllegalArgumentException( "Invalid failover phase timeout: " + _phaseTimeoutSeconds );
+
+        router              = _router;
+        services            = _services;
+        phaseTimeoutSeconds = _phaseTimeoutSeconds;
+        onDone              = _onDone;
+        record              = new FailoverRecord( _router.getIspInUse(), _to, _outageNanos, _detectedNanos );
+        phaseTimeout        = new TimingWheel.Timeout( this::handlePhaseTimeout );
+        stopped             = new ArrayList<>();
+    }
+
+
+    /**
+     * Starts this failover, by tearing down the services that depend on the router's ISP.
+     */
+    /* package-private */ void start() {
+
+        LOGGER.info( "Starting failover from " + record.from + " to " + record.to );
+        step    = Step.TEARDOWN;
+        pending = 0;
+
+        // stop every service that depends on the path to the Internet, unless it's already stopped...
+        for( Service service : services ) {
+            if( service.getState() == DOWN )
+                continue;
+            stopped.add( service );
+            pending++;
+            service.stop( () -> serviceDone( Step.TEARDOWN ) );
+        }
+
+        // if we're waiting on services, give them a while; otherwise we can switch right away...
+        if( pending > 0 )
+            ISPMonitor.getTimingWheel().schedule( phaseTimeout, phaseTimeoutSeconds );
+        else
+            switchRouter();
+    }
+
+
+    /**
+     * Called when a service has been stopped or started in the specified step; when the last one is done, moves on to the next step.
+     */
+    private void serviceDone( final Step _step ) {
+
+        // if we've already given up on this step, there's nothing to do...
+        if( step != _step )
+            return;
+
+        if( --pending > 0 )
+            return;
+        ISPMonitor.getTimingWheel().cancel( phaseTimeout );
+        if( step == Step.TEARDOWN )
+            switchRouter();
+        else
+            finish();
+    }
+
+
+    /**
+     * Commands the router to switch ISPs.
+     */
+    private void switchRouter() {
+        record.mark( TORN_DOWN );
+        step = Step.SWITCH;
+        ISPMonitor.getTimingWheel().schedule( phaseTimeout, phaseTimeoutSeconds );
+        router.switchISP( record.to, this::handleSwitch );
+    }
+
+
+    private void handleSwitch() {
+
+        // if we've already given up on the switch, there's nothing to do...
+        if( step != Step.SWITCH )
+            return;
+
+        ISPMonitor.getTimingWheel().cancel( phaseTimeout );
+        if( !usingNewISP() ) {
+            fail( "router did not switch to " + record.to );
+            return;
+        }
+        record.mark( SWITCHED );
+
+        // now make sure the router really is using the new ISP...
+        step = Step.VERIFY;
+        ISPMonitor.getTimingWheel().schedule( phaseTimeout, phaseTimeoutSeconds );
+        router.refreshCurrentISP( this::handleVerify );
+    }
+
+
+    private void handleVerify() {
+
+        // if we've already given up on verifying, there's nothing to do...
+        if( step != Step.VERIFY )
+            return;
+
+        ISPMonitor.getTimingWheel().cancel( phaseTimeout );
+        if( !usingNewISP() ) {
+            fail( "router is not using " + record.to );
+            return;
+        }
+        record.mark( VERIFIED );
+        restore();
+    }
+
+
+    private boolean usingNewISP() {
+        return router.isISPConfirmed() && (router.getIspInUse() == record.to);
+    }
+
+
+    /**
+     * Records the specified failure, and restores the services we stopped.
+     */
+    private void fail( final String _reason ) {
+        LOGGER.warning( "Failover from " + record.from + " to " + record.to + " failed: " + _reason );
+        record.fail( _reason );
+        restore();
+    }
+
+
+    /**
+     * Starts the services we stopped.
+     */
+    private void restore() {
+
+        step    = Step.RESTORE;
+        pending = 0;
+        for( Service service : stopped ) {
+            pending++;
+            service.start( () -> serviceDone( Step.RESTORE ) );
+        }
+
+        if( pending > 0 )
+            ISPMonitor.getTimingWheel().schedule( phaseTimeout, phaseTimeoutSeconds );
+        else
+            finish();
+    }
+
+
+    private void finish() {
+        record.mark( RESTORED );
+        step = Step.DONE;
+        onDone.accept( record );
+    }
+
+
+    /**
+     * Called by the {@link TimingWheel} when the current step has taken too long.
+     */
+    private void handlePhaseTimeout() {
+        switch( step ) {
+
+            case TEARDOWN:
+                LOGGER.warning( pending + " services didn't stop within " + phaseTimeoutSeconds + " seconds; switching ISPs anyway" );
+                switchRouter();
+                break;
+
+            case SWITCH:
+                fail( "router didn't answer the switch within " + phaseTimeoutSeconds + " seconds" );
+                break;
+
+            case VERIFY:
+                fail( "router didn't answer the verification within " + phaseTimeoutSeconds + " seconds" );
+                break;
+
+            case RESTORE:
+                LOGGER.warning( pending + " services didn't start within " + phaseTimeoutSeconds + " seconds" );
+                finish();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * The router a failover switches; implemented by {@link EdgeRouter}.
+     */
+    /* package-private */ interface Router {
+
+        ISPChoice getIspInUse();
+        boolean isISPConfirmed();
+        void switchISP( final ISPChoice _isp, final Runnable _then );
+        void refreshCurrentISP( final Runnable _then );
+    }
+
+
+    /**
+     * A service that a failover stops while the router switches ISPs, then starts again; implemented by {@link RemoteService}.
+     */
+    /* package-private */ interface Service {
+
+        SystemAvailability getState();
+        void stop( final Runnable _then );
+        void start( final Runnable _then );
+    }
+}
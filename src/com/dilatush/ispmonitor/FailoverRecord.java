@@ -0,0 +1,155 @@
+package com.dilatush.ispmonitor;
+
+import org.json.JSONObject;
+
+import static com.dilatush.util.General.isNull;
+
+/**
+ * Records the timing of one failover (see {@link Failover}): when each of its phases was reached, timed with {@link System#nanoTime()}, from the
+ * start of the outage that made it necessary through the restoration of the services that were stopped for it.  The time-to-recovery is the time
+ * from the start of the outage to the end of the last phase; that's the number we tune and alert on.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe; they're used only from the state machine's thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class FailoverRecord {
+
+    /**
+     * The phases of a failover, in the order they're reached.
+     */
+    /* package-private */ enum Phase {
+        OUTAGE,       // the outage started (or, if there wasn't one, the need to switch ISPs was detected)...
+        DETECTED,     // the need to switch ISPs was detected...
+        TORN_DOWN,    // the services that depend on the path to the Internet were stopped...
+        SWITCHED,     // the router confirmed it switched ISPs...
+        VERIFIED,     // a fresh query of the router confirmed it's using the new ISP...
+        RESTORED      // the services that were stopped were started again...
+    }
+
+    /* package-private */ final ISPChoice from;
+    /* package-private */ final ISPChoice to;
+    /* package-private */ final long      startMS;    // when the failover started, in ms since the epoch (for reporting)...
+
+    private final long[] nanos;      // when each phase was reached (System.nanoTime()), or 0 if it hasn't been...
+    private String       failure;    // why the failover failed, or null if it hasn't...
+
+
+    /**
+     * Creates a new instance of {@link FailoverRecord} for a failover from the specified ISP to the specified ISP, for an outage that started at the
+     * specified time, and that was detected at the specified time.
+     *
+     * @param _from the ISP the router was using
+     * @param _to the ISP the router should be using
+     * @param _outageNanos when the outage started (as {@link System#nanoTime()})
+     * @param _detectedNanos when the need to switch ISPs was detected (as {@link System#nanoTime()})
+     */
+    /* package-private */ FailoverRecord( final ISPChoice _from, final ISPChoice _to, final long _outageNanos, final long _detectedNanos ) {
+        from    = _from;
+        to      = _to;
+        startMS = System.currentTimeMillis();
+        nanos   = new long[Phase.values().length];
+        nanos[Phase.OUTAGE.ordinal()]   = _outageNanos;
+        nanos[Phase.DETECTED.ordinal()] = _detectedNanos;
+    }
+
+
+    /**
+     * Records that the specified phase has been reached, now.
+     *
+     * @param _phase the phase reached
+     */
+    /* package-private */ void mark( final Phase _phase ) {
+        nanos[_phase.ordinal()] = System.nanoTime();
+    }
+
+
+    /**
+     * Records that this failover failed, for the specified reason.  Only the first failure is kept.
+     *
+     * @param _reason why the failover failed
+     */
+    /* package-private */ void fail( final String _reason ) {
+        if( isNull( failure ) )
+            failure = _reason;
+    }
+
+
+    /**
+     * Returns {@code true} if the router was verified to be using the new ISP, and the services that were stopped were restored.
+     *
+     * @return {@code true} if this failover succeeded
+     */
+    /* package-private */ boolean succeeded() {
+        return isNull( failure ) && reached( Phase.VERIFIED ) && reached( Phase.RESTORED );
+    }
+
+
+    /* package-private */ String getFailure() {
+        return failure;
+    }
+
+
+    /* package-private */ boolean reached( final Phase _phase ) {
+        return nanos[_phase.ordinal()] != 0;
+    }
+
+
+    /**
+     * Returns the time from the start of the outage to when the specified phase was reached, in microseconds, or -1 if it wasn't reached.
+     *
+     * @param _phase the phase
+     * @return the time to the phase, in microseconds
+     */
+    /* package-private */ long micros( final Phase _phase ) {
+        return reached( _phase ) ? (nanos[_phase.ordinal()] - nanos[Phase.OUTAGE.ordinal()]) / 1000 : -1;
+    }
+
+
+    /**
+     * Returns the time from the start of the outage to the end of this failover, in microseconds: the time to recover.
+     *
+     * @return the time to recover, in microseconds
+     */
+    /* package-private */ long getRecoveryMicros() {
+        return micros( Phase.RESTORED );
+    }
+
+
+    /**
+     * Returns this record as a {@link JSONObject}, with the time to each phase (in microseconds from the start of the outage) that was reached.
+     *
+     * @return this record as JSON
+     */
+    /* package-private */ JSONObject toJSON() {
+        JSONObject phases = new JSONObject();
+        for( Phase phase : Phase.values() ) {
+            if( reached( phase ) )
+                phases.put( phase.name(), micros( phase ) );
+        }
+        JSONObject record = new JSONObject();
+        record.put( "from",           from.name()          );
+        record.put( "to",             to.name()            );
+        record.put( "start",          startMS              );
+        record.put( "succeeded",      succeeded()          );
+        record.put( "failure",        failure              );
+        record.put( "recoveryMicros", getRecoveryMicros()  );
+        record.put( "phases",         phases               );
+        return record;
+    }
+
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder( "failover from " + from + " to " + to );
+        sb.append( succeeded() ? " recovered in " : " failed (" + failure + ") after " );
+        sb.append( String.format( "%.1fms", getRecoveryMicros() / 1000.0 ) ).append( " (" );
+        String separator = "";
+        for( Phase phase : Phase.values() ) {
+            if( (phase != Phase.OUTAGE) && reached( phase ) ) {
+                sb.append( separator ).append( phase.name().toLowerCase() ).append( String.format( " %.1fms", micros( phase ) / 1000.0 ) );
+                separator = ", ";
+            }
+        }
+        return sb.append( ")" ).toString();
+    }
+}
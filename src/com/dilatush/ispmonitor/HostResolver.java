@@ -0,0 +1,271 @@
+package com.dilatush.ispmonitor;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * Resolves host names (like "paradise.dilatush.com") to IP addresses without ever making the caller wait.  Looking up a host name goes through the
+ * very DNS servers that ISPMonitor is monitoring, so when an ISP is down, a lookup can block for many seconds; anything that needs a host's address
+ * (a connectivity test, an SSH command, or an SSH tunnel) would stall right when we most need it.  Instead, each host's address is cached, and
+ * lookups are made by this resolver's own thread, in the background:
+ * <ul>
+ *     <li>A host that has been resolved within the time-to-live (TTL) is served from the cache.  Hosts are refreshed in the background before their
+ *     TTL runs out: this resolver's thread sweeps the cache every tenth of the TTL, and queues a lookup for each host whose address is more than
+ *     {@link #REFRESH_FRACTION} of the TTL old.  So a host in regular use is always served a fresh address, without waiting for an access to find
+ *     it stale.</li>
+ *     <li>A host whose address is older than the TTL is still served its last-known address, and a lookup is queued to refresh it.  If the lookup
+ *     fails, the last-known address stays in service, and the lookup is retried after the retry interval.</li>
+ *     <li>A host that has never been resolved gets no address at all (and the caller treats that as a failure); a lookup is queued, so that its
+ *     address will be available shortly.</li>
+ * </ul>
+ * Dotted-form IP addresses (and IPv6 addresses) are converted to addresses directly, without any lookup, and never expire.  Counts of cache hits,
+ * misses, stale addresses served, and lookups are kept, so that we can see how well the cache is working.
+ *
+ * <p>Instances of this class are threadsafe; {@link #resolve(String)} may be called from any thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class HostResolver {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final double REFRESH_FRACTION = 0.8;   // how far into its TTL a host's address is refreshed...
+    private static final int    SWEEPS_PER_TTL   = 10;    // how often we sweep the cache for addresses to refresh...
+
+    private final ConcurrentHashMap<String, Entry> entries;    // the cache, keyed by host name...
+    private final LinkedBlockingQueue<Entry>       lookups;    // the entries waiting for our thread to look them up...
+    private final long                             ttlMS;
+    private final long                             retryMS;
+    private final long                             refreshMS;  // how old an address may get before we refresh it...
+    private final long                             sweepMS;    // the interval between sweeps of the cache...
+    private final AtomicLong                       hits;
+    private final AtomicLong                       misses;
+    private final AtomicLong                       staleServes;
+    private final AtomicLong                       lookupsMade;
+    private final AtomicLong                       lookupsFailed;
+    private final AtomicLong                       refreshes;
+
+
+    /**
+     * Creates a new instance of {@link HostResolver} with the specified TTL and retry interval, and starts its thread.
+     *
+     * @param _ttlSeconds the number of seconds a host's address is served before it's refreshed
+     * @param _retrySeconds the number of seconds after a failed lookup before it's retried
+     */
+    /* package-private */ HostResolver( final long _ttlSeconds, final long _retrySeconds ) {
+
+        // sanity checks...
+        if( (_ttlSeconds < 1) || (_retrySeconds < 1) )
+            throw new IllegalArgumentException( "Invalid host resolver TTL or retry interval: " + _ttlSeconds + ", " + _retrySeconds );
+
+        entries       = new ConcurrentHashMap<>();
+        lookups       = new LinkedBlockingQueue<>();
+        ttlMS         = _ttlSeconds * 1000;
+        retryMS       = _retrySeconds * 1000;
+        refreshMS     = (long) (ttlMS * REFRESH_FRACTION);
+        sweepMS       = ttlMS / SWEEPS_PER_TTL;
+        hits          = new AtomicLong();
+        misses        = new AtomicLong();
+        staleServes   = new AtomicLong();
+        lookupsMade   = new AtomicLong();
+        lookupsFailed = new AtomicLong();
+        refreshes     = new AtomicLong();
+
+        Thread thread = new Thread( this::run, "HostResolver" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Returns the address of the specified host, or {@code null} if it hasn't been resolved yet.  This method never blocks; if the host's address
+     * is missing or older than the TTL, a lookup is queued.
+     *
+     * @param _host the host name or dotted-form IP address of the host
+     * @return the host's address, or {@code null} if it isn't known yet
+     */
+    /* package-private */ InetAddress resolve( final String _host ) {
+
+        // sanity check...
+        if( isEmpty( _host ) )
+            throw new IllegalArgumentException( "Host missing" );
+
+        Entry       entry   = entries.computeIfAbsent( _host, Entry::new );
+        InetAddress address = entry.address;
+        long        now     = System.currentTimeMillis();
+
+        // if we don't have an address yet, it's a miss...
+        if( isNull( address ) ) {
+            misses.incrementAndGet();
+            lookUp( entry, now );
+            return null;
+        }
+
+        // if our address is fresh, it's a hit...
+        if( entry.permanent || (now - entry.resolvedMS < ttlMS) ) {
+            hits.incrementAndGet();
+            return address;
+        }
+
+        // otherwise we serve up the stale address, and refresh it...
+        staleServes.incrementAndGet();
+        lookUp( entry, now );
+        return address;
+    }
+
+
+    /**
+     * Starts resolving the specified host in the background, if it isn't already cached, so that its address will be ready when it's needed.
+     *
+     * @param _host the host name or dotted-form IP address of the host
+     */
+    /* package-private */ void prefetch( final String _host ) {
+
+        // sanity check...
+        if( isEmpty( _host ) )
+            throw new IllegalArgumentException( "Host missing" );
+
+        Entry entry = entries.computeIfAbsent( _host, Entry::new );
+        if( isNull( entry.address ) )
+            lookUp( entry, System.currentTimeMillis() );
+    }
+
+
+    /**
+     * Queues a lookup of the specified entry, unless one is already queued (or running), or a lookup of it failed too recently.  Returns
+     * {@code true} if the lookup was queued.
+     */
+    private boolean lookUp( final Entry _entry, final long _nowMS ) {
+        if( (_nowMS < _entry.retryAtMS) || !_entry.lookingUp.compareAndSet( false, true ) )
+            return false;
+        lookups.add( _entry );
+        return true;
+    }
+
+
+    /**
+     * Queues a lookup of each entry whose address will soon be older than the TTL, so that it's refreshed before it goes stale.  Entries that are
+     * IP addresses, or that have never been resolved, are left alone (the latter are looked up whenever they're asked for).
+     */
+    private void refresh( final long _nowMS ) {
+        for( Entry entry : entries.values() ) {
+            if( !entry.permanent && isNotNull( entry.address ) && (_nowMS - entry.resolvedMS >= refreshMS) && lookUp( entry, _nowMS ) )
+                refreshes.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * The body of our thread: looks up each queued entry in turn, sweeping the cache for addresses to refresh every {@link #sweepMS}.
+     */
+    private void run() {
+
+        long nextSweepMS = System.currentTimeMillis() + sweepMS;
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+
+            // we catch everything except Errors here, log them, then ignore them, so that we don't terminate this thread...
+            try {
+                // wait for a lookup, or until it's time to sweep the cache...
+                Entry entry = lookups.poll( Math.max( 1, nextSweepMS - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+                long  now   = System.currentTimeMillis();
+                if( now >= nextSweepMS ) {
+                    refresh( now );
+                    nextSweepMS = now + sweepMS;
+                }
+                if( isNull( entry ) )
+                    continue;
+
+                try {
+                    long start = System.currentTimeMillis();
+                    lookupsMade.incrementAndGet();
+                    InetAddress address = InetAddress.getByName( entry.host );
+                    entry.resolvedMS = System.currentTimeMillis();
+                    entry.address    = address;
+                    LOGGER.finer( "Resolved " + entry.host + " to " + address.getHostAddress() + " in " + (entry.resolvedMS - start) + "ms" );
+                }
+                catch( UnknownHostException _e ) {
+                    lookupsFailed.incrementAndGet();
+                    entry.retryAtMS = System.currentTimeMillis() + retryMS;
+                    InetAddress lastKnown = entry.address;
+                    LOGGER.fine( "Could not resolve " + entry.host + (isNull( lastKnown ) ? "" : "; still using " + lastKnown.getHostAddress()) );
+                }
+                finally {
+                    entry.lookingUp.set( false );
+                }
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in host resolver", _e );
+            }
+        }
+    }
+
+
+    /* package-private */ long getHits() {
+        return hits.get();
+    }
+
+
+    /* package-private */ long getMisses() {
+        return misses.get();
+    }
+
+
+    /* package-private */ long getStaleServes() {
+        return staleServes.get();
+    }
+
+
+    public String toString() {
+        return "Host resolver: " + entries.size() + " hosts, " + hits.get() + " hits, " + misses.get() + " misses, " + staleServes.get()
+                + " stale addresses served, " + lookupsMade.get() + " lookups (" + lookupsFailed.get() + " failed, " + refreshes.get()
+                + " proactive refreshes)";
+    }
+
+
+    /**
+     * The cached address of a single host.
+     */
+    private static class Entry {
+
+        private final String        host;
+        private final boolean       permanent;    // true if the host is an IP address, which never needs to be looked up...
+        private final AtomicBoolean lookingUp;    // true while a lookup is queued or running...
+
+        private volatile InetAddress address;     // the last-known address, or null if we've never resolved it...
+        private volatile long        resolvedMS;  // when the address was last resolved (ms since the epoch)...
+        private volatile long        retryAtMS;   // after a failed lookup, when we may try again (ms since the epoch)...
+
+
+        private Entry( final String _host ) {
+
+            host      = _host;
+            lookingUp = new AtomicBoolean();
+
+            // if the host is an IP address, converting it doesn't need a lookup...
+            InetAddress literal = null;
+            if( (_host.indexOf( ':' ) >= 0) || _host.matches( "\\d{1,3}(\\.\\d{1,3}){3}" ) ) {
+                try {
+                    literal = InetAddress.getByName( _host );
+                }
+                catch( UnknownHostException _e ) {
+                    LOGGER.warning( "Invalid IP address: " + _host );
+                }
+            }
+            permanent = isNotNull( literal );
+            address   = literal;
+        }
+    }
+}
@@ -3,19 +3,39 @@ package com.dilatush.ispmonitor;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.logging.Logger;
+
 import static com.dilatush.ispmonitor.EventType.*;
 import static com.dilatush.ispmonitor.SystemAvailability.*;
 
 /**
+ * Tracks the availability of an ISP, as judged by the availability of its DNS servers.  When one of its DNS servers fails a test, the ISP runs a
+ * "confirmation probe": a single query to each of its DNS servers for each of several test domains, all at once.  The first good answer confirms
+ * that the ISP is up (marking the DNS server that answered as up); if none of the queries is answered within a single timeout window (the longest
+ * of its DNS server's own try timeouts), the ISP is confirmed down (marking all its DNS servers as down).  The parallel queries take the place of
+ * retries, so the verdict comes within one timeout window, rather than waiting for each DNS server's own test, with its stacked and doubling
+ * retry timeouts, to come around.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 /* package-private */ class ISP {
 
+    private static final Logger LOGGER               = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final int    CONFIRMATION_DOMAINS = 2;  // the number of test domains each DNS server is queried for in a confirmation probe...
+
     public final EdgeRouter edgeRouter;
     public final String     name;
     public final DNS[]      dnss;
 
-    private SystemAvailability availability;
+    /* package-private */ final AvailabilityTally dnsStates;  // the number of our DNS servers in each state...
+
+    private final DNSProber.Probe[][] confirmations;          // the confirmation probes, by DNS server and then domain...
+    private SystemAvailability        availability;
+    private int                       confirmationsLeft;      // the number of confirmation queries we're still waiting on...
+    private boolean                   confirmed;              // true once a confirmation query is answered...
+    private long                      confirmationStart;      // when the current confirmation probe started (ms since the epoch)...
+    private long                      suspectedNanos;         // when we first suspected the current outage (System.nanoTime()), or 0 if we don't...
 
 
     /* package-private */ ISP( final EdgeRouter _edgeRouter, final JSONObject _config ) {
@@ -26,9 +46,23 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
 
         // get any DNS servers we have to test...
         JSONArray dnsConfig = _config.getJSONArray( "dns" );
-        dnss = new DNS[dnsConfig.length()];
+        dnss      = new DNS[dnsConfig.length()];
+        dnsStates = new AvailabilityTally();
         for( int i = 0; i < dnsConfig.length(); i++ ) {
             dnss[i] = new DNS( this, dnsConfig.getJSONObject( i ) );
+            dnsStates.add( dnss[i].getAvailability() );
+        }
+
+        // set up our confirmation probes, each of which makes a single try with the longest timeout of its DNS server's own tries...
+        int domains = Math.min( CONFIRMATION_DOMAINS, edgeRouter.testQueries.length );
+        int tries   = edgeRouter.maxDNSTestTries;
+        confirmations = new DNSProber.Probe[dnss.length][domains];
+        for( int i = 0; i < dnss.length; i++ ) {
+            DNS dns = dnss[i];
+            int windowMS = (int) ((long) dns.timeoutMS * (1 << (tries - 1)) / ((1 << tries) - 1));
+            for( int d = 0; d < domains; d++ ) {
+                confirmations[i][d] = new DNSProber.Probe( _result -> handleConfirmation( dns, _result ), dns.ip, 1, windowMS );
+            }
         }
 
         // we don't know the ISP's availability when we start up...
@@ -38,17 +72,18 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
 
     /* package-private */ void dnsAvailabilityChanged() {
 
-        // if any of our DNS servers are up, the ISP is up...
-        SystemAvailability sa = DOWN;
-        for( DNS dns : dnss ) {
-            if( dns.getAvailability() == UP ) {
-                sa = UP;
-                break;
-            }
-        }
+        // if any of our DNS servers are up, the ISP is up; otherwise if any are degraded, the ISP is degraded...
+        SystemAvailability sa = dnsStates.best();
 
         // if our availability has changed, notify the router and send an event...
         if( sa != availability ) {
+
+            // if we just went down, the outage started when we first suspected it (or now, if we never did); if we didn't, there's no outage...
+            if( (sa == DOWN) && (suspectedNanos == 0) )
+                suspectedNanos = System.nanoTime();
+            else if( sa != DOWN )
+                suspectedNanos = 0;
+
             availability = sa;
             edgeRouter.ispAvailabilityChanged();
             ISPMonitor.postEvent( new Event( ISPAvailabilityChanged, this ) );
@@ -56,6 +91,80 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
     }
 
 
+    /**
+     * Called when the specified DNS server's test has just failed, to start a confirmation probe that will find out quickly whether it's the DNS
+     * server or the whole ISP that has a problem.  If a confirmation probe is already running, this does nothing.
+     *
+     * @param _dns the DNS server whose test failed
+     */
+    /* package-private */ void dnsSuspected( final DNS _dns ) {
+
+        // if this is the first sign of trouble, it may be when an outage started...
+        if( suspectedNanos == 0 )
+            suspectedNanos = System.nanoTime();
+
+        // if we're already confirming, there's nothing more to do...
+        if( confirmationsLeft > 0 )
+            return;
+
+        // query every DNS server for several different test domains, all at once...
+        LOGGER.fine( "DNS server " + _dns.ip + " failed; confirming availability of " + name );
+        DNSQuery[] queries = edgeRouter.testQueries;
+        int first = edgeRouter.random.nextInt( queries.length );
+        confirmed         = false;
+        confirmationStart = System.currentTimeMillis();
+        for( DNSProber.Probe[] probes : confirmations ) {
+            for( int d = 0; d < probes.length; d++ ) {
+                ISPMonitor.getDNSProber().probe( probes[d], queries[(first + d) % queries.length] );
+                confirmationsLeft++;
+            }
+        }
+    }
+
+
+    /**
+     * Handles the result of one query of a confirmation probe of the specified DNS server.  The first good answer confirms that we're up; if the
+     * last result comes in without any good answer, we're confirmed down.
+     */
+    private void handleConfirmation( final DNS _dns, final DNSResult _result ) {
+
+        confirmationsLeft--;
+
+        // any DNS server that answers is up (even if the verdict is already in)...
+        if( _result.type == DNSResultType.COMPLETED ) {
+            if( !confirmed )
+                LOGGER.info( name + " confirmed available in " + (System.currentTimeMillis() - confirmationStart) + "ms by " + _dns.ip );
+            confirmed = true;
+            if( availability != DOWN )
+                suspectedNanos = 0;   // it was a false alarm...
+            if( _dns.confirm( UP ) )
+                dnsAvailabilityChanged();
+        }
+
+        // if that was the last one, and nobody answered, all our DNS servers are down...
+        else if( (confirmationsLeft == 0) && !confirmed ) {
+            LOGGER.info( name + " confirmed unavailable in " + (System.currentTimeMillis() - confirmationStart) + "ms" );
+            boolean changed = false;
+            for( DNS dns : dnss ) {
+                changed |= dns.confirm( DOWN );
+            }
+            if( changed )
+                dnsAvailabilityChanged();
+        }
+    }
+
+
+    /**
+     * Returns when the current outage of this ISP started (as {@link System#nanoTime()}): when we first suspected it, which is generally when one of
+     * our DNS servers first failed a test.  Returns 0 if this ISP isn't down.
+     *
+     * @return when the current outage started, or 0 if there's no outage
+     */
+    /* package-private */ long getOutageStartNanos() {
+        return (availability == DOWN) ? suspectedNanos : 0;
+    }
+
+
     /* package-private */ SystemAvailability getAvailability() {
         return availability;
     }
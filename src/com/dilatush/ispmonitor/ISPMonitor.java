@@ -6,11 +6,14 @@ import com.dilatush.mop.PostOffice;
 import com.dilatush.util.Config;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Timer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.dilatush.ispmonitor.EventType.MOPRequest;
 import static com.dilatush.ispmonitor.EventType.Start;
 import static com.dilatush.util.General.isNotNull;
 import static com.dilatush.util.Strings.isEmpty;
@@ -24,27 +27,38 @@ public class ISPMonitor {
     private static final Logger    LOGGER                     = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
 
     private static final int       MAX_QUEUED_TASKS           = 500;
+    private static final int       DEFAULT_TASK_WORKERS       = 4;
     private static final int       TICKS_PER_SECOND           = 8;
+    private static final long      DEFAULT_RESOLVER_TTL_SECONDS   = 300;
+    private static final long      DEFAULT_RESOLVER_RETRY_SECONDS = 30;
+    private static final long      DEFAULT_SSH_HEALTH_CHECK_SECONDS = 30;
 
     private static PostOffice                po;
     private static Mailbox                   mailbox;
-    private static LinkedBlockingQueue<Task> tasks;
-    private static StateMachine              mainStateMachine;
+    private static TaskExecutor              tasks;
+    private static volatile MainSM           mainStateMachine;
     private static EventQueue                eventQueue;
     private static Timer                     timer;
+    private static TimingWheel               timingWheel;
+    private static DNSProber                 dnsProber;
+    private static ConnectProber             connectProber;
+    private static HostResolver              hostResolver;
+    private static SSHSessionPool            sshSessionPool;       // null if SSH multiplexing is disabled...
 
 
-    public static void main( String[] _args ) throws InterruptedException {
+    public static void main( String[] _args ) throws InterruptedException, IOException {
 
         /*
             Implementation notes:
 
-            Tasks scheduled to execute via the Timer, and event processing within the state machines, should all execute quickly.  That is, they
-            should not block, and should not be computationally intensive.  Failing to do this will cause all sorts of nasty timing issues.
+            Tasks scheduled to execute via the Timer or the TimingWheel, and event processing within the state machines, should all execute quickly.
+            That is, they should not block, and should not be computationally intensive.  Failing to do this will cause all sorts of nasty timing
+            issues.
 
             When you have tasks that are going to take some appreciable time, or that block, the proper mechanism to use is the tasks queue.  You can
-            add a task to this queue through the executeTask() method in this class.  The tasks on that queue are executed sequentially in a single
-            thread so it's possible that such tasks will be delayed a few seconds or even more.
+            add a task to this queue through the executeTask() method in this class.  The tasks on that queue are executed by a small pool of worker
+            threads.  Tasks with the same target (see Task.getTarget()) are executed sequentially, in the order they were queued, so it's possible
+            that such tasks will be delayed a few seconds or even more behind a slow task for the same target.
 
             If you have a task that may take appreciable time but MUST be executed quickly, then the proper way to handle that is with a separate
             thread.
@@ -65,10 +79,48 @@ public class ISPMonitor {
         LOGGER.log( Level.INFO, "ISP Monitor is starting, publishing updates at " + monitorIntervalSeconds + " second intervals" );
 
         // set up our task queue...
-        tasks = new LinkedBlockingQueue<>( MAX_QUEUED_TASKS );
-
-        // start up our timer...
+        TaskExecutionMode taskMode = TaskExecutionMode.valueOf( ispMonConfig.optString( "taskExecutionMode", "pool" ).toUpperCase() );
+        int taskWorkers = (int) ispMonConfig.optLongDotted( "taskWorkers", DEFAULT_TASK_WORKERS );
+        tasks = new TaskExecutor( taskMode, taskWorkers, MAX_QUEUED_TASKS );
+        if( tasks.getMode() == TaskExecutionMode.VIRTUAL )
+            LOGGER.log( Level.INFO, "Executing each task on its own virtual thread" );
+        else
+            LOGGER.log( Level.INFO, "Executing tasks with " + taskWorkers + " worker threads" );
+
+        // start up our timer, and our timing wheel (for things that happen in the state machine at a particular time)...
         timer = new Timer( "Timer", true );
+        startTimingWheel();
+
+        // set up our pool of persistent SSH connections, unless we've been told not to...
+        if( ispMonConfig.optBooleanDotted( "sshMultiplexing", true ) )
+            sshSessionPool = new SSHSessionPool( ispMonConfig.optLongDotted( "sshHealthCheckSeconds", DEFAULT_SSH_HEALTH_CHECK_SECONDS ) );
+
+        // start up our host name resolver...
+        long resolverTTLSeconds   = ispMonConfig.optLongDotted( "resolverTTLSeconds",   DEFAULT_RESOLVER_TTL_SECONDS   );
+        long resolverRetrySeconds = ispMonConfig.optLongDotted( "resolverRetrySeconds", DEFAULT_RESOLVER_RETRY_SECONDS );
+        startHostResolver( resolverTTLSeconds, resolverRetrySeconds );
+
+        // start up our DNS and connectivity probers...
+        dnsProber     = new DNSProber();
+        connectProber = new ConnectProber();
+
+        // periodically log the task lane, event queue, connect prober, and host resolver statistics, so we can see if any are saturated, and the
+        // connectivity tests' probes saved...
+        timer.scheduleAtFixedRate( new TimerTask() {
+            @Override
+            public void run() {
+                for( TaskExecutor.LaneStatistics stats : tasks.getLaneStatistics() ) {
+                    LOGGER.fine( "Task lane " + stats );
+                }
+                if( isNotNull( eventQueue ) )
+                    LOGGER.fine( eventQueue.toString() );
+                LOGGER.fine( connectProber.toString() );
+                LOGGER.fine( hostResolver.toString() );
+                MainSM sm = mainStateMachine;
+                if( isNotNull( sm ) && isNotNull( sm.getConnectivityTester() ) )
+                    LOGGER.fine( sm.getConnectivityTester().toString() );
+            }
+        }, monitorInterval, monitorInterval );
 
         // start up our post office...
         po = new PostOffice( config );
@@ -81,16 +133,17 @@ public class ISPMonitor {
 
         // set up and start our state machine...
         mainStateMachine = new MainSM( ispMonConfig );
-        eventQueue = new EventQueue( mainStateMachine );
+        startEventQueue( mainStateMachine, "ring".equalsIgnoreCase( ispMonConfig.optString( "eventQueueMode", "queue" ) ) );
         mainStateMachine.postEvent( new Event( Start ) );
 
-        // we just loop here forever, executing any tasks that get queued...
+        // start listening for requests sent to our mailbox...
+        Thread listener = new Thread( ISPMonitor::listen, "MOPListener" );
+        listener.setDaemon( true );
+        listener.start();
+
+        // we just wait here forever, while the task workers execute any tasks that get queued...
         try {
-            //noinspection InfiniteLoopStatement
-            while( true ) {
-                Task task = tasks.take();
-                task.run();
-            }
+            tasks.join();
         }
         catch( InterruptedException _exc ) {
             LOGGER.severe( "ISPMonitor aborted by InterruptedException" );
@@ -98,6 +151,30 @@ public class ISPMonitor {
     }
 
 
+    /**
+     * The body of our MOP listener thread: posts each request that arrives in our mailbox as an {@link EventType#MOPRequest} event, so that the
+     * state machine can answer it.  This thread must be the only reader of our mailbox; anything that sends a query and waits for its reply (such
+     * as {@link POTester}) must do so through a mailbox of its own, or this thread would take the reply for a request.
+     */
+    private static void listen() {
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+            try {
+                Message request = mailbox.poll( 1, TimeUnit.SECONDS );
+                if( isNotNull( request ) )
+                    postEvent( new Event( MOPRequest, request ) );
+            }
+            catch( InterruptedException _e ) {
+                LOGGER.warning( "MOP listener interrupted" );
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in MOP listener", _e );
+            }
+        }
+    }
+
+
     /**
      * Converts the specified floating point seconds (which must be greater than zero) into an integral number of ticks.  Note that the result is
      * always rounded <i>up</i>, so the number of ticks returned will always represent a time that is greater than or equal to the specified number
@@ -118,9 +195,41 @@ public class ISPMonitor {
     }
 
 
+    /**
+     * Starts the timing wheel.  Besides {@link #main(String[])}, this is used by simulations (see the "bench" directory) that run parts of
+     * ISPMonitor without the rest of it.
+     */
+    /* package-private */ static void startTimingWheel() {
+        timingWheel = new TimingWheel( TICKS_PER_SECOND );
+    }
+
+
+    /**
+     * Starts the host name resolver, with the specified TTL and retry interval.  Besides {@link #main(String[])}, this is used by simulations (see
+     * the "bench" directory) that run parts of ISPMonitor without the rest of it.
+     *
+     * @param _ttlSeconds the number of seconds a host's address is served before it's refreshed
+     * @param _retrySeconds the number of seconds after a failed lookup before it's retried
+     */
+    /* package-private */ static void startHostResolver( final long _ttlSeconds, final long _retrySeconds ) {
+        hostResolver = new HostResolver( _ttlSeconds, _retrySeconds );
+    }
+
+
+    /**
+     * Starts the event queue, dispatching events to the specified state machine.  Besides {@link #main(String[])}, this is used by simulations (see
+     * the "bench" directory) that run parts of ISPMonitor without the rest of it.
+     *
+     * @param _stateMachine the state machine to dispatch events to
+     * @param _useRing if {@code true}, the event queue is backed by a lock-free ring buffer
+     */
+    /* package-private */ static void startEventQueue( final StateMachine _stateMachine, final boolean _useRing ) {
+        eventQueue = new EventQueue( _stateMachine, _useRing );
+    }
+
+
     /* package-private */ static void executeTask( final Task _task ) {
-        if( !tasks.offer( _task ) )
-            throw new IllegalStateException( "ISPMonitor task queue is full" );
+        tasks.execute( _task );
     }
 
 
@@ -164,6 +273,11 @@ public class ISPMonitor {
     }
 
 
+    /* package-private */ static EventQueue getEventQueue() {
+        return eventQueue;
+    }
+
+
     /* package-private */ static Mailbox getMailbox() {
         return mailbox;
     }
@@ -177,4 +291,29 @@ public class ISPMonitor {
     /* package-private */ static Timer getTimer() {
         return timer;
     }
+
+
+    /* package-private */ static TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+
+    /* package-private */ static DNSProber getDNSProber() {
+        return dnsProber;
+    }
+
+
+    /* package-private */ static ConnectProber getConnectProber() {
+        return connectProber;
+    }
+
+
+    /* package-private */ static HostResolver getHostResolver() {
+        return hostResolver;
+    }
+
+
+    /* package-private */ static SSHSessionPool getSSHSessionPool() {
+        return sshSessionPool;
+    }
 }
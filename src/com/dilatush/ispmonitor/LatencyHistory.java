@@ -0,0 +1,142 @@
+package com.dilatush.ispmonitor;
+
+import java.util.Arrays;
+
+import static com.dilatush.ispmonitor.SystemAvailability.*;
+
+/**
+ * Keeps a short history of the outcomes of some kind of probe (such as a TCP connection test): for each of the most recent probes, either its
+ * round-trip time or the fact that it failed.  The history is a ring buffer of {@link #SIZE} ints, so an instance takes only a few hundred bytes,
+ * and thousands of them can be kept.  Summaries (percentiles, trend, and failure ratio) are computed on request, from one or many histories.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class LatencyHistory {
+
+    /* package-private */ static final int SIZE = 64;
+
+    private static final int DOWN_OUTCOME    = -1;   // the probe failed because it timed out...
+    private static final int UNKNOWN_OUTCOME = -2;   // the probe failed for some other reason...
+
+    private final int[] outcomes;   // the round-trip time in microseconds, or one of the failure outcomes, oldest first starting at next...
+    private int         next;       // the index the next outcome goes into...
+    private int         count;      // the number of outcomes recorded, up to SIZE...
+
+
+    /* package-private */ LatencyHistory() {
+        outcomes = new int[SIZE];
+    }
+
+
+    /**
+     * Records the outcome of a probe: if the probed thing was up, the specified round-trip time, otherwise a failure.
+     *
+     * @param _availability the availability the probe found
+     * @param _rttMicros the round-trip time of the probe, in microseconds (ignored unless the availability is UP)
+     */
+    /* package-private */ void record( final SystemAvailability _availability, final long _rttMicros ) {
+
+        outcomes[next] = (_availability == UP)   ? (int) Math.max( 0, Math.min( Integer.MAX_VALUE, _rttMicros ) )
+                       : (_availability == DOWN) ? DOWN_OUTCOME : UNKNOWN_OUTCOME;
+        next = (next + 1) % SIZE;
+        count = Math.min( SIZE, count + 1 );
+    }
+
+
+    /**
+     * Returns a summary of this history.
+     *
+     * @return the summary
+     */
+    /* package-private */ Summary summarize() {
+        return summarize( this );
+    }
+
+
+    /**
+     * Returns a summary of all the specified histories together.  The trend compares the older half of each history to its newer half.
+     *
+     * @param _histories the histories to summarize
+     * @return the summary
+     */
+    /* package-private */ static Summary summarize( final LatencyHistory... _histories ) {
+
+        // gather up all the round-trip times, and total up the older and newer halves for the trend...
+        int total = 0;
+        for( LatencyHistory history : _histories ) {
+            total += history.count;
+        }
+        int[] rtts      = new int[total];
+        int   rttCount  = 0;
+        int   failures  = 0;
+        long  olderSum  = 0;
+        int   olderN    = 0;
+        long  newerSum  = 0;
+        int   newerN    = 0;
+        for( LatencyHistory history : _histories ) {
+            int oldest = (history.count < SIZE) ? 0 : history.next;
+            for( int i = 0; i < history.count; i++ ) {
+                int outcome = history.outcomes[(oldest + i) % SIZE];
+                if( outcome < 0 ) {
+                    failures++;
+                    continue;
+                }
+                rtts[rttCount++] = outcome;
+                if( i < history.count / 2 ) {
+                    olderSum += outcome;
+                    olderN++;
+                }
+                else {
+                    newerSum += outcome;
+                    newerN++;
+                }
+            }
+        }
+
+        // then compute the summary...
+        Arrays.sort( rtts, 0, rttCount );
+        double trend = ((olderN == 0) || (newerN == 0) || (olderSum == 0))
+                ? 0
+                : ((double) newerSum / newerN) / ((double) olderSum / olderN) - 1;
+        return new Summary( total, (total == 0) ? 0 : (double) failures / total,
+                percentile( rtts, rttCount, 0.50 ), percentile( rtts, rttCount, 0.95 ), percentile( rtts, rttCount, 0.99 ), trend );
+    }
+
+
+    private static int percentile( final int[] _sorted, final int _count, final double _percentile ) {
+        return (_count == 0) ? 0 : _sorted[ Math.max( 0, (int) Math.ceil( _percentile * _count ) - 1 ) ];
+    }
+
+
+    /**
+     * A summary of one or more {@link LatencyHistory}s.
+     */
+    /* package-private */ static class Summary {
+
+        /* package-private */ final int    probes;        // the number of probes summarized...
+        /* package-private */ final double failureRatio;  // the fraction of those probes that failed...
+        /* package-private */ final int    p50Micros;     // the percentiles of round-trip time of the probes that succeeded...
+        /* package-private */ final int    p95Micros;
+        /* package-private */ final int    p99Micros;
+        /* package-private */ final double trend;         // the change in mean round-trip time, older half to newer (0.1 is 10% slower)...
+
+
+        private Summary( final int _probes, final double _failureRatio, final int _p50Micros, final int _p95Micros, final int _p99Micros,
+                         final double _trend ) {
+            probes       = _probes;
+            failureRatio = _failureRatio;
+            p50Micros    = _p50Micros;
+            p95Micros    = _p95Micros;
+            p99Micros    = _p99Micros;
+            trend        = _trend;
+        }
+
+
+        public String toString() {
+            return String.format( "%d probes, %.0f%% failed, RTT p50 %.1fms, p95 %.1fms, p99 %.1fms, trend %+.0f%%", probes, failureRatio * 100,
+                    p50Micros / 1000.0, p95Micros / 1000.0, p99Micros / 1000.0, trend * 100 );
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package com.dilatush.ispmonitor;
 
 import com.dilatush.mop.Mailbox;
+import com.dilatush.mop.Message;
 import com.dilatush.util.Config;
+import org.json.JSONObject;
 
 import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.EventType.Heartbeat;
-import static com.dilatush.ispmonitor.MainState.INITIAL;
+import static com.dilatush.ispmonitor.ISPChoice.PRIMARY;
+import static com.dilatush.ispmonitor.ISPChoice.SECONDARY;
+import static com.dilatush.ispmonitor.ISPChoice.UNKNOWN;
+import static com.dilatush.ispmonitor.MainState.*;
 import static com.dilatush.ispmonitor.SystemAvailability.*;
 import static com.dilatush.util.General.isNotNull;
 
@@ -25,19 +29,26 @@ import static com.dilatush.util.General.isNotNull;
 public class MainSM implements StateMachine<MainState> {
 
     private static final Logger    LOGGER                 = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
-    private static final Event     HEARTBEAT_EVENT        = new Event( Heartbeat );
-    private static final long      HEARTBEAT_MS           = 1000 / 8;
-    private static final TimerTask HEARTBEAT_TIMER_TASK   = new TimerTask() { public void run() { ISPMonitor.postEvent( HEARTBEAT_EVENT ); } };
+
+    private static final long      DEFAULT_FAILOVER_SLO_SECONDS           = 30;
+    private static final long      DEFAULT_FAILOVER_PHASE_TIMEOUT_SECONDS = 15;
 
     private final Config                              config;
     private final Timer                               timer;
     private final Mailbox                             mailbox;
+    private final long                                failoverSLOMicros;        // failovers taking longer than this to recover are alerted on...
+    private final double                              failoverPhaseTimeoutSeconds;
+    private final LatencyHistory                      failoverHistory;          // the time to recover of our recent failovers...
+    private final TimingWheel.Timeout                 failoverRetryTimeout;
 
     private MainState          state;
     private EdgeRouter         edgeRouter;
     private RemoteHosts        hosts;
     private POTester           poTester;
     private ConnectivityTester connectivityTester;
+    private Failover           failover;            // the failover in progress, or null if there isn't one...
+    private FailoverRecord     lastFailover;        // the record of the last failover, or null if there hasn't been one...
+    private boolean            awaitingRouterISP;   // true while we're asking the router which ISP it's using, before deciding on a failover...
 
 
     public MainSM( final Config _config ) {
@@ -47,6 +58,12 @@ public class MainSM implements StateMachine<MainState> {
         // just for convenience, get a reference to the timer...
         timer = ISPMonitor.getTimer();
 
+        // get our failover configuration...
+        failoverSLOMicros           = 1_000_000 * config.optLongDotted( "failoverSLOSeconds", DEFAULT_FAILOVER_SLO_SECONDS );
+        failoverPhaseTimeoutSeconds = config.optLongDotted( "failoverPhaseTimeoutSeconds", DEFAULT_FAILOVER_PHASE_TIMEOUT_SECONDS );
+        failoverHistory             = new LatencyHistory();
+        failoverRetryTimeout        = new TimingWheel.Timeout( this::retryFailover );
+
         // set our startup state...
         state      = INITIAL;
         mailbox    = ISPMonitor.getPostOffice().createMailbox( "test" );  // get our special testing mailbox...
@@ -69,9 +86,12 @@ public class MainSM implements StateMachine<MainState> {
             case Start:                    handleStart();                                                                                break;
             case SSHResult:                handleSSHResult(             (SSHResult)              _event.payload );                       break;
             case DNSResult:                handleDNSResult(             (DNSResult)              _event.payload );                       break;
+            case ISPChangeNeeded:          handleISPChangeNeeded(       (EdgeRouter)             _event.payload );                       break;
             case RouterISP:                handleRouterISP(             (ISPChoice)              _event.payload );                       break;
+            case RouterNotification:       handleRouterNotification(    (ISPChoice)              _event.payload );                       break;
             case PostOfficeTest:           handlePostOfficeTest(        (POTestResult)           _event.payload );                       break;
             case ConnectivityTest:         handleConnectivityTest(      (ConnectivityTestResult) _event.payload );                       break;
+            case MOPRequest:               handleMOPRequest(            (Message)                _event.payload );                       break;
 
             default:
                 LOGGER.warning( "Unknown event type (" + _event.type + ") received by state machine; ignoring" );
@@ -85,6 +105,17 @@ public class MainSM implements StateMachine<MainState> {
     }
 
 
+    /**
+     * Returns our connectivity tester, or {@code null} if we haven't started yet.  This may be called from any thread (its list of groups is final,
+     * so it's safely published even without synchronization).
+     *
+     * @return our connectivity tester
+     */
+    /* package-private */ ConnectivityTester getConnectivityTester() {
+        return connectivityTester;
+    }
+
+
     /**
      * Handles a {@link EventType#Start} {@link Event}, which should only occur if the state machine is in initial state.
      */
@@ -107,12 +138,11 @@ public class MainSM implements StateMachine<MainState> {
         // start up our post office tester...
         POTester poTester = new POTester( config, hosts, mailbox );
 
-        // start our heartbeat...
-        ISPMonitor.getTimer().scheduleAtFixedRate( HEARTBEAT_TIMER_TASK, HEARTBEAT_MS, HEARTBEAT_MS );
-
         /////// test code //////////
         hosts.getHost( "paradise.dilatush.com" ).setDesiredTunnelState( UP );
         ////////////////////////////
+
+        state = RUNNING;
     }
 
 
@@ -121,6 +151,17 @@ public class MainSM implements StateMachine<MainState> {
     }
 
 
+    private void handleMOPRequest( final Message _request ) {
+
+        if( "connectivity.statistics".equals( _request.type ) && isNotNull( connectivityTester ) )
+            connectivityTester.handleStatisticsRequest( _request );
+        else if( "failover.statistics".equals( _request.type ) )
+            handleFailoverStatisticsRequest( _request );
+        else
+            LOGGER.warning( "Unknown MOP request (" + _request.type + ") from " + _request.from + "; ignoring" );
+    }
+
+
     private void handlePostOfficeTest( final POTestResult _poTestResult ) {
         hosts.getServiceUsingPostOffice( _poTestResult.postOffice ).updatePostOfficeAvailability( _poTestResult.availability );
     }
@@ -138,17 +179,169 @@ public class MainSM implements StateMachine<MainState> {
     }
 
 
+    /**
+     * Handles a {@link EventType#Heartbeat} {@link Event}, which the {@link TimingWheel} posts whenever something scheduled on it is due.
+     */
     private void handleHeartbeat() {
+        ISPMonitor.getTimingWheel().advance();
+    }
 
-        if( isNotNull( edgeRouter) )
-            edgeRouter.heartbeat();
-        if( isNotNull( hosts ) )
-            hosts.heartbeat();
+
+    /**
+     * Handles a {@link EventType#ISPChangeNeeded} {@link Event}, which the {@link EdgeRouter} posts when the router should be using a different ISP
+     * than it is.  Unless a failover is already in progress (in which case we check again when it's done), we start one (see {@link Failover}).  If
+     * we don't know which ISP the router is using (as when we've just started, or the router seemed to be down), we ask it first, and decide once it
+     * has answered.
+     */
+    private void handleISPChangeNeeded( final EdgeRouter _router ) {
+
+        // if we're already failing over, or already asking the router which ISP it's using, we'll see if we need a failover when that's done...
+        if( isNotNull( failover ) || awaitingRouterISP )
+            return;
+
+        // if we don't know which ISP the router is using, it may well be the right one already; ask it, and decide once it has answered...
+        ISPChoice from = _router.getIspInUse();
+        if( from == UNKNOWN ) {
+            awaitingRouterISP = true;
+            _router.getCurrentISP( () -> handleRouterISPKnown( _router ) );
+            return;
+        }
+
+        // if things changed back before we got here, or there's no ISP worth switching to, there's nothing to do...
+        ISPChoice to   = _router.getIspShouldUse();
+        if( from == to )
+            return;
+        if( (to != PRIMARY) && (to != SECONDARY) ) {
+            LOGGER.warning( "Router is using " + from + " ISP, but there's no ISP available to fail over to" );
+            return;
+        }
+
+        // the outage started when the ISP we're leaving first looked bad (or, if we're not leaving an outage, when we noticed we should switch)...
+        long detected = _router.takeChangeNeededNanos();
+        if( detected == 0 )
+            detected = System.nanoTime();
+        ISP  left   = _router.getISP( from );
+        long outage = isNotNull( left ) ? left.getOutageStartNanos() : 0;
+        if( (outage == 0) || (outage > detected) )
+            outage = detected;
+
+        state    = FAILING_OVER;
+        failover = new Failover( _router, hosts.getServicesStoppedForFailover(), to, outage, detected, failoverPhaseTimeoutSeconds,
+                this::handleFailoverDone );
+        failover.start();
     }
 
 
+    /**
+     * Called when a failover is done (successfully or not) with its record.  The failover's time to recover goes into our history, and if it failed
+     * or took longer than our SLO, we send an event to say so.  If the router still isn't using the ISP it should be, we try again: right away if the
+     * failover succeeded (the ISPs changed while it was underway), or after a phase timeout if it failed.
+     */
+    private void handleFailoverDone( final FailoverRecord _record ) {
+
+        failover     = null;
+        lastFailover = _record;
+        state        = RUNNING;
+
+        // a failover from an unknown ISP isn't recovering from anything we measured, so it doesn't count toward our history...
+        if( _record.from != UNKNOWN )
+            failoverHistory.record( _record.succeeded() ? UP : DOWN, _record.getRecoveryMicros() );
+        LatencyHistory.Summary summary = failoverHistory.summarize();
+        LOGGER.info( "Router " + _record + "; recent failovers: " + describe( summary ) );
+
+        // if the failover failed, or took too long, tell the world...
+        if( !_record.succeeded() ) {
+            String sub = "Failover from " + _record.from + " to " + _record.to + " ISP failed.";
+            String msg = "Failover from " + _record.from + " to " + _record.to + " ISP failed: " + _record.getFailure() + " (" + _record + ").";
+            ISPMonitor.sendMOPEvent( "failover", "failover.failed", sub, msg, 8 );
+        }
+        else if( (_record.from != UNKNOWN) && (_record.getRecoveryMicros() > failoverSLOMicros) ) {
+            String sub = "Failover from " + _record.from + " to " + _record.to + " ISP was slower than its SLO.";
+            String msg = "Failover from " + _record.from + " to " + _record.to + " ISP took " + _record.getRecoveryMicros() / 1000 + "ms, more than "
+                    + failoverSLOMicros / 1000 + "ms (" + _record + "; recent failovers: " + describe( summary ) + ").";
+            ISPMonitor.sendMOPEvent( "failover", "failover.slow", sub, msg, 6 );
+        }
+
+        // if we're still not using the ISP we should be, try again...
+        if( edgeRouter.getIspInUse() != edgeRouter.getIspShouldUse() ) {
+            if( _record.succeeded() )
+                handleISPChangeNeeded( edgeRouter );
+            else
+                ISPMonitor.getTimingWheel().schedule( failoverRetryTimeout, failoverPhaseTimeoutSeconds );
+        }
+    }
+
+
+    /**
+     * Returns a description of the specified summary of our failover history: the number of failovers, the fraction that failed, the percentiles of
+     * the time to recover of those that succeeded, and its trend.
+     */
+    private static String describe( final LatencyHistory.Summary _summary ) {
+        return String.format( "%d failovers, %.0f%% failed, time to recover p50 %.1fs, p95 %.1fs, p99 %.1fs, trend %+.0f%%", _summary.probes,
+                _summary.failureRatio * 100, _summary.p50Micros / 1e6, _summary.p95Micros / 1e6, _summary.p99Micros / 1e6, _summary.trend * 100 );
+    }
+
+
+    /**
+     * Called when the router has answered our question about which ISP it's using, asked before deciding on a failover.  If the router still didn't
+     * tell us (it's down, say), we ask again after a phase timeout, rather than right away.
+     */
+    private void handleRouterISPKnown( final EdgeRouter _router ) {
+        awaitingRouterISP = false;
+        if( _router.getIspInUse() == UNKNOWN )
+            ISPMonitor.getTimingWheel().schedule( failoverRetryTimeout, failoverPhaseTimeoutSeconds );
+        else if( _router.getIspInUse() != _router.getIspShouldUse() )
+            handleISPChangeNeeded( _router );
+    }
+
+
+    private void retryFailover() {
+        handleISPChangeNeeded( edgeRouter );
+    }
+
+
+    /**
+     * Answers a request for failover statistics: a summary of the time to recover of our recent failovers (p50, p95, and p99, trend, and the
+     * fraction that failed), and the record of the last one.
+     */
+    private void handleFailoverStatisticsRequest( final Message _request ) {
+
+        LatencyHistory.Summary summary = failoverHistory.summarize();
+        JSONObject stats = new JSONObject();
+        stats.put( "failovers",    summary.probes       );
+        stats.put( "failureRatio", summary.failureRatio );
+        stats.put( "p50Micros",    summary.p50Micros    );
+        stats.put( "p95Micros",    summary.p95Micros    );
+        stats.put( "p99Micros",    summary.p99Micros    );
+        stats.put( "trend",        summary.trend        );
+        stats.put( "sloMicros",    failoverSLOMicros    );
+        if( isNotNull( lastFailover ) )
+            stats.put( "last", lastFailover.toJSON() );
+
+        Message reply = ISPMonitor.getMailbox().createDirectMessage( _request.from, "failover.statistics", false );
+        reply.put( "statistics", stats );
+        ISPMonitor.getMailbox().send( reply );
+    }
+
+
+    /**
+     * Handles a {@link EventType#RouterISP} {@link Event}, which the {@link EdgeRouter} posts when the router has confirmed that it switched to a
+     * different ISP.  Our SSH tunnels are still riding on the old ISP's path, so we move them to the new one.
+     */
     private void handleRouterISP( final ISPChoice _ispChoice ) {
+        LOGGER.info( "Router switched to " + _ispChoice + " ISP" );
+        if( isNotNull( hosts ) )
+            hosts.migrateTunnels();
+    }
 
+
+    /**
+     * Handles a {@link EventType#RouterNotification} {@link Event}, which the {@link RouterNotificationListener} posts when the router tells us its
+     * default route has changed.
+     */
+    private void handleRouterNotification( final ISPChoice _ispChoice ) {
+        if( isNotNull( edgeRouter ) )
+            edgeRouter.handleNotification( _ispChoice );
     }
 
 
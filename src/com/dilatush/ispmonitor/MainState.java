@@ -7,5 +7,6 @@ public enum MainState {
 
     INITIAL,
     STOPPED,
-    RUNNING;
+    RUNNING,
+    FAILING_OVER;   // switching the router to the other ISP (see Failover)...
 }
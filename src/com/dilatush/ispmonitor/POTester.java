@@ -14,9 +14,12 @@ import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.SystemAvailability.DOWN;
 import static com.dilatush.ispmonitor.SystemAvailability.UP;
+import static com.dilatush.util.General.isNull;
 
 /**
- * Implements a test for connectivity of monitored MOP applications to the Central Post Office.
+ * Implements a test for connectivity of monitored MOP applications to the Central Post Office.  The queries are made through a mailbox that only
+ * this tester reads (the state machine's testing mailbox), so that the central post office's replies never land in the monitor mailbox, whose only
+ * reader is ISPMonitor's MOP listener (which would take them for requests).
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -36,7 +39,7 @@ public class POTester {
      *
      * @param _config the configuration data
      * @param _hosts the {@link RemoteHosts} containing information about services that use MOP post offices
-     * @param _mailbox the MOP mailbox to be used for querying the MOP central post office
+     * @param _mailbox the MOP mailbox to be used for querying the MOP central post office (not the monitor mailbox; see above)
      */
     public POTester( final Config _config, final RemoteHosts _hosts, final Mailbox _mailbox ) {
 
@@ -69,44 +72,71 @@ public class POTester {
     private class RunTests extends TimerTask {
 
         /**
-         * Queue the query task...
+         * Queue the query task; if it can't be started before the next one is queued, it's stale and will be dropped...
          */
         @Override
         public void run() {
 
             // start the tests...
-            ISPMonitor.executeTask( () -> {
+            final long deadline = System.currentTimeMillis() + intervalMS;
+            ISPMonitor.executeTask( new Task() {
 
-                // send the query to the central post office...
-                mailbox.send( mailbox.createDirectMessage( "central.po", "manage.connected", false ) );
+                @Override
+                public void run() {
+                    query();
+                }
 
-                try {
+                @Override
+                public long getDeadline() {
+                    return deadline;
+                }
+            } );
+        }
 
-                    // wait for a response, for a limited time...
-                    Message response = mailbox.poll( timeoutMS, TimeUnit.MILLISECONDS );
 
-                    // make sure we got the right message...
-                    if( "central.po".equals( response.from) && "manage.connected".equals( response.type) ) {
+        private void query() {
 
-                        // get the connected post offices...
-                        String connectedPOs = response.getString( "postOffices" );
+            // send the query to the central post office...
+            mailbox.send( mailbox.createDirectMessage( "central.po", "manage.connected", false ) );
 
-                        LOGGER.fine( "Connected Post Offices: " + connectedPOs );
+            try {
 
-                        // analyze the connected post offices we just received, versus the ones we're monitoring...
-                        Set<String> connectedPostOffices = new HashSet<>( Arrays.asList( connectedPOs.split( "," ) ) );
-                        for( String monitoredPO : postOffices ) {
+                // wait for a response, for a limited time, skipping anything else (such as a late reply to an earlier query)...
+                long    deadline = System.currentTimeMillis() + timeoutMS;
+                Message response = null;
+                while( isNull( response ) && (System.currentTimeMillis() < deadline) ) {
+                    Message message = mailbox.poll( deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+                    if( isNull( message ) )
+                        break;
+                    if( "central.po".equals( message.from ) && "manage.connected".equals( message.type ) )
+                        response = message;
+                    else
+                        LOGGER.fine( "Ignoring unexpected message (" + message.type + ") from " + message.from );
+                }
 
-                            // send an event describing the result...
-                            SystemAvailability sa = connectedPostOffices.contains( monitoredPO ) ? UP : DOWN;
-                            ISPMonitor.postEvent( new Event( EventType.PostOfficeTest, new POTestResult( sa, monitoredPO ) ) );
-                        }
-                    }
+                // if we didn't get a response in time, we don't know anything about the post offices...
+                if( isNull( response ) ) {
+                    LOGGER.info( "No response from the central post office within " + timeoutMS + "ms" );
+                    return;
                 }
-                catch( InterruptedException _ie ) {
-                    LOGGER.warning( "Post office query task interrupted" );
+
+                // get the connected post offices...
+                String connectedPOs = response.getString( "postOffices" );
+
+                LOGGER.fine( "Connected Post Offices: " + connectedPOs );
+
+                // analyze the connected post offices we just received, versus the ones we're monitoring...
+                Set<String> connectedPostOffices = new HashSet<>( Arrays.asList( connectedPOs.split( "," ) ) );
+                for( String monitoredPO : postOffices ) {
+
+                    // send an event describing the result...
+                    SystemAvailability sa = connectedPostOffices.contains( monitoredPO ) ? UP : DOWN;
+                    ISPMonitor.postEvent( new Event( EventType.PostOfficeTest, new POTestResult( sa, monitoredPO ) ) );
                 }
-            } );
+            }
+            catch( InterruptedException _ie ) {
+                LOGGER.warning( "Post office query task interrupted" );
+            }
         }
     }
 }
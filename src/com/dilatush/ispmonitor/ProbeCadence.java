@@ -0,0 +1,101 @@
+package com.dilatush.ispmonitor;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before the next probe of something (such as a DNS server), based on whether the last probe gave any reason for
+ * suspicion.  While probes are consistently good, the interval between them stretches (by {@link #STRETCH} each time) from the minimum interval
+ * up to the maximum interval.  As soon as a probe is suspicious, the next {@link #BURST_PROBES} probes are made in a quick burst, with only
+ * {@link #BURST_SECONDS} between them, to quickly confirm or rule out a problem; if the problem persists after that, probes are made at the minimum
+ * interval until things are good again.  Each interval (other than in a burst) is jittered by up to {@link #JITTER} either way, so that probes of
+ * different things don't fall into lockstep.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class ProbeCadence {
+
+    /* package-private */ static final int    BURST_PROBES  = 3;
+    /* package-private */ static final double BURST_SECONDS = 0.25;
+
+    private static final double STRETCH = 1.5;
+    private static final double JITTER  = 0.1;
+
+    private final double minSeconds;
+    private final double maxSeconds;
+    private final Random random;
+
+    private double       stableSeconds;   // the interval to use next while things are good...
+    private boolean      suspected;       // true from the first suspicious probe until a good one...
+    private int          burstLeft;       // the number of probes left in the current burst...
+
+
+    /**
+     * Creates a new instance of {@link ProbeCadence} with the specified minimum and maximum intervals, using the specified source of randomness for
+     * jitter.
+     *
+     * @param _minSeconds the minimum interval between probes, in seconds (other than in a burst)
+     * @param _maxSeconds the maximum interval between probes, in seconds
+     * @param _random the source of randomness for jitter
+     */
+    /* package-private */ ProbeCadence( final double _minSeconds, final double _maxSeconds, final Random _random ) {
+
+        // sanity check...
+        if( (_minSeconds <= 0) || (_maxSeconds < _minSeconds) )
+            throw new IllegalArgumentException( "Invalid probe intervals: " + _minSeconds + " to " + _maxSeconds );
+
+        minSeconds    = _minSeconds;
+        maxSeconds    = _maxSeconds;
+        random        = _random;
+        stableSeconds = _minSeconds;
+    }
+
+
+    /**
+     * Returns the number of seconds to wait before the next probe, given whether the last probe was suspicious.
+     *
+     * @param _suspicious {@code true} if the last probe gave any reason to suspect a problem
+     * @return the number of seconds until the next probe
+     */
+    /* package-private */ double next( final boolean _suspicious ) {
+
+        // if things are good, stretch the interval a bit more...
+        if( !_suspicious ) {
+            suspected = false;
+            burstLeft = 0;
+            double seconds = stableSeconds;
+            stableSeconds = Math.min( maxSeconds, stableSeconds * STRETCH );
+            return jitter( seconds );
+        }
+
+        // if this is the first suspicious probe, start a burst...
+        if( !suspected ) {
+            suspected     = true;
+            burstLeft     = BURST_PROBES;
+            stableSeconds = minSeconds;
+        }
+
+        // if we're in a burst, probe again right away; otherwise at the minimum interval...
+        if( burstLeft > 0 ) {
+            burstLeft--;
+            return BURST_SECONDS;
+        }
+        return jitter( minSeconds );
+    }
+
+
+    /**
+     * Returns {@code true} if the last probe was suspicious (or any since the last good one).
+     *
+     * @return {@code true} if a problem is suspected
+     */
+    /* package-private */ boolean isSuspected() {
+        return suspected;
+    }
+
+
+    private double jitter( final double _seconds ) {
+        return _seconds * (1 + JITTER * (2 * random.nextDouble() - 1));
+    }
+}
@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.SystemAvailability.*;
 import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
 
 /**
  * Contains information about a remote host, including the services it hosts and the SSH tunnel we might have to it.  Provides methods to start, stop,
@@ -21,12 +22,21 @@ import static com.dilatush.util.General.isNotNull;
 
     private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
 
+    private static final double TUNNEL_CHECK_SECONDS = 0.25;  // often enough to catch a stalled tunnel within a few hundred milliseconds...
+    private static final double BATCH_SECONDS        = 0.1;   // how long to gather up commands before running them as a batch...
+
     private final String                     hostname;
     private final String                     user;                // null if same user as this process...
     private final String                     identityFile;        // null if same identity file path (to private key) as this process...
     private final Map<String, Command>       commands;            // key is the command's name...
     private final SSHTunnel                  tunnel;              // null if this remote host has no tunnel to it...
     private final Map<String, RemoteService> services;            // key is the service's systemd name...
+    private final TimingWheel.Timeout        tunnelCheckTimeout;
+    private final AvailabilityTally          serviceStates;       // the number of our services in each state...
+    private final AvailabilityTally          postOfficeStates;    // the number of our services' post offices in each state...
+    private final TimingWheel.Timeout        batchTimeout;
+
+    private CommandBatch                     batch;               // the commands waiting to be run, or null if there are none...
 
     private SystemAvailability               desiredTunnelState;
     private SystemAvailability               actualTunnelState;
@@ -46,6 +56,9 @@ import static com.dilatush.util.General.isNotNull;
         identityFile       = _config.has( "identityFile" ) ? _config.getString( "identityFile" ) : null;
         desiredTunnelState = DOWN;
         actualTunnelState  = DOWN;
+        tunnelCheckTimeout = new TimingWheel.Timeout( this::checkTunnel );
+        batchTimeout       = new TimingWheel.Timeout( this::runBatch );
+        ISPMonitor.getHostResolver().prefetch( hostname );
 
         // get our tunnel, if we have one...
         tunnel = SSHTunnel.getTunnelIfSpecified( this, _config );
@@ -54,35 +67,137 @@ import static com.dilatush.util.General.isNotNull;
         commands = Command.getCommands( _config, "commands" );
 
         // get any services we might have...
-        services = new HashMap<>();
+        services         = new HashMap<>();
+        serviceStates    = new AvailabilityTally();
+        postOfficeStates = new AvailabilityTally();
         if( _config.has( "services" ) ) {
             JSONArray serviceArray = _config.getJSONArray( "services" );
             for( int i = 0; i < serviceArray.length(); i++ ) {
                 JSONObject serviceObj = serviceArray.getJSONObject( i );
-                services.put( serviceObj.getString( "name" ), new RemoteService( this, serviceObj ) );
+                RemoteService service = new RemoteService( this, serviceObj );
+                services.put( serviceObj.getString( "name" ), service );
+                serviceStates.add( service.getState() );
+                if( isNotNull( service.getPostOffice() ) )
+                    postOfficeStates.add( service.getPostOfficeState() );
             }
         }
     }
 
 
-    /* package-private */ void heartbeat() {
+    /**
+     * Checks our tunnel; called by the {@link TimingWheel} periodically, for as long as we want the tunnel to be up.  This runs on the event thread,
+     * so it only checks; starting the tunnel is done in a task (see {@link SSHTunnel#start()}), and the tunnel is marked up by a later check, once
+     * its ssh process is running.
+     */
+    private void checkTunnel() {
+
+        // if our tunnel was up, but it has died or stopped carrying data, tear it down...
+        if( isNotNull( tunnel ) && (actualTunnelState == UP) && !tunnel.isUp() ) {
+            LOGGER.info( "SSH tunnel to " + hostname + " is down; " + tunnel.getProbeStatistics() );
+            tunnel.stop();
+            actualTunnelState = DOWN;
+        }
 
-        // if we have a tunnel, and the tunnel is supposed to be up, but it's not, then start it up...
+        // if we have a tunnel, and the tunnel is supposed to be up, but it's not, then see if our last start worked, and start it if not...
         if( isNotNull( tunnel ) && (desiredTunnelState == UP) && (actualTunnelState != UP) ) {
-            tunnel.start();
             if( tunnel.isUp() )
                 actualTunnelState = UP;
+            else
+                tunnel.start();
         }
+
+        // if we still want the tunnel up, check it again later...
+        if( desiredTunnelState == UP )
+            ISPMonitor.getTimingWheel().schedule( tunnelCheckTimeout, TUNNEL_CHECK_SECONDS );
+    }
+
+
+    /**
+     * Moves our tunnel (if we have one, and it's up) to the path to the Internet that the router is now using; called when the router switches ISPs.
+     */
+    /* package-private */ void migrateTunnel() {
+        if( isNotNull( tunnel ) && (actualTunnelState == UP) ) {
+            LOGGER.info( "Migrating SSH tunnel to " + hostname + "; " + tunnel.getProbeStatistics() );
+            tunnel.migrate();
+        }
+    }
+
+
+    /**
+     * Runs the specified command on this host (via SSH), handing its result to the specified handler.  Rather than running the command right away,
+     * we gather up all the commands for this host that arrive within {@link #BATCH_SECONDS}, and run them all with a single SSH invocation (see
+     * {@link CommandBatch}).  Upon completion, the handler gets the same {@link SSHResult} it would have if the command had been run by itself.
+     *
+     * @param _command the command to run
+     * @param _handler the handler for the command's result
+     */
+    /* package-private */ void execute( final Command _command, final SSHResultHandler _handler ) {
+
+        // if this is the first command in a batch, start the batch, and schedule it to run...
+        if( isNull( batch ) ) {
+            batch = new CommandBatch();
+            ISPMonitor.getTimingWheel().schedule( batchTimeout, BATCH_SECONDS );
+        }
+        batch.add( _command, _handler );
+    }
+
+
+    /**
+     * Runs the commands we've gathered up; called by the {@link TimingWheel} when the batch window closes.
+     */
+    private void runBatch() {
+        LOGGER.finer( "Running batch of " + batch.size() + " commands on " + hostname );
+        ISPMonitor.executeTask( batch.toTask( hostname, user, identityFile ) );
+        batch = null;
     }
 
 
-    /* package-private */ void serviceStateChanged() {
-        LOGGER.info( "Service state changed" );
+    /**
+     * Called by one of our services when its state is about to change from the specified state to the specified state.
+     *
+     * @param _from the service's old state
+     * @param _to the service's new state
+     */
+    /* package-private */ void serviceStateChanged( final SystemAvailability _from, final SystemAvailability _to ) {
+
+        SystemAvailability before = serviceStates.worst();
+        serviceStates.change( _from, _to );
+        LOGGER.info( "Service state changed on " + hostname + " (" + serviceStates + ")" );
+        if( serviceStates.worst() != before )
+            LOGGER.info( "Services on " + hostname + " are now " + serviceStates.worst() + " (were " + before + ")" );
     }
 
 
-    /* package-private */ void postOfficeStateChanged() {
-        LOGGER.info( "Post office connection state changed" );
+    /**
+     * Called by one of our services when the state of its post office connection is about to change from the specified state to the specified state.
+     *
+     * @param _from the post office's old state
+     * @param _to the post office's new state
+     */
+    /* package-private */ void postOfficeStateChanged( final SystemAvailability _from, final SystemAvailability _to ) {
+        postOfficeStates.change( _from, _to );
+        LOGGER.info( "Post office connection state changed on " + hostname + " (" + postOfficeStates + ")" );
+    }
+
+
+    /**
+     * Returns the availability of this host's services as a whole: up only if all of them are up, and down if any of them are down.
+     *
+     * @return the availability of our services
+     */
+    /* package-private */ SystemAvailability getServicesAvailability() {
+        return serviceStates.worst();
+    }
+
+
+    /**
+     * Returns the availability of the post office connections of this host's services as a whole: up only if all of them are connected, and down if
+     * any of them aren't.
+     *
+     * @return the availability of our services' post offices
+     */
+    /* package-private */ SystemAvailability getPostOfficesAvailability() {
+        return postOfficeStates.worst();
     }
 
 
@@ -140,6 +255,10 @@ import static com.dilatush.util.General.isNotNull;
 
     public void setDesiredTunnelState( final SystemAvailability _desiredTunnelState ) {
         desiredTunnelState = _desiredTunnelState;
+
+        // if we want the tunnel up, start checking it on the next tick...
+        if( (desiredTunnelState == UP) && !tunnelCheckTimeout.isScheduled() )
+            ISPMonitor.getTimingWheel().schedule( tunnelCheckTimeout, 1 );
     }
 
 
@@ -5,8 +5,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -59,15 +61,6 @@ import static com.dilatush.util.General.isNotNull;
     }
 
 
-    /* package-private */ void heartbeat() {
-
-        // call heartbeat on each configured host...
-        for( RemoteHost host : hosts.values() ) {
-            host.heartbeat();
-        }
-    }
-
-
     /* package-private */ Set<RemoteService> getServicesUsingPostOffice() {
         return new HashSet<>( servicesByPO.values() );
     }
@@ -84,6 +77,31 @@ import static com.dilatush.util.General.isNotNull;
     }
 
 
+    /**
+     * Returns the services (on all our hosts) that are stopped while the router switches ISPs, because they depend on the path to the Internet.
+     *
+     * @return the services stopped for failover
+     */
+    /* package-private */ List<RemoteService> getServicesStoppedForFailover() {
+        List<RemoteService> services = new ArrayList<>();
+        for( RemoteHost host : hosts.values() ) {
+            for( RemoteService service : host.getServices() ) {
+                if( service.isStoppedForFailover() )
+                    services.add( service );
+            }
+        }
+        return services;
+    }
+
+
+    /**
+     * Moves the tunnels to all our hosts to the path to the Internet that the router is now using (see {@link SSHTunnel#migrate()}).
+     */
+    /* package-private */ void migrateTunnels() {
+        hosts.values().forEach( RemoteHost::migrateTunnel );
+    }
+
+
     /* package-private */ RemoteHost getHost( final String _hostname ) {
         return hosts.get( _hostname );
     }
@@ -6,13 +6,14 @@ import java.util.Map;
 import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.SystemAvailability.*;
+import static com.dilatush.util.General.isNotNull;
 
 /**
  * Contains information about a systemd service running on a remote host, as configured in the configuration file.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
-/* package-private */ class RemoteService {
+/* package-private */ class RemoteService implements Failover.Service {
 
     private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
 
@@ -20,6 +21,7 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
     private final String                     name;      // the systemd name of this service...
     private final String                     po;        // the MOP post office used by this service, or null if it doesn't use a post office at all...
     private final Map<String, Command>       commands;  // key is the command's name...
+    private final boolean                    stopForFailover;  // true if this service is stopped while the router switches ISPs...
 
     private       SystemAvailability         state;     // the current state of this service...
     private       SystemAvailability         poState;   // the current state of the post office associated with this service (unknown if none)...
@@ -44,6 +46,11 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
         // get any commands we might have...
         commands = Command.getCommands( _config, "commands" );
 
+        // if this service depends on the path to the Internet, it's stopped during a failover, so we need to be able to stop and start it...
+        stopForFailover = _config.optBoolean( "stopForFailover", false );
+        if( stopForFailover && !(commands.containsKey( "stop" ) && commands.containsKey( "start" )) )
+            throw new IllegalArgumentException( "Service " + name + " is stopped for failover, but has no stop or start command" );
+
         state = UNKNOWN;
         poState = UNKNOWN;
     }
@@ -59,6 +66,17 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
     }
 
 
+    @Override
+    public SystemAvailability getState() {
+        return state;
+    }
+
+
+    /* package-private */ SystemAvailability getPostOfficeState() {
+        return poState;
+    }
+
+
     /* package-private */ RemoteHost getHost() {
         return host;
     }
@@ -79,27 +97,41 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
     }
 
 
+    /* package-private */ boolean isStoppedForFailover() {
+        return stopForFailover;
+    }
+
+
     /* package-private */ void updatePostOfficeAvailability( final SystemAvailability _poAvailability ) {
 
         // if our new state is different than the previous state...
         if( _poAvailability != poState ) {
 
-            // update it...
+            // let the host know, then update it...
+            host.postOfficeStateChanged( poState, _poAvailability );
             poState = _poAvailability;
-
-            // let the host know...
-            host.postOfficeStateChanged();
         }
     }
 
 
     /**
-     * Runs a command on the server (via SSH) hosting the specified systemd service that will stop that service.  This job is queued and may not
-     * execute immediately.  Upon completion, a {@link EventType#SSHResult} event is dispatched, with a payload of {@link SSHResult} that describes
-     * the result.  The event handler calls {@link #handleStop(SSHResult)} to process the result.
+     * Runs a command on the server (via SSH) hosting the specified systemd service that will stop that service.  This job is batched with any
+     * other commands for the same host (see {@link RemoteHost#execute(Command, SSHResultHandler)}), and may not execute immediately.  Upon
+     * completion, the result, an {@link SSHResult}, is handled by {@link #handleStop(SSHResult)}.
      */
     /* package-private */ void stop() {
-        ISPMonitor.executeTask( new SSHTask( this::handleStop, host.getHostname(), host.getUser(), host.getIdentityFile(), commands.get( "stop" ) ) );
+        stop( null );
+    }
+
+
+    /**
+     * Stops this service, just as {@link #stop()} does, then runs the specified action once the result has been handled.
+     *
+     * @param _then the action to run once the service's state is updated, or {@code null} for none
+     */
+    @Override
+    public void stop( final Runnable _then ) {
+        host.execute( commands.get( "stop" ), _result -> { handleStop( _result ); run( _then ); } );
     }
 
 
@@ -109,12 +141,23 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
 
 
     /**
-     * Runs a command on the server (via SSH) hosting the specified systemd service that will start that service.  This job is queued and may not
-     * execute immediately.  Upon completion, a {@link EventType#SSHResult} event is dispatched, with a payload of {@link SSHResult} that describes
-     * the result.  The event handler calls {@link #handleStart(SSHResult)} to process the result.
+     * Runs a command on the server (via SSH) hosting the specified systemd service that will start that service.  This job is batched with any
+     * other commands for the same host (see {@link RemoteHost#execute(Command, SSHResultHandler)}), and may not execute immediately.  Upon
+     * completion, the result, an {@link SSHResult}, is handled by {@link #handleStart(SSHResult)}.
      */
     /* package-private */ void start() {
-        ISPMonitor.executeTask( new SSHTask( this::handleStart, host.getHostname(), host.getUser(), host.getIdentityFile(), commands.get( "start" ) ) );
+        start( null );
+    }
+
+
+    /**
+     * Starts this service, just as {@link #start()} does, then runs the specified action once the result has been handled.
+     *
+     * @param _then the action to run once the service's state is updated, or {@code null} for none
+     */
+    @Override
+    public void start( final Runnable _then ) {
+        host.execute( commands.get( "start" ), _result -> { handleStart( _result ); run( _then ); } );
     }
 
 
@@ -124,12 +167,12 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
 
 
     /**
-     * Runs a command on the server (via SSH) hosting the specified systemd service that will restart that service.  This job is queued and may not
-     * execute immediately.  Upon completion, a {@link EventType#SSHResult} event is dispatched, with a payload of {@link SSHResult} that describes
-     * the result.  The event handler calls {@link #handleRestart(SSHResult)} to process the result.
+     * Runs a command on the server (via SSH) hosting the specified systemd service that will restart that service.  This job is batched with any
+     * other commands for the same host (see {@link RemoteHost#execute(Command, SSHResultHandler)}), and may not execute immediately.  Upon
+     * completion, the result, an {@link SSHResult}, is handled by {@link #handleRestart(SSHResult)}.
      */
     /* package-private */ void restart() {
-        ISPMonitor.executeTask( new SSHTask( this::handleRestart, host.getHostname(), host.getUser(), host.getIdentityFile(), commands.get( "restart" ) ) );
+        host.execute( commands.get( "restart" ), this::handleRestart );
     }
 
 
@@ -139,12 +182,12 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
 
 
     /**
-     * Runs a command on the server (via SSH) hosting the specified systemd service that will check that service to see if it is active.  This job is
-     * queued and may not execute immediately.  Upon completion, a {@link EventType#SSHResult} event is dispatched, with a payload of
-     * {@link SSHResult} that describes the result.  The event handler calls {@link #handleCheck(SSHResult)} to process the result.
+     * Runs a command on the server (via SSH) hosting the specified systemd service that will check that service to see if it is active.  This job
+     * is batched with any other commands for the same host (see {@link RemoteHost#execute(Command, SSHResultHandler)}), and may not execute
+     * immediately.  Upon completion, the result, an {@link SSHResult}, is handled by {@link #handleCheck(SSHResult)}.
      */
     /* package-private */ void check() {
-        ISPMonitor.executeTask( new SSHTask( this::handleCheck, host.getHostname(), host.getUser(), host.getIdentityFile(), commands.get( "check" ) ) );
+        host.execute( commands.get( "check" ), this::handleCheck );
     }
 
 
@@ -179,7 +222,13 @@ import static com.dilatush.ispmonitor.SystemAvailability.*;
         if( _newState == state )
             return;
 
+        host.serviceStateChanged( state, _newState );  // notify the host object that we're changing...
         state = _newState;
-        host.serviceStateChanged();  // notify the host object that we've changed...
+    }
+
+
+    private static void run( final Runnable _action ) {
+        if( isNotNull( _action ) )
+            _action.run();
     }
 }
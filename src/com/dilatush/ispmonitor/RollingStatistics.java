@@ -0,0 +1,196 @@
+package com.dilatush.ispmonitor;
+
+/**
+ * Keeps rolling statistics about the latency and loss of some kind of probe (such as a DNS query), over a window of the most recent samples.  Each
+ * sample is either a latency (in microseconds) or a loss.  The statistics kept are:
+ * <ul>
+ *     <li>an exponentially weighted moving average (EWMA) of the latency, which responds quickly to a change in latency while smoothing out
+ *     noise</li>
+ *     <li>a histogram of the latencies in the window, from which percentiles can be read; the histogram has eight buckets for each power of two, so
+ *     a percentile is accurate to within about 12%</li>
+ *     <li>the ratio of losses to samples in the window</li>
+ * </ul>
+ * <p>All the memory this needs is allocated when an instance is created, so recording samples and reading statistics allocate nothing.  Instances
+ * of this class are mutable and are not threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class RollingStatistics {
+
+    private static final int  SUB_BUCKET_BITS = 3;
+    private static final int  SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_LATENCY     = Integer.MAX_VALUE;                              // about 36 minutes, in microseconds...
+    private static final int  BUCKETS         = bucket( MAX_LATENCY ) + 1;
+    private static final long LOSS            = -1;
+
+    private final long[]  window;      // the samples in the window, as a ring; LOSS for a loss...
+    private final int[]   histogram;   // the number of latencies in the window in each bucket...
+    private final double  weight;      // the weight of each new latency in the EWMA...
+
+    private int           next;        // the index in the window that the next sample goes into...
+    private int           samples;     // the number of samples in the window...
+    private int           latencies;   // the number of latencies in the window...
+    private int           losses;      // the number of losses in the window...
+    private double        ewma;        // in microseconds; negative until the first latency is recorded...
+
+
+    /**
+     * Creates a new instance of {@link RollingStatistics} with a window of the specified number of samples, and the specified weight for new
+     * latencies in the EWMA.
+     *
+     * @param _windowSize the number of samples in the window
+     * @param _weight the weight (0 < weight <= 1) of each new latency in the EWMA
+     */
+    /* package-private */ RollingStatistics( final int _windowSize, final double _weight ) {
+
+        // sanity checks...
+        if( _windowSize < 1 )
+            throw new IllegalArgumentException( "Statistics window must have at least one sample: " + _windowSize );
+        if( !((_weight > 0) && (_weight <= 1)) )
+            throw new IllegalArgumentException( "EWMA weight must be in (0..1]: " + _weight );
+
+        window    = new long[_windowSize];
+        histogram = new int[BUCKETS];
+        weight    = _weight;
+        ewma      = -1;
+    }
+
+
+    /**
+     * Records a sample with the specified latency.
+     *
+     * @param _micros the latency, in microseconds
+     */
+    /* package-private */ void recordLatency( final long _micros ) {
+
+        long latency = Math.max( 0, Math.min( MAX_LATENCY, _micros ) );
+        ewma = (ewma < 0) ? latency : ewma + weight * (latency - ewma);
+        add( latency );
+    }
+
+
+    /**
+     * Records a sample that was lost (that is, a probe that got no response).
+     */
+    /* package-private */ void recordLoss() {
+        add( LOSS );
+    }
+
+
+    /**
+     * Returns the number of samples in the window, which is less than the window size only until the window fills.
+     *
+     * @return the number of samples in the window
+     */
+    /* package-private */ int getSamples() {
+        return samples;
+    }
+
+
+    /**
+     * Returns the EWMA of the latency, in microseconds, or zero if no latency has been recorded yet.
+     *
+     * @return the EWMA of the latency
+     */
+    /* package-private */ long getEWMA() {
+        return Math.round( Math.max( 0, ewma ) );
+    }
+
+
+    /**
+     * Returns the ratio (0..1) of losses to samples in the window, or zero if the window is empty.
+     *
+     * @return the loss ratio
+     */
+    /* package-private */ double getLossRatio() {
+        return (samples == 0) ? 0 : (double) losses / samples;
+    }
+
+
+    /**
+     * Returns the specified percentile (like 0.95 for the 95th percentile) of the latencies in the window, in microseconds, or zero if there are no
+     * latencies in the window.  The value returned is the upper bound of the histogram bucket the percentile falls in.
+     *
+     * @param _percentile the percentile to return, in (0..1]
+     * @return the latency at that percentile
+     */
+    /* package-private */ long getPercentile( final double _percentile ) {
+
+        if( latencies == 0 )
+            return 0;
+
+        // find the bucket holding the sample with the percentile's rank...
+        int rank = Math.max( 1, (int) Math.ceil( _percentile * latencies ) );
+        int count = 0;
+        for( int b = 0; b < BUCKETS; b++ ) {
+            count += histogram[b];
+            if( count >= rank )
+                return upperBound( b );
+        }
+        return MAX_LATENCY;
+    }
+
+
+    /**
+     * Adds the specified sample to the window, evicting the oldest sample if the window is full.
+     */
+    private void add( final long _sample ) {
+
+        // if the window is full, take out the sample we're about to overwrite...
+        if( samples == window.length )
+            remove( window[next] );
+        else
+            samples++;
+
+        // then put in the new one...
+        window[next] = _sample;
+        next = (next + 1) % window.length;
+        if( _sample == LOSS )
+            losses++;
+        else {
+            latencies++;
+            histogram[bucket( _sample )]++;
+        }
+    }
+
+
+    private void remove( final long _sample ) {
+        if( _sample == LOSS )
+            losses--;
+        else {
+            latencies--;
+            histogram[bucket( _sample )]--;
+        }
+    }
+
+
+    /**
+     * Returns the histogram bucket for the specified latency.  Latencies below {@link #SUB_BUCKETS} each have their own bucket; above that, each
+     * power of two is divided into {@link #SUB_BUCKETS} buckets.
+     */
+    private static int bucket( final long _latency ) {
+        if( _latency < SUB_BUCKETS )
+            return (int) _latency;
+        int exponent = 63 - Long.numberOfLeadingZeros( _latency );
+        int sub      = (int) (_latency >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+
+    /**
+     * Returns the largest latency in the specified histogram bucket.
+     */
+    private static long upperBound( final int _bucket ) {
+        if( _bucket < SUB_BUCKETS )
+            return _bucket;
+        int  exponent = _bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lower    = (long) (SUB_BUCKETS + (_bucket % SUB_BUCKETS)) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+
+    public String toString() {
+        return String.format( "%d samples, EWMA %.1fms, p50 %.1fms, p95 %.1fms, loss %.1f%%", samples, getEWMA() / 1000.0,
+                getPercentile( 0.5 ) / 1000.0, getPercentile( 0.95 ) / 1000.0, getLossRatio() * 100 );
+    }
+}
@@ -0,0 +1,552 @@
+package com.dilatush.ispmonitor;
+
+import org.json.JSONObject;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.ISPChoice.*;
+import static com.dilatush.ispmonitor.SSHResultType.*;
+import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * Controls a MikroTik router through the RouterOS API, as an alternative to running the RouterOS scripts (in "Router Scripts") over SSH.  The API
+ * is a simple protocol on TCP port 8728 (or 8729 with TLS): each request and each reply is a "sentence" of "words", each word preceded by its
+ * length (in a variable-length encoding), and each sentence ended by an empty word.  We keep one connection to the router open and logged in, and
+ * use it for every router operation, so that querying or switching the ISP costs a single round-trip instead of an SSH connection (or even a new
+ * channel on one), a script run, and the parsing of its printed output:
+ * <ul>
+ *     <li>Getting the current ISP reads the active default route, and decides which ISP it goes through by its interface (from its gateway status),
+ *     just as the get_isp script does.</li>
+ *     <li>Switching the ISP sets the gateway of the default route(s) in one request.  The IDs of the default routes are read when we connect, so
+ *     they don't have to be looked up each time.</li>
+ * </ul>
+ * If the connection has broken (the router rebooted, say) when an operation is attempted, it's reconnected and the operation is retried, once.
+ * The results are handed back as {@link SSHResult}s with the same output as the scripts ("PRIMARY", "SECONDARY", "SUCCESS", or "ERROR"), so the
+ * {@link EdgeRouter} handles them the same way, whichever way the router is controlled.
+ *
+ * <p>Instances of this class are threadsafe.  The operations block, so they are only done by the tasks returned by
+ * {@link #getCurrentISP(SSHResultHandler)} and {@link #setISP(ISPChoice, SSHResultHandler)}.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class RouterAPI {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final int      DEFAULT_PORT       = 8728;
+    private static final int      DEFAULT_TLS_PORT   = 8729;
+    private static final int      DEFAULT_TIMEOUT_MS = 2000;
+    private static final String   DEFAULT_ROUTE      = "0.0.0.0/0";
+    private static final String   REACHABLE_VIA      = "reachable via";
+    private static final String[] ROUTE_IDS_REQUEST  = { "/ip/route/print", "?dst-address=" + DEFAULT_ROUTE, "=.proplist=.id" };
+
+    private final String  hostname;
+    private final int     port;
+    private final boolean tls;
+    private final String  user;
+    private final String  password;
+    private final int     timeoutMS;
+    private final String  primaryGateway;
+    private final String  secondaryGateway;
+    private final String  primaryInterface;
+    private final String  secondaryInterface;
+
+    // all the following are guarded by this instance...
+    private Socket       socket;      // our connection to the router, or null if we're not connected...
+    private InputStream  in;
+    private OutputStream out;
+    private String       routeIDs;    // the IDs of the router's default routes, comma-separated...
+
+
+    /**
+     * Creates a new instance of {@link RouterAPI} for the router with the specified host name, configured by the specified "api" object from the
+     * router's configuration.  Doesn't connect until the first operation.
+     *
+     * @param _hostname the host name or dotted-form IP address of the router
+     * @param _config the API configuration
+     */
+    /* package-private */ RouterAPI( final String _hostname, final JSONObject _config ) {
+
+        hostname           = _hostname;
+        tls                = _config.optBoolean( "tls", false );
+        port               = _config.optInt( "port", tls ? DEFAULT_TLS_PORT : DEFAULT_PORT );
+        user               = _config.getString( "user" );
+        password           = _config.optString( "password", "" );
+        timeoutMS          = _config.optInt( "timeoutMS", DEFAULT_TIMEOUT_MS );
+        primaryGateway     = _config.getString( "primaryGateway" );
+        secondaryGateway   = _config.getString( "secondaryGateway" );
+        primaryInterface   = _config.optString( "primaryInterface", "ether1" );
+        secondaryInterface = _config.optString( "secondaryInterface", "ether2" );
+
+        // sanity checks...
+        if( isEmpty( user ) || isEmpty( primaryGateway ) || isEmpty( secondaryGateway ) || (timeoutMS < 1) )
+            throw new IllegalArgumentException( "Router API user, gateways, or timeout missing or invalid" );
+    }
+
+
+    /**
+     * Returns a task that gets the ISP the router is currently using, and hands the result ("PRIMARY", "SECONDARY", or "ERROR") to the specified
+     * handler.
+     *
+     * @param _handler the handler for the result
+     * @return the task
+     */
+    /* package-private */ Task getCurrentISP( final SSHResultHandler _handler ) {
+        return new APITask( _handler, TaskPriority.VERIFICATION ) {
+            @Override
+            protected String operate() throws IOException {
+                ISPChoice isp = queryISP();
+                return ((isp == PRIMARY) || (isp == SECONDARY)) ? isp.toString() : "ERROR";
+            }
+        };
+    }
+
+
+    /**
+     * Returns a task that switches the router to the specified ISP (primary or secondary), and hands the result ("SUCCESS" or "ERROR") to the
+     * specified handler.  As with the router scripts, success means not just that the router accepted the change, but that its active default route
+     * now goes through the specified ISP.
+     *
+     * @param _isp the ISP to switch to
+     * @param _handler the handler for the result
+     * @return the task
+     */
+    /* package-private */ Task setISP( final ISPChoice _isp, final SSHResultHandler _handler ) {
+
+        // sanity check...
+        if( (_isp != PRIMARY) && (_isp != SECONDARY) )
+            throw new IllegalArgumentException( "Can't switch router to ISP: " + _isp );
+
+        return new APITask( _handler, TaskPriority.CONTROL ) {
+            @Override
+            protected String operate() throws IOException {
+                setGateway( (_isp == PRIMARY) ? primaryGateway : secondaryGateway );
+                return (queryISP() == _isp) ? "SUCCESS" : "ERROR";
+            }
+        };
+    }
+
+
+    /**
+     * Reads the router's active default route, and returns the ISP that it goes through, or {@link ISPChoice#UNKNOWN} if we can't tell.
+     */
+    private synchronized ISPChoice queryISP() throws IOException {
+
+        List<Map<String,String>> routes = call( "/ip/route/print", "?dst-address=" + DEFAULT_ROUTE, "?active=yes",
+                "=.proplist=.id,gateway,gateway-status,immediate-gw" );
+        if( routes.size() < 2 )   // the last reply is the "!done"...
+            return UNKNOWN;
+        Map<String,String> route = routes.get( 0 );
+
+        // figure out the route's interface, either from its immediate gateway (RouterOS 7) or from its gateway status (RouterOS 6)...
+        String interfaceName = null;
+        String immediate     = route.get( "immediate-gw" );
+        String status        = route.get( "gateway-status" );
+        if( isNotNull( immediate ) && (immediate.indexOf( '%' ) >= 0) )
+            interfaceName = immediate.substring( immediate.indexOf( '%' ) + 1 );
+        else if( isNotNull( status ) && status.contains( REACHABLE_VIA ) )
+            interfaceName = status.substring( status.indexOf( REACHABLE_VIA ) + REACHABLE_VIA.length() ).trim();
+
+        // if we know the interface, that tells us the ISP; otherwise we fall back to the gateway...
+        String gateway = route.get( "gateway" );
+        if( isNotNull( interfaceName ) )
+            return primaryInterface.equals( interfaceName ) ? PRIMARY : secondaryInterface.equals( interfaceName ) ? SECONDARY : UNKNOWN;
+        return primaryGateway.equals( gateway ) ? PRIMARY : secondaryGateway.equals( gateway ) ? SECONDARY : UNKNOWN;
+    }
+
+
+    /**
+     * Sets the gateway of the router's default route(s) to the specified gateway.  If the route IDs we have are stale, we read them again and retry.
+     */
+    private synchronized void setGateway( final String _gateway ) throws IOException {
+        try {
+            call( "/ip/route/set", "=.id=" + getRouteIDs(), "=gateway=" + _gateway );
+        }
+        catch( TrapException _e ) {
+            routeIDs = null;
+            call( "/ip/route/set", "=.id=" + getRouteIDs(), "=gateway=" + _gateway );
+        }
+    }
+
+
+    /**
+     * Returns the IDs of the router's default routes, reading them if we don't already have them.
+     */
+    private String getRouteIDs() throws IOException {
+
+        if( isNull( routeIDs ) )
+            routeIDs = routeIDs( call( ROUTE_IDS_REQUEST ) );
+        if( isNull( routeIDs ) )
+            throw new IOException( "Router has no default route" );
+        return routeIDs;
+    }
+
+
+    /**
+     * Returns the route IDs in the specified replies, comma-separated, or {@code null} if there are none.
+     */
+    private static String routeIDs( final List<Map<String,String>> _replies ) {
+        StringBuilder ids = new StringBuilder();
+        for( Map<String,String> route : _replies ) {
+            if( route.containsKey( ".id" ) )
+                ids.append( (ids.length() == 0) ? "" : "," ).append( route.get( ".id" ) );
+        }
+        return (ids.length() == 0) ? null : ids.toString();
+    }
+
+
+    /**
+     * Sends the specified request to the router, and returns the attributes of each reply sentence (the last being the "!done").  If our connection
+     * was already open, but has broken, we reconnect and try again, once.
+     *
+     * @throws TrapException if the router reports that the request failed
+     * @throws IOException on any problem talking to the router
+     */
+    private List<Map<String,String>> call( final String... _words ) throws IOException {
+
+        boolean reused = isNotNull( socket );
+        try {
+            connect();
+            return exchange( _words );
+        }
+        catch( TrapException _e ) {
+            throw _e;
+        }
+        catch( IOException _e ) {
+            close();
+            if( !reused )
+                throw _e;
+            LOGGER.fine( "Router API connection to " + hostname + " broke (" + _e.getMessage() + "); reconnecting" );
+        }
+        try {
+            connect();
+            return exchange( _words );
+        }
+        catch( TrapException _e ) {
+            throw _e;
+        }
+        catch( IOException _e ) {
+            close();
+            throw _e;
+        }
+    }
+
+
+    /**
+     * Connects to the router and logs in, if we're not already connected.
+     */
+    private void connect() throws IOException {
+
+        if( isNotNull( socket ) )
+            return;
+
+        // if we don't have the router's address, don't bother trying; the lookup could stall us for a long time...
+        InetAddress address = ISPMonitor.getHostResolver().resolve( hostname );
+        if( isNull( address ) )
+            throw new IOException( "No address for " + hostname );
+
+        long start = System.currentTimeMillis();
+        socket = tls ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        socket.connect( new InetSocketAddress( address, port ), timeoutMS );
+        socket.setSoTimeout( timeoutMS );
+        socket.setTcpNoDelay( true );
+        in  = new BufferedInputStream( socket.getInputStream() );
+        out = new BufferedOutputStream( socket.getOutputStream() );
+
+        try {
+            // log in; a router before RouterOS 6.43 answers with a challenge, which we answer with an MD5 hash of it and our password...
+            List<Map<String,String>> reply = exchange( "/login", "=name=" + user, "=password=" + password );
+            String challenge = reply.get( reply.size() - 1 ).get( "ret" );
+            if( isNotNull( challenge ) )
+                exchange( "/login", "=name=" + user, "=response=00" + challengeResponse( challenge ) );
+
+            // get the IDs of the default routes now, so that switching the ISP takes just one request...
+            routeIDs = routeIDs( exchange( ROUTE_IDS_REQUEST ) );
+        }
+        catch( IOException _e ) {
+            close();
+            throw _e;
+        }
+        LOGGER.info( "Connected to router API on " + hostname + ":" + port + " in " + (System.currentTimeMillis() - start) + "ms" );
+    }
+
+
+    private String challengeResponse( final String _challenge ) throws IOException {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+            md5.update( (byte) 0 );
+            md5.update( password.getBytes( StandardCharsets.UTF_8 ) );
+            md5.update( fromHex( _challenge ) );
+            return toHex( md5.digest() );
+        }
+        catch( NoSuchAlgorithmException _e ) {
+            throw new IOException( "MD5 not available for router login", _e );
+        }
+    }
+
+
+    /**
+     * Closes our connection to the router (if we have one).
+     */
+    private void close() {
+        if( isNotNull( socket ) ) {
+            try {
+                socket.close();
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing router API connection to " + hostname, _e );
+            }
+        }
+        socket = null;
+        in     = null;
+        out    = null;
+    }
+
+
+    /**
+     * Writes the specified sentence, then reads reply sentences through the "!done", returning the attributes of each.
+     */
+    private List<Map<String,String>> exchange( final String... _words ) throws IOException {
+
+        writeSentence( out, _words );
+        List<Map<String,String>> replies = new ArrayList<>();
+        String trap = null;
+        while( true ) {
+            List<String> sentence = readSentence( in );
+            if( sentence.isEmpty() )
+                continue;
+            Map<String,String> attributes = attributes( sentence );
+            switch( sentence.get( 0 ) ) {
+                case "!re":    replies.add( attributes );                                                    break;
+                case "!trap":  trap = attributes.getOrDefault( "message", "unknown error" );                 break;
+                case "!fatal": throw new IOException( "Router closed API connection: " + sentence );
+                case "!done":
+                    replies.add( attributes );
+                    if( isNotNull( trap ) )
+                        throw new TrapException( "Router rejected " + _words[0] + ": " + trap );
+                    return replies;
+                default:       LOGGER.fine( "Ignoring unexpected router API reply: " + sentence );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the attributes (words of the form "=name=value") of the specified sentence as a map.
+     */
+    private static Map<String,String> attributes( final List<String> _sentence ) {
+        Map<String,String> attributes = new HashMap<>();
+        for( String word : _sentence ) {
+            int split = word.indexOf( '=', 1 );
+            if( word.startsWith( "=" ) && (split > 0) )
+                attributes.put( word.substring( 1, split ), word.substring( split + 1 ) );
+        }
+        return attributes;
+    }
+
+
+    /**
+     * Writes the specified words as one sentence to the specified stream, and flushes it.
+     *
+     * @param _out the stream to write to
+     * @param _words the words of the sentence
+     * @throws IOException on any I/O problem
+     */
+    /* package-private */ static void writeSentence( final OutputStream _out, final String... _words ) throws IOException {
+        for( String word : _words ) {
+            byte[] bytes = word.getBytes( StandardCharsets.UTF_8 );
+            writeLength( _out, bytes.length );
+            _out.write( bytes );
+        }
+        _out.write( 0 );
+        _out.flush();
+    }
+
+
+    /**
+     * Reads one sentence from the specified stream.
+     *
+     * @param _in the stream to read from
+     * @return the words of the sentence
+     * @throws IOException on any I/O problem, or if the stream ends
+     */
+    /* package-private */ static List<String> readSentence( final InputStream _in ) throws IOException {
+        List<String> words = new ArrayList<>();
+        while( true ) {
+            int length = readLength( _in );
+            if( length == 0 )
+                return words;
+            byte[] bytes = _in.readNBytes( length );
+            if( bytes.length < length )
+                throw new EOFException( "Router API connection closed" );
+            words.add( new String( bytes, StandardCharsets.UTF_8 ) );
+        }
+    }
+
+
+    /**
+     * Writes a word length in the API's encoding: one to five bytes, with the number of leading one bits in the first byte telling how many more
+     * bytes follow.
+     */
+    private static void writeLength( final OutputStream _out, final int _length ) throws IOException {
+        if( _length < 0x80 )
+            _out.write( _length );
+        else if( _length < 0x4000 )
+            writeBytes( _out, _length | 0x8000, 2 );
+        else if( _length < 0x200000 )
+            writeBytes( _out, _length | 0xC00000, 3 );
+        else if( _length < 0x10000000 )
+            writeBytes( _out, _length | 0xE0000000, 4 );
+        else {
+            _out.write( 0xF0 );
+            writeBytes( _out, _length, 4 );
+        }
+    }
+
+
+    private static void writeBytes( final OutputStream _out, final int _value, final int _count ) throws IOException {
+        for( int i = _count - 1; i >= 0; i-- ) {
+            _out.write( (_value >>> (i * 8)) & 0xFF );
+        }
+    }
+
+
+    private static int readLength( final InputStream _in ) throws IOException {
+        int first = readByte( _in );
+        if( (first & 0x80) == 0 )
+            return first;
+        if( (first & 0xC0) == 0x80 )
+            return ((first & 0x3F) << 8) | readByte( _in );
+        if( (first & 0xE0) == 0xC0 )
+            return ((first & 0x1F) << 16) | (readByte( _in ) << 8) | readByte( _in );
+        if( (first & 0xF0) == 0xE0 )
+            return ((first & 0x0F) << 24) | (readByte( _in ) << 16) | (readByte( _in ) << 8) | readByte( _in );
+        if( first == 0xF0 )
+            return (readByte( _in ) << 24) | (readByte( _in ) << 16) | (readByte( _in ) << 8) | readByte( _in );
+        throw new IOException( "Invalid router API word length: " + first );
+    }
+
+
+    private static int readByte( final InputStream _in ) throws IOException {
+        int b = _in.read();
+        if( b < 0 )
+            throw new EOFException( "Router API connection closed" );
+        return b;
+    }
+
+
+    private static String toHex( final byte[] _bytes ) {
+        StringBuilder hex = new StringBuilder();
+        for( byte b : _bytes ) {
+            hex.append( String.format( "%02x", b & 0xFF ) );
+        }
+        return hex.toString();
+    }
+
+
+    private static byte[] fromHex( final String _hex ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for( int i = 0; i + 1 < _hex.length(); i += 2 ) {
+            bytes.write( Integer.parseInt( _hex.substring( i, i + 2 ), 16 ) );
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * The router rejected a request (with a "!trap" reply); the connection itself is fine.
+     */
+    private static class TrapException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+
+        private TrapException( final String _message ) {
+            super( _message );
+        }
+    }
+
+
+    /**
+     * A task that does one router operation, and posts its result as an {@link SSHResult}.
+     */
+    private abstract class APITask implements Task {
+
+        private final SSHResultHandler handler;
+        private final TaskPriority     priority;
+
+
+        private APITask( final SSHResultHandler _handler, final TaskPriority _priority ) {
+            handler  = _handler;
+            priority = _priority;
+        }
+
+
+        /**
+         * Does this task's operation, returning its output.
+         */
+        protected abstract String operate() throws IOException;
+
+
+        @Override
+        public void run() {
+
+            SSHResultType type;
+            String        output = null;
+            long          start  = System.nanoTime();
+            try {
+                output = operate();
+                type   = COMPLETED;
+            }
+            catch( SocketTimeoutException _e ) {
+                LOGGER.log( Level.FINE, "Router API operation on " + hostname + " timed out", _e );
+                type = TIMEOUT;
+            }
+            catch( TrapException _e ) {
+                LOGGER.warning( _e.getMessage() );
+                output = "ERROR";
+                type   = COMPLETED;
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Router API operation on " + hostname + " failed", _e );
+                type = ERROR;
+            }
+            LOGGER.finer( "Router API time: " + (System.nanoTime() - start) / 1000 + "us; output: " + output );
+            ISPMonitor.postEvent( new Event( EventType.SSHResult, new SSHResult( handler, null, type, (type == COMPLETED) ? 0 : -1, output ) ) );
+        }
+
+
+        @Override
+        public String getTarget() {
+            return hostname;   // so that router operations are done one at a time...
+        }
+
+
+        @Override
+        public TaskPriority getPriority() {
+            return priority;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.dilatush.ispmonitor;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.EventType.RouterNotification;
+import static com.dilatush.ispmonitor.ISPChoice.*;
+import static com.dilatush.util.General.isNull;
+
+/**
+ * Listens for UDP datagrams pushed by the router when its default route changes, so that ISPMonitor learns about route changes it didn't make
+ * (by a netwatch script on the router, say) without polling the router.  The router sends these datagrams as syslog messages, through a remote
+ * logging action (see notify_isp.rsc in "Router Scripts"); any datagram containing {@link #MARKER} is a notification.  If the word after the marker
+ * is "PRIMARY" or "SECONDARY", the router is telling us which ISP it's now using; anything else just tells us the route has changed, and the router
+ * should be queried.  Datagrams that don't come from the router, or that don't contain the marker, are ignored.  Each notification is posted as an
+ * {@link Event} of type {@link EventType#RouterNotification}.
+ *
+ * <p>Instances of this class have their own (daemon) thread, which spends its life waiting for datagrams.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class RouterNotificationListener {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    /* package-private */ static final String MARKER = "ispmonitor:";
+
+    private static final int MAX_DATAGRAM_SIZE = 1024;
+
+    private final String         routerHostname;
+    private final DatagramSocket socket;
+
+
+    /**
+     * Creates a new instance of {@link RouterNotificationListener} that listens on the specified UDP port for notifications from the router with the
+     * specified host name, and starts its thread.
+     *
+     * @param _routerHostname the host name or dotted-form IP address of the router
+     * @param _port the UDP port to listen on
+     * @throws SocketException if the port can't be listened on
+     */
+    /* package-private */ RouterNotificationListener( final String _routerHostname, final int _port ) throws SocketException {
+
+        // sanity check...
+        if( (_port < 1) || (_port > 65535) )
+            throw new IllegalArgumentException( "Invalid router notification port: " + _port );
+
+        routerHostname = _routerHostname;
+        socket         = new DatagramSocket( _port );
+
+        Thread thread = new Thread( this::run, "RouterNotificationListener" );
+        thread.setDaemon( true );
+        thread.start();
+        LOGGER.info( "Listening for router notifications on UDP port " + _port );
+    }
+
+
+    /**
+     * The body of our thread: receives datagrams and posts the notifications among them.
+     */
+    private void run() {
+
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket( buffer, buffer.length );
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+            try {
+                packet.setLength( buffer.length );
+                socket.receive( packet );
+
+                // if it isn't from the router, ignore it...
+                InetAddress router = ISPMonitor.getHostResolver().resolve( routerHostname );
+                if( isNull( router ) || !router.equals( packet.getAddress() ) ) {
+                    LOGGER.fine( "Ignoring datagram from " + packet.getAddress() + "; not from router " + routerHostname );
+                    continue;
+                }
+
+                // if it's a notification, post it...
+                ISPChoice isp = parse( new String( packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8 ) );
+                if( isNull( isp ) )
+                    continue;
+                LOGGER.finer( "Router notification: " + isp );
+                ISPMonitor.postEvent( new Event( RouterNotification, isp ) );
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.WARNING, "Problem receiving router notification", _e );
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in router notification listener", _e );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the ISP named by the specified notification text ({@link ISPChoice#UNKNOWN} if it doesn't name one), or {@code null} if the text isn't
+     * a notification at all.
+     *
+     * @param _text the text of a datagram from the router
+     * @return the ISP named, {@link ISPChoice#UNKNOWN}, or {@code null}
+     */
+    /* package-private */ static ISPChoice parse( final String _text ) {
+
+        int marker = _text.indexOf( MARKER );
+        if( marker < 0 )
+            return null;
+
+        String[] words = _text.substring( marker + MARKER.length() ).trim().split( "\\s+" );
+        switch( words[0].toUpperCase() ) {
+            case "PRIMARY":   return PRIMARY;
+            case "SECONDARY": return SECONDARY;
+            default:          return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.dilatush.ispmonitor;
+
+import static com.dilatush.ispmonitor.ISPChoice.UNKNOWN;
+import static com.dilatush.util.General.isNull;
+
+/**
+ * Caches the last ISP that the router confirmed it was using (as determined by its default route), so that asking which ISP the router is using
+ * doesn't mean asking the router every time.  A confirmation (from a query, from switching the ISP, or pushed from the router itself) is valid for
+ * the validity window; while it's valid, no query is needed.  Asking the router while a query is already outstanding doesn't make another one; the
+ * outstanding query's answer serves for both.  When something unexpected happens (a router script reports an error, say), the cached ISP is marked
+ * stale rather than thrown away: it's still the best guess we have, but the next request for the router's state will query the router.  Only when
+ * the router itself seems to be down is the cached ISP forgotten.
+ *
+ * <p>Instances of this class are mutable and are not threadsafe; they're used only from the state machine's thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class RouterState {
+
+    private final long validityMS;
+
+    private ISPChoice  isp;              // the last ISP the router confirmed, or null if it never has...
+    private boolean    forgotten;        // true if the router seemed to go down after confirming it...
+    private long       confirmedMS;      // when the router confirmed it...
+    private boolean    stale;            // true if something since has cast doubt on it...
+    private boolean    queryPending;     // true while a query of the router is outstanding...
+    private long       mergedQueries;    // the number of queries that were answered by an outstanding query (or by a valid ISP)...
+
+
+    /**
+     * Creates a new instance of {@link RouterState} whose confirmations are valid for the specified number of seconds.
+     *
+     * @param _validitySeconds the number of seconds a confirmation from the router is valid
+     */
+    /* package-private */ RouterState( final long _validitySeconds ) {
+
+        // sanity check...
+        if( _validitySeconds < 1 )
+            throw new IllegalArgumentException( "Invalid router state validity: " + _validitySeconds );
+
+        validityMS = _validitySeconds * 1000;
+    }
+
+
+    /**
+     * Returns the last ISP the router confirmed it was using (even if that confirmation is stale or expired), or {@link ISPChoice#UNKNOWN} if it
+     * hasn't confirmed one since it was last forgotten.
+     *
+     * @return the last confirmed ISP
+     */
+    /* package-private */ ISPChoice getISP() {
+        return (isNull( isp ) || forgotten) ? UNKNOWN : isp;
+    }
+
+
+    /**
+     * Returns {@code true} if the router has confirmed the ISP it's using within the validity window, and nothing since has cast doubt on it.
+     *
+     * @return {@code true} if the cached ISP is valid
+     */
+    /* package-private */ boolean isValid() {
+        return !isNull( isp ) && !forgotten && !stale && (System.currentTimeMillis() - confirmedMS < validityMS);
+    }
+
+
+    /**
+     * Called before querying the router for the ISP it's using; returns {@code true} if the query should actually be made, or {@code false} if the
+     * cached ISP is valid or a query is already outstanding.  If this method returns {@code true}, {@link #queryDone()} must be called when the
+     * query's answer arrives.
+     *
+     * @return {@code true} if the router should be queried
+     */
+    /* package-private */ boolean startQuery() {
+        if( queryPending || isValid() ) {
+            mergedQueries++;
+            return false;
+        }
+        queryPending = true;
+        return true;
+    }
+
+
+    /**
+     * Called when the answer to a query started by {@link #startQuery()} arrives (whatever the answer was).
+     */
+    /* package-private */ void queryDone() {
+        queryPending = false;
+    }
+
+
+    /**
+     * Records that the router has confirmed that it's using the specified ISP, and returns {@code true} if that's a different ISP than the last one
+     * it confirmed (including any confirmed before the router went down), not counting the first confirmation after starting up.
+     *
+     * @param _isp the ISP the router confirmed
+     * @return {@code true} if the router's ISP has changed
+     */
+    /* package-private */ boolean confirm( final ISPChoice _isp ) {
+        boolean changed = !isNull( isp ) && (isp != _isp);
+        isp         = _isp;
+        confirmedMS = System.currentTimeMillis();
+        stale       = false;
+        forgotten   = false;
+        return changed;
+    }
+
+
+    /**
+     * Marks the cached ISP as stale, so that the next request for it queries the router.  The cached ISP is still returned by {@link #getISP()}.
+     */
+    /* package-private */ void invalidate() {
+        stale = true;
+    }
+
+
+    /**
+     * Forgets the cached ISP, as when the router seems to be down; {@link #getISP()} returns {@link ISPChoice#UNKNOWN} until the router confirms an
+     * ISP again.
+     */
+    /* package-private */ void forget() {
+        forgotten = true;
+    }
+
+
+    public String toString() {
+        return "router ISP " + getISP() + (isValid() ? " (valid)" : " (stale)") + (queryPending ? ", query pending" : "")
+                + ", " + mergedQueries + " queries merged";
+    }
+}
@@ -0,0 +1,368 @@
+package com.dilatush.ispmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.SSHResultType.*;
+import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
+import static com.dilatush.util.Strings.isEmpty;
+import static com.dilatush.util.Strings.stripTrailingNewlines;
+
+/**
+ * Keeps one persistent, authenticated SSH connection open to each remote host (more precisely, to each combination of host, user, and identity
+ * file), and runs commands over it.  Each connection is an OpenSSH "control master": an {@code ssh} process started once, that does the key exchange
+ * and authentication, then listens on a control socket.  Each command is run by an {@code ssh} client that hands the command to the control master
+ * through its socket, and the command runs as a new channel over the existing connection.  That skips the TCP handshake, key exchange, and
+ * authentication, which otherwise dominate the time it takes to run a quick command (like querying the router's current ISP).
+ *
+ * <p>Each connection's health is checked periodically (by asking its control master whether it's still running), and a connection that has died
+ * (or that a command found broken) is reconnected the next time it's needed.  If a connection can't be established, {@link #execute(String, String,
+ * String, Command)} returns {@code null}, and the caller should fall back to running the command with a connection of its own.  It never does so
+ * once a command may have started, so a command is never run twice.  After a connection attempt fails, the next one is held off by a backoff time
+ * that doubles (with random jitter) for each consecutive failure; until then, {@link #execute(String, String, String, Command)} returns {@code null}
+ * right away, rather than waiting out another connection timeout for a host that isn't answering.
+ *
+ * <p>Instances of this class are threadsafe.  Note that {@link #execute(String, String, String, Command)} blocks, so it must only be called from a
+ * task (see {@link ISPMonitor#executeTask(Task)}).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SSHSessionPool {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final String SSH                           = "ssh";
+    private static final long   CONNECT_TIMEOUT_MS            = 10_000;
+    private static final long   CHECK_TIMEOUT_MS              = 2_000;
+    private static final int    SERVER_ALIVE_INTERVAL_SECONDS = 5;
+    private static final int    SERVER_ALIVE_COUNT            = 2;
+    private static final int    SSH_ERROR_EXIT_CODE           = 255;   // the exit code ssh uses for its own errors (as opposed to the command's)...
+    private static final long   MIN_RECONNECT_BACKOFF_MS      = 1_000;
+    private static final long   MAX_RECONNECT_BACKOFF_MS      = 60_000;
+
+    private final File                                controlDir;      // where our control sockets live...
+    private final ConcurrentHashMap<String, Session>  sessions;        // keyed by host, user, and identity file...
+
+
+    /**
+     * Creates a new instance of {@link SSHSessionPool}, which checks the health of its connections at the specified interval.
+     *
+     * @param _healthCheckSeconds the interval between health checks of each connection, in seconds
+     * @throws IOException on any problem creating the directory for control sockets
+     */
+    /* package-private */ SSHSessionPool( final long _healthCheckSeconds ) throws IOException {
+
+        // sanity check...
+        if( _healthCheckSeconds < 1 )
+            throw new IllegalArgumentException( "Invalid SSH health check interval: " + _healthCheckSeconds );
+
+        // our control sockets go in a directory that only we can get to...
+        controlDir = Files.createTempDirectory( "ispmon-ssh", PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rwx------" ) ) )
+                .toFile();
+        controlDir.deleteOnExit();
+        sessions = new ConcurrentHashMap<>();
+
+        // periodically queue a health check of each connection...
+        long healthCheckMS = _healthCheckSeconds * 1000;
+        ISPMonitor.getTimer().scheduleAtFixedRate( new TimerTask() {
+            @Override
+            public void run() {
+                for( Session session : sessions.values() ) {
+                    ISPMonitor.executeTask( session.healthCheck );
+                }
+            }
+        }, healthCheckMS, healthCheckMS );
+
+        // when we shut down, close all our connections...
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> sessions.values().forEach( Session::close ), "SSHSessionPool shutdown" ) );
+    }
+
+
+    /**
+     * Runs the specified command on the specified host, over that host's persistent connection (establishing it first, if need be), and returns the
+     * result.  Returns {@code null} only if the command was certainly never started (because the connection couldn't be established, or the ssh
+     * client couldn't be started); the command may then be run with a connection of its own.  Once the client has started, the command may have run
+     * on the host even if ssh reports a problem, so any failure after that is returned as an {@link SSHResultType#ERROR} result instead, as running
+     * the command again could run it twice.
+     *
+     * @param _hostname the host to run the command on
+     * @param _user the user to run the command as, or {@code null} for the same user as this process
+     * @param _identityFile the path to the identity file (private key) to authenticate with, or {@code null} for the same as this process
+     * @param _command the command to run
+     * @return the result of the command, or {@code null} if it couldn't be run over a persistent connection
+     * @throws InterruptedException if interrupted while waiting for the command
+     */
+    /* package-private */ Execution execute( final String _hostname, final String _user, final String _identityFile, final Command _command )
+            throws InterruptedException {
+
+        // sanity checks...
+        if( isEmpty( _hostname ) || isNull( _command ) )
+            throw new IllegalArgumentException( "Host name or command missing" );
+
+        // get our session, connecting it if need be...
+        String key = _hostname + "|" + _user + "|" + _identityFile;
+        Session session = sessions.computeIfAbsent( key, _key -> new Session( _hostname, _user, _identityFile ) );
+        if( !session.connect() )
+            return null;
+
+        File    outputFile = null;
+        Process process    = null;   // not null once the command may have started...
+        try {
+            // run the command over our session, with its output going to a file (so that it can't fill a pipe and stall while we wait)...
+            long start = System.currentTimeMillis();
+            outputFile = File.createTempFile( "output", null, controlDir );
+            process = start( session.clientArgs( "-o", "ControlMaster=no", session.hostname, _command.command ),
+                    ProcessBuilder.Redirect.to( outputFile ) );
+            if( !process.waitFor( _command.timeoutMS, TimeUnit.MILLISECONDS ) ) {
+                process.destroyForcibly();
+                return new Execution( TIMEOUT, -1, null );
+            }
+            int    exitCode = process.exitValue();
+            String output   = stripTrailingNewlines( read( outputFile ) );
+            LOGGER.finer( "Multiplexed SSH time: " + (System.currentTimeMillis() - start) + "ms" );
+
+            // if ssh itself had a problem, the command may or may not have run, so we report the failure rather than running it again...
+            if( exitCode == SSH_ERROR_EXIT_CODE ) {
+                if( !session.isConnected() ) {
+                    LOGGER.info( "SSH connection to " + _hostname + " is broken; will reconnect" );
+                    session.close();
+                }
+                return new Execution( ERROR, exitCode, output );
+            }
+            return new Execution( COMPLETED, exitCode, output );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.FINE, "Problem running command over SSH connection to " + _hostname, _e );
+
+            // if the ssh client never started, neither did the command, so it's safe to run it another way...
+            if( isNull( process ) )
+                return null;
+            return new Execution( ERROR, -1, null );
+        }
+        finally {
+            if( isNotNull( outputFile ) )
+                //noinspection ResultOfMethodCallIgnored
+                outputFile.delete();
+        }
+    }
+
+
+    /* package-private */ static Process start( final List<String> _args, final boolean _discardOutput ) throws IOException {
+        return start( _args, _discardOutput ? ProcessBuilder.Redirect.DISCARD : ProcessBuilder.Redirect.PIPE );
+    }
+
+
+    private static Process start( final List<String> _args, final ProcessBuilder.Redirect _output ) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder( _args );
+        builder.redirectInput( ProcessBuilder.Redirect.from( new File( "/dev/null" ) ) );
+        builder.redirectError( ProcessBuilder.Redirect.DISCARD );
+        builder.redirectOutput( _output );
+        return builder.start();
+    }
+
+
+    private static String read( final File _file ) throws IOException {
+        return new String( Files.readAllBytes( _file.toPath() ), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * The result of running a command.
+     */
+    /* package-private */ static class Execution {
+
+        /* package-private */ final SSHResultType type;
+        /* package-private */ final int           exitCode;
+        /* package-private */ final String        output;
+
+
+        private Execution( final SSHResultType _type, final int _exitCode, final String _output ) {
+            type     = _type;
+            exitCode = _exitCode;
+            output   = _output;
+        }
+    }
+
+
+    /**
+     * A persistent connection to one host, as one user with one identity file.
+     */
+    private class Session {
+
+        private final String  hostname;
+        private final String  user;           // null if same user as this process...
+        private final String  identityFile;   // null if same identity file as this process...
+        private final File    controlPath;
+        private final Task    healthCheck;
+
+        private Process       master;         // the control master process, or null if we're not connected; guarded by this instance...
+        private int           failures;       // the number of consecutive failed connection attempts; guarded by this instance...
+        private long          nextConnectNanos;  // no connection attempt before this time (System.nanoTime()); guarded by this instance...
+
+
+        private Session( final String _hostname, final String _user, final String _identityFile ) {
+            hostname     = _hostname;
+            user         = _user;
+            identityFile = _identityFile;
+            controlPath  = new File( controlDir, Integer.toHexString( (_hostname + "|" + _user + "|" + _identityFile).hashCode() ) );
+            healthCheck  = new Task() {
+                @Override
+                public void run() {
+                    check();
+                }
+
+                @Override
+                public String getTarget() {
+                    return hostname;   // so that we don't check while a command is running...
+                }
+            };
+        }
+
+
+        /**
+         * Makes sure this session is connected, starting a new control master if need be, and waiting until it's ready (or has failed).  If the last
+         * attempt failed and its backoff time hasn't passed yet, returns {@code false} without trying.
+         *
+         * @return {@code true} if the session is connected
+         */
+        private synchronized boolean connect() throws InterruptedException {
+
+            // if we're already connected, we're done...
+            if( isConnected() )
+                return true;
+            close();
+
+            // if we're backing off after a failure, don't try yet...
+            if( (failures > 0) && (System.nanoTime() - nextConnectNanos < 0) ) {
+                LOGGER.finer( "Not reconnecting to " + hostname + " yet; backing off after " + failures + " failures" );
+                return false;
+            }
+
+            // start a control master, and wait until its socket appears (which means it has connected and authenticated)...
+            try {
+                long start = System.currentTimeMillis();
+                master = SSHSessionPool.start( clientArgs( "-M", "-N",
+                        "-o", "ServerAliveInterval=" + SERVER_ALIVE_INTERVAL_SECONDS, "-o", "ServerAliveCountMax=" + SERVER_ALIVE_COUNT,
+                        "-o", "ConnectTimeout=" + CONNECT_TIMEOUT_MS / 1000, hostname ), true );
+                while( !controlPath.exists() ) {
+                    if( !master.isAlive() || (System.currentTimeMillis() - start > CONNECT_TIMEOUT_MS) ) {
+                        LOGGER.info( "Could not establish persistent SSH connection to " + hostname );
+                        connectFailed();
+                        return false;
+                    }
+                    Thread.sleep( 10 );
+                }
+                failures = 0;
+                LOGGER.info( "Established persistent SSH connection to " + hostname + " in " + (System.currentTimeMillis() - start) + "ms" );
+                return true;
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.WARNING, "Could not start SSH control master for " + hostname, _e );
+                connectFailed();
+                return false;
+            }
+        }
+
+
+        /**
+         * Closes this session after a failed connection attempt, and holds off the next attempt: exponentially longer (up to a limit) for each
+         * consecutive failure, with "equal jitter" (a random time between half and all of that), as {@link SSHTunnel} does.
+         */
+        private void connectFailed() {
+            close();
+            failures++;
+            long ceiling = Math.min( MAX_RECONNECT_BACKOFF_MS, MIN_RECONNECT_BACKOFF_MS << Math.min( failures - 1, 16 ) );
+            long backoffMS = ceiling / 2 + ThreadLocalRandom.current().nextLong( ceiling / 2 + 1 );
+            nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( backoffMS );
+            LOGGER.fine( "Next persistent SSH connection attempt to " + hostname + " no sooner than " + backoffMS + "ms" );
+        }
+
+
+        /**
+         * Returns {@code true} if this session has a control master that's running and listening on its control socket.
+         */
+        private synchronized boolean isConnected() {
+            return isNotNull( master ) && master.isAlive() && controlPath.exists();
+        }
+
+
+        /**
+         * Checks whether our control master is still alive and connected; if it isn't, closes this session (so it will reconnect when next used).
+         */
+        private void check() {
+
+            Process current;
+            synchronized( this ) {
+                current = master;
+            }
+            if( isNull( current ) )
+                return;
+
+            try {
+                Process checker = start( clientArgs( "-O", "check", hostname ), true );
+                boolean healthy = checker.waitFor( CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS ) && (checker.exitValue() == 0) && current.isAlive();
+                if( !healthy ) {
+                    checker.destroyForcibly();
+                    LOGGER.info( "Persistent SSH connection to " + hostname + " failed its health check; will reconnect" );
+                    synchronized( this ) {
+                        if( master == current )
+                            close();
+                    }
+                }
+            }
+            catch( IOException | InterruptedException _e ) {
+                LOGGER.log( Level.FINE, "Could not check SSH connection to " + hostname, _e );
+            }
+        }
+
+
+        /**
+         * Closes this session, stopping its control master (if it has one).
+         */
+        private synchronized void close() {
+            if( isNotNull( master ) ) {
+                master.destroy();
+                master = null;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            controlPath.delete();
+        }
+
+
+        /**
+         * Returns the arguments to run ssh with this session's control path, user, and identity file, followed by the specified arguments.
+         */
+        private List<String> clientArgs( final String... _args ) {
+
+            List<String> args = new ArrayList<>();
+            args.add( SSH );
+            args.add( "-o" );
+            args.add( "BatchMode=yes" );
+            args.add( "-S" );
+            args.add( controlPath.getPath() );
+            if( !isEmpty( user ) ) {
+                args.add( "-l" );
+                args.add( user );
+            }
+            if( !isEmpty( identityFile ) ) {
+                args.add( "-i" );
+                args.add( identityFile );
+            }
+            Collections.addAll( args, _args );
+            return args;
+        }
+    }
+}
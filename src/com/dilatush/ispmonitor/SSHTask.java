@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 
 import static com.dilatush.ispmonitor.SSHResultType.*;
 import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
 import static com.dilatush.util.Strings.stripTrailingNewlines;
 
 /**
@@ -22,14 +23,22 @@ public class SSHTask implements Task {
     private final String           hostname;
     private final String           user;
     private final String           identityFile;
+    private final TaskPriority     priority;
 
 
-    public SSHTask( final SSHResultHandler _handler, final String _hostname, final String _user, final String _identityFile, final Command _command ) {
+    public SSHTask( final SSHResultHandler _handler, final String _hostname, final String _user, final String _identityFile, final Command _command,
+                    final TaskPriority _priority ) {
         handler      = _handler;
         command      = _command;
         hostname     = _hostname;
         user         = _user;
         identityFile = _identityFile;
+        priority     = _priority;
+    }
+
+
+    public SSHTask( final SSHResultHandler _handler, final String _hostname, final String _user, final String _identityFile, final Command _command ) {
+        this( _handler, _hostname, _user, _identityFile, _command, TaskPriority.ROUTINE );
     }
 
 
@@ -41,6 +50,22 @@ public class SSHTask implements Task {
         String        output = null;
 
         try {
+
+            // if the host has never been resolved, ssh will have to look it up itself (which may be slow, but beats not running the command)...
+            if( isNull( ISPMonitor.getHostResolver().resolve( hostname ) ) )
+                LOGGER.fine( "No address (yet) for " + hostname + "; leaving the lookup to ssh" );
+
+            // if we can, run the command over the host's persistent connection...
+            SSHSessionPool pool = ISPMonitor.getSSHSessionPool();
+            SSHSessionPool.Execution execution = isNull( pool ) ? null : pool.execute( hostname, user, identityFile, command );
+            if( isNotNull( execution ) ) {
+                LOGGER.finer( "Exit code: " + execution.exitCode + "; output: " + execution.output );
+                ISPMonitor.postEvent( new Event( EventType.SSHResult,
+                        new SSHResult( handler, command, execution.type, execution.exitCode, execution.output ) ) );
+                return;
+            }
+
+            // otherwise, run it over a connection of its own...
             SSHExecutor executor = new SSHExecutor( hostname, command.command );
             if( isNotNull( user ) )
                 executor.setUser( user );
@@ -69,4 +94,16 @@ public class SSHTask implements Task {
         Event event = new Event( EventType.SSHResult, new SSHResult( handler, command, resultType, exitCode, output ) );
         ISPMonitor.postEvent( event );
     }
+
+
+    @Override
+    public String getTarget() {
+        return hostname;
+    }
+
+
+    @Override
+    public TaskPriority getPriority() {
+        return priority;
+    }
 }
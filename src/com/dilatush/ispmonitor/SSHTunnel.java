@@ -1,22 +1,45 @@
 package com.dilatush.ispmonitor;
 
-import com.dilatush.util.SSHExecutor;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.dilatush.ispmonitor.TaskPriority.CONTROL;
 import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
 import static com.dilatush.util.Strings.isEmpty;
 
 /**
  * Implements a managed, self-tested SSH tunnel, configured through a configuration file.  Typically there is an instance of this class associated
  * with each instance of {@link RemoteHost}.
  *
+ * <p>The tunnel's ssh process is an OpenSSH "control master", listening on a control socket, so that forwards can be added to it while it's running.
+ * That's what lets the tunnel move to a new path without a cold restart when the router switches ISPs (see {@link #migrate()}): a standby master is
+ * connected (and authenticated) over the new path while the old tunnel is still in place, then the old tunnel is killed and its forwards are handed
+ * to the standby.  The forwarded ports are dark only for as long as that hand-off takes, rather than for the many seconds it takes the old ssh
+ * process to notice that its connection is dead, plus a full reconnect.
+ *
+ * <p>Each time the tunnel is started, the next start is held off by a backoff time that doubles (with random jitter) for each start that doesn't
+ * result in a tunnel carrying data, so that a flapping link doesn't make us start ssh processes as fast as we can.  Once the tunnel carries data,
+ * the backoff is reset.
+ *
+ * <p>Starting and migrating both involve forking ssh processes (and migrating involves waiting on the network), so both are done in tasks, in a lane
+ * of their own for each tunnel (so that one never overlaps the other, and the host's commands don't hold either up).  Neither holds this instance's
+ * lock while it forks or waits, so checking whether the tunnel is up never has to wait on them.
+ *
+ * <p>Instances of this class are threadsafe.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class SSHTunnel {
@@ -26,12 +49,34 @@ public class SSHTunnel {
     private final int SERVER_ALIVE_INTERVAL_SECONDS = 5;
     private final int SERVER_ALIVE_COUNT            = 2;
 
+    private static final String SSH                       = "ssh";
+    private static final int    DEFAULT_PROBE_INTERVAL_MS = 100;
+    private static final int    DEFAULT_STALL_MS          = 300;
+    private static final long   STARTUP_GRACE_NANOS       = TimeUnit.SECONDS.toNanos( 10 );  // how long a new tunnel has to start carrying data...
+    private static final long   CONNECT_TIMEOUT_MS        = 10_000;  // how long a standby tunnel has to connect and authenticate...
+    private static final long   FORWARD_TIMEOUT_MS        = 15_000;  // how long we keep trying to hand a forward to a standby tunnel...
+    private static final long   FORWARD_RETRY_MS          = 100;
+    private static final long   MIN_BACKOFF_MS            = 1_000;
+    private static final long   MAX_BACKOFF_MS            = 60_000;
+
     public  final int           testTXPort;
     public  final int           testRXPort;
     private final List<Forward> forwards;
     private final RemoteHost    host;
-
-    private SSHExecutor         sshExecutor;
+    private final TunnelProber  prober;
+    private final File          controlDir;      // where our control sockets live...
+
+    // all the following are guarded by this instance...
+    private Process             master;          // our ssh process, or null if we're not running...
+    private File                controlPath;     // our ssh process's control socket...
+    private int                 generation;      // the number of ssh processes we've started, to give each its own control socket...
+    private boolean             probing;         // true if our prober is running...
+    private boolean             migrating;       // true while we're moving to a new path...
+    private boolean             starting;        // true while a start is queued or underway...
+    private long                startNanos;      // when we last started the tunnel...
+    private long                startEchoes;     // the number of echoes our prober had gotten when we last started the tunnel...
+    private int                 failures;        // the number of starts since we last carried data...
+    private long                nextStartNanos;  // the earliest time we may start again...
 
 
     /**
@@ -45,16 +90,19 @@ public class SSHTunnel {
         // the basics...
         host = _host;
         forwards = new ArrayList<>();
+        nextStartNanos = System.nanoTime();
 
         // first extract the test connection details...
         JSONObject testConnection = _tunnelConfig.getJSONObject( "testConnection" );
         testRXPort       = testConnection.getInt( "localRxPort" );
         testTXPort       = testConnection.getInt( "localTxPort" );
         int remoteRXPort = testConnection.getInt( "remoteRxPort" );
+        prober = new TunnelProber( host.getHostname(), testTXPort, testRXPort,
+                testConnection.optInt( "probeIntervalMS", DEFAULT_PROBE_INTERVAL_MS ), testConnection.optInt( "stallMS", DEFAULT_STALL_MS ) );
 
         // configure our two testing forwards...
         forwards.add( new Forward( true,  testTXPort,   remoteRXPort, "localhost" ) );
-        forwards.add( new Forward( false, remoteRXPort, testRXPort,   "localhost" ) );
+        forwards.add( new Forward( false, testRXPort,   remoteRXPort, "localhost" ) );
 
         // configure the local forwards...
         JSONArray locals = _tunnelConfig.getJSONArray( "localForwards" );
@@ -69,15 +117,113 @@ public class SSHTunnel {
             JSONObject remote = remotes.getJSONObject( i );
             forwards.add( new Forward( false, remote.getInt( "localPort" ), remote.getInt( "remotePort" ), remote.getString( "localHost" ) ) );
         }
+
+        // our control sockets go in a directory that only we can get to...
+        try {
+            controlDir = Files.createTempDirectory( "ispmon-tunnel",
+                    PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rwx------" ) ) ).toFile();
+            controlDir.deleteOnExit();
+        }
+        catch( IOException _e ) {
+            throw new IllegalStateException( "Can't create directory for SSH tunnel control sockets", _e );
+        }
+
+        // when we shut down, don't leave our ssh process behind...
+        Runtime.getRuntime().addShutdownHook( new Thread( this::stop, "SSHTunnel shutdown: " + host.getHostname() ) );
     }
 
 
-    public void start() {
+    /**
+     * Starts this tunnel, with a new ssh process that has all our forwards.  The start is done in a task (see {@link #doStart()}), so this returns
+     * at once; until the new ssh process is running, this tunnel isn't up.  Does nothing if we're in the middle of a migration or a start, or if
+     * we're still backing off after earlier starts that never carried data.
+     */
+    public synchronized void start() {
+
+        // if we're moving to a new path, already starting, or we've started too recently, don't start again just yet...
+        if( migrating || starting || (System.nanoTime() - nextStartNanos < 0) )
+            return;
+
+        starting = true;
+        ISPMonitor.executeTask( new Task() {
+            @Override
+            public void run() {
+                try {
+                    doStart();
+                }
+                finally {
+                    synchronized( SSHTunnel.this ) {
+                        starting = false;
+                    }
+                }
+            }
+
+            @Override
+            public String getTarget() {
+                return taskTarget();
+            }
+
+            @Override
+            public TaskPriority getPriority() {
+                return CONTROL;
+            }
+        } );
+    }
+
+
+    /**
+     * The body of our start task.
+     */
+    private void doStart() {
+
+        // if we don't have the host's address, don't bother trying; ssh's own lookup could stall us for a long time...
+        if( isNull( ISPMonitor.getHostResolver().resolve( host.getHostname() ) ) ) {
+            LOGGER.fine( "No address (yet) for " + host.getHostname() + "; not starting SSH tunnel" );
+            return;
+        }
+
+        // make sure our prober is listening for the test loop (if it can't, we can only tell whether the ssh process is alive)...
+        boolean startProber;
+        synchronized( this ) {
+            startProber = !probing;
+        }
+        if( startProber ) {
+            try {
+                prober.start();
+                synchronized( this ) {
+                    probing = true;
+                }
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.WARNING, "Can't probe SSH tunnel to " + host.getHostname() + "; test port " + testRXPort + " unavailable", _e );
+            }
+        }
 
+        // hold off our next start until this one has had a chance (with a longer wait for each start that doesn't pan out)...
+        File path;
+        synchronized( this ) {
+            stop();
+            failures++;
+            long backoffMS = backoff( failures );
+            nextStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( backoffMS );
+            if( failures > 1 )
+                LOGGER.info( "Starting SSH tunnel to " + host.getHostname() + " (attempt " + failures + "); next attempt no sooner than "
+                        + backoffMS + "ms" );
+            path        = new File( controlDir, "t" + generation++ );
+            controlPath = path;
+            startNanos  = System.nanoTime();
+            startEchoes = prober.getEchoes();
+        }
+
+        // fork our ssh process without holding our lock; if we were stopped in the meantime, it's not wanted...
         try {
-            sshExecutor = getExecutor();
-            LOGGER.finer( "SSH Tunnel about to start: " + sshExecutor );
-            sshExecutor.start();
+            Process process = SSHSessionPool.start( masterArgs( path, true ), true );
+            synchronized( this ) {
+                if( path.equals( controlPath ) )
+                    master = process;
+                else
+                    process.destroy();
+            }
         }
         catch( IOException _e ) {
             LOGGER.log( Level.WARNING, "SSH tunnel cannot connect", _e );
@@ -85,36 +231,260 @@ public class SSHTunnel {
     }
 
 
-    public boolean isUp() {
-        return isNotNull( sshExecutor ) && sshExecutor.isAlive();
+    /**
+     * Returns the time to wait before the next start, after the specified number of starts that haven't carried data: exponentially increasing
+     * (up to a limit), with "equal jitter" (a random time between half and all of that), so that tunnels that fail together don't retry together.
+     */
+    private static long backoff( final int _failures ) {
+        long ceiling = Math.min( MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min( _failures - 1, 16 ) );
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong( ceiling / 2 + 1 );
     }
 
 
     /**
-     * Returns an instance of {@link SSHExecutor} configured with the port forwards configured in this instance.
-     *
-     * @return an instance of {@code SSHExecutor} configured with the port forwards configured in this instance
+     * Returns the target of our start and migration tasks, so that they run one at a time, and so that the host's commands don't hold them up.
      */
-    private SSHExecutor getExecutor() {
+    private String taskTarget() {
+        return host.getHostname() + " tunnel";
+    }
 
-        // get a basic forwarding executor...
-        SSHExecutor executor = new SSHExecutor( host.getHostname(), SERVER_ALIVE_INTERVAL_SECONDS, SERVER_ALIVE_COUNT );
 
-        // if we have a specified user or identity file, provision them...
-        if( !isEmpty( host.getUser() ) )
-            executor.setUser( host.getUser() );
-        if( !isEmpty( host.getIdentityFile() ) )
-            executor.addIdentityFilePath( host.getIdentityFile() );
+    /**
+     * Stops this tunnel, killing its ssh process.
+     */
+    public synchronized void stop() {
+        if( isNotNull( master ) ) {
+            master.destroy();
+            master = null;
+        }
+        if( isNotNull( controlPath ) ) {
+            //noinspection ResultOfMethodCallIgnored
+            controlPath.delete();
+            controlPath = null;
+        }
+    }
+
+
+    /**
+     * Moves this tunnel to the path to the Internet that the router is now using, making the new tunnel before breaking the old one.  A standby
+     * ssh process (with no forwards) is started; once it has connected and authenticated, the old ssh process is killed, and our forwards are added
+     * to the standby.  All this is done in a task, as it involves waiting on the network; while it's underway, this tunnel is reported as up (so
+     * that it isn't restarted out from under the migration).  Does nothing if this tunnel isn't running.
+     */
+    public synchronized void migrate() {
+
+        // if we're not running (or we're already migrating), there's nothing to migrate...
+        if( isNull( master ) || !master.isAlive() || migrating )
+            return;
+
+        migrating = true;
+        ISPMonitor.executeTask( new Task() {
+            @Override
+            public void run() {
+                try {
+                    doMigrate();
+                }
+                finally {
+                    synchronized( SSHTunnel.this ) {
+                        migrating = false;
+                    }
+                }
+            }
+
+            @Override
+            public String getTarget() {
+                return taskTarget();
+            }
+
+            @Override
+            public TaskPriority getPriority() {
+                return CONTROL;
+            }
+        } );
+    }
+
+
+    /**
+     * The body of our migration task.
+     */
+    private void doMigrate() {
 
-        // now add all our forwards...
-        for( Forward forward : forwards ) {
-            if( forward.isLocal )
-                executor.addLocalPortForwarding( forward.localPort, forward.host, forward.remotePort );
+        String hostname = host.getHostname();
+        try {
+            // start our standby, and wait until its control socket appears (which means it has connected and authenticated)...
+            long start       = System.nanoTime();
+            File standbyPath;
+            synchronized( this ) {
+                standbyPath = new File( controlDir, "t" + generation++ );
+            }
+            Process standby = SSHSessionPool.start( masterArgs( standbyPath, false ), true );
+            while( !standbyPath.exists() ) {
+                if( !standby.isAlive() || (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos( CONNECT_TIMEOUT_MS )) ) {
+                    LOGGER.info( "Could not connect standby SSH tunnel to " + hostname + "; leaving the old tunnel in place" );
+                    standby.destroy();
+                    //noinspection ResultOfMethodCallIgnored
+                    standbyPath.delete();
+                    return;
+                }
+                Thread.sleep( 10 );
+            }
+            long readyMS = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+            // the standby is ready, so retire the old tunnel and make the standby our tunnel...
+            long    darkStart;
+            long    echoes;
+            Process old;
+            synchronized( this ) {
+                old = master;
+                stop();
+                darkStart   = System.nanoTime();
+                echoes      = prober.getEchoes();
+                master      = standby;
+                controlPath = standbyPath;
+                startNanos  = darkStart;
+                startEchoes = echoes;
+            }
+
+            // wait (briefly) for the old tunnel to let go of its ports, then hand our forwards to the new tunnel; a remote port may still be held
+            // for a while by the old tunnel's sshd, so we retry...
+            if( isNotNull( old ) )
+                old.waitFor( FORWARD_RETRY_MS * 10, TimeUnit.MILLISECONDS );
+            List<Forward> pending = new ArrayList<>( forwards );
+            while( !pending.isEmpty() && (System.nanoTime() - darkStart < TimeUnit.MILLISECONDS.toNanos( FORWARD_TIMEOUT_MS )) ) {
+                addForwards( pending );
+                if( !pending.isEmpty() )
+                    Thread.sleep( FORWARD_RETRY_MS );
+            }
+            if( !pending.isEmpty() )
+                LOGGER.warning( "Could not move " + pending.size() + " forwards to new SSH tunnel to " + hostname );
+
+            // wait for the first echo through the new tunnel, which tells us how long our forwarded ports were dark...
+            while( (prober.getEchoes() == echoes) && (System.nanoTime() - darkStart < STARTUP_GRACE_NANOS) ) {
+                Thread.sleep( 1 );
+            }
+            if( prober.getEchoes() == echoes )
+                LOGGER.warning( "Migrated SSH tunnel to " + hostname + " (standby ready in " + readyMS + "ms), but it isn't carrying data" );
             else
-                executor.addRemotePortForwarding( forward.remotePort, forward.host, forward.localPort );
+                LOGGER.info( "Migrated SSH tunnel to " + hostname + "; standby ready in " + readyMS + "ms, forwarded ports dark for "
+                        + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - darkStart ) + "ms" );
+        }
+        catch( IOException | InterruptedException _e ) {
+            LOGGER.log( Level.WARNING, "Problem migrating SSH tunnel to " + hostname, _e );
+        }
+    }
+
+
+    /**
+     * Adds the specified forwards to our running ssh process, through its control socket (all at once, to keep our forwarded ports dark as briefly
+     * as possible), and removes the ones that were added from the list.
+     */
+    private void addForwards( final List<Forward> _forwards ) throws InterruptedException {
+
+        File path;
+        synchronized( this ) {
+            path = controlPath;
+        }
+        if( isNull( path ) )
+            return;
+
+        // start an ssh client to add each forward...
+        List<Process> processes = new ArrayList<>();
+        for( Forward forward : _forwards ) {
+            List<String> args = commonArgs( path );
+            Collections.addAll( args, "-O", "forward" );
+            forward.addArgs( args );
+            args.add( host.getHostname() );
+            try {
+                processes.add( SSHSessionPool.start( args, true ) );
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Problem adding forward to SSH tunnel to " + host.getHostname(), _e );
+                processes.add( null );
+            }
+        }
+
+        // then see which ones worked...
+        List<Forward> added = new ArrayList<>();
+        for( int i = 0; i < processes.size(); i++ ) {
+            Process process = processes.get( i );
+            if( isNull( process ) )
+                continue;
+            if( !process.waitFor( FORWARD_RETRY_MS * 10, TimeUnit.MILLISECONDS ) )
+                process.destroyForcibly();
+            else if( process.exitValue() == 0 )
+                added.add( _forwards.get( i ) );
         }
+        _forwards.removeAll( added );
+    }
+
+
+    /**
+     * Returns {@code true} if this tunnel is up: its ssh process is alive, and it's carrying data through its test loop.  A newly started tunnel
+     * is given a few seconds to start carrying data; once it has, it's down as soon as the prober finds it stalled.  While this tunnel is migrating
+     * to a new path, it's considered up.
+     *
+     * @return {@code true} if this tunnel is up
+     */
+    public synchronized boolean isUp() {
+
+        if( migrating )
+            return true;
+        if( isNull( master ) || !master.isAlive() )
+            return false;
+
+        // if we've carried data since we started, our backoff starts over...
+        if( (failures != 0) && (prober.getEchoes() != startEchoes) ) {
+            failures       = 0;
+            nextStartNanos = System.nanoTime();
+        }
+        if( !probing || prober.isLive() )
+            return true;
+
+        // if we haven't carried any data since we were started, we're up only until our grace period runs out...
+        return (prober.getEchoes() == startEchoes) && (System.nanoTime() - startNanos < STARTUP_GRACE_NANOS);
+    }
 
-        return executor;
+
+    /**
+     * Returns a description of the round-trip times and losses of the packets sent through this tunnel's test loop.
+     *
+     * @return the tunnel's probe statistics
+     */
+    public String getProbeStatistics() {
+        return prober.toString();
+    }
+
+
+    /**
+     * Returns the arguments to run a control master for this tunnel with the specified control socket, with all our forwards or with none.
+     */
+    private List<String> masterArgs( final File _controlPath, final boolean _withForwards ) {
+
+        List<String> args = commonArgs( _controlPath );
+        Collections.addAll( args, "-M", "-N", "-o", "ExitOnForwardFailure=yes",
+                "-o", "ServerAliveInterval=" + SERVER_ALIVE_INTERVAL_SECONDS, "-o", "ServerAliveCountMax=" + SERVER_ALIVE_COUNT,
+                "-o", "ConnectTimeout=" + CONNECT_TIMEOUT_MS / 1000 );
+        if( _withForwards )
+            forwards.forEach( _forward -> _forward.addArgs( args ) );
+        args.add( host.getHostname() );
+        return args;
+    }
+
+
+    /**
+     * Returns the arguments to run ssh with the specified control socket, and our host's user and identity file.
+     */
+    private List<String> commonArgs( final File _controlPath ) {
+
+        List<String> args = new ArrayList<>();
+        Collections.addAll( args, SSH, "-o", "BatchMode=yes", "-S", _controlPath.getPath() );
+
+        // if we have a specified user or identity file, provision them...
+        if( !isEmpty( host.getUser() ) )
+            Collections.addAll( args, "-l", host.getUser() );
+        if( !isEmpty( host.getIdentityFile() ) )
+            Collections.addAll( args, "-i", host.getIdentityFile() );
+        return args;
     }
 
 
@@ -144,5 +514,16 @@ public class SSHTunnel {
             remotePort = _remotePort;
             host = _host;
         }
+
+
+        /**
+         * Adds the ssh arguments for this forward to the specified list.
+         */
+        private void addArgs( final List<String> _args ) {
+            if( isLocal )
+                Collections.addAll( _args, "-L", localPort + ":" + host + ":" + remotePort );
+            else
+                Collections.addAll( _args, "-R", remotePort + ":" + host + ":" + localPort );
+        }
     }
 }
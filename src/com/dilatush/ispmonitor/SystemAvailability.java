@@ -1,6 +1,7 @@
 package com.dilatush.ispmonitor;
 
 /**
- * Enumerate the possible availability states of a system.
+ * Enumerate the possible availability states of a system.  A system that is DEGRADED is working, but badly (for instance, with high latency or
+ * high loss).
  */
-enum SystemAvailability {UP, DOWN, UNKNOWN }
+enum SystemAvailability {UP, DEGRADED, DOWN, UNKNOWN }
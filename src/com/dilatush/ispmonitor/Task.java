@@ -6,4 +6,46 @@ package com.dilatush.ispmonitor;
 public interface Task {
 
     public void run();
+
+
+    /**
+     * Returns the target (router hostname, remote hostname, DNS server IP, etc.) that this task operates on, or {@code null} if it has no particular
+     * target.  Tasks with the same target are executed sequentially, in the order they were submitted; tasks with different targets may execute in
+     * parallel.  All tasks with no target share a single lane.
+     *
+     * @return the target of this task, or {@code null} if none
+     */
+    public default String getTarget() {
+        return null;
+    }
+
+
+    /**
+     * Returns the priority class of this task.  Tasks of a more urgent class are executed before tasks of a less urgent class, even if they were
+     * submitted later.  By default tasks are {@link TaskPriority#ROUTINE}.
+     *
+     * @return the priority class of this task
+     */
+    public default TaskPriority getPriority() {
+        return TaskPriority.ROUTINE;
+    }
+
+
+    /**
+     * Returns the time (in milliseconds since the epoch) after which this task is no longer worth executing, or zero if it has no deadline.  A
+     * task whose deadline has passed before it starts executing is dropped; {@link #expire()} is called instead of {@link #run()}.
+     *
+     * @return the deadline for starting this task, or zero if none
+     */
+    public default long getDeadline() {
+        return 0;
+    }
+
+
+    /**
+     * Called (instead of {@link #run()}) when this task is dropped because its deadline passed before it could be executed.  Tasks whose
+     * submitter is waiting for a result should post one here.  By default this does nothing.
+     */
+    public default void expire() {
+    }
 }
@@ -0,0 +1,12 @@
+package com.dilatush.ispmonitor;
+
+/**
+ * Enumerates the ways that {@link TaskExecutor} can execute tasks.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public enum TaskExecutionMode {
+
+    POOL,      // tasks are executed by a fixed pool of platform worker threads, with a limit on queued tasks...
+    VIRTUAL;   // each task is executed on its own virtual thread, with no limit on queued tasks...
+}
@@ -0,0 +1,375 @@
+package com.dilatush.ispmonitor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.TaskExecutionMode.VIRTUAL;
+import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Executes {@link Task}s either on a bounded pool of worker threads, or (in {@link TaskExecutionMode#VIRTUAL} mode) each on its own virtual
+ * thread.  Each task is placed in a "lane" determined by its target (see {@link Task#getTarget()}); the tasks within a lane are executed
+ * sequentially, in the order they were submitted, while tasks in different lanes may execute in parallel.  This means that (for example) a slow SSH
+ * command to the router can't hold up the DNS probes, but two commands to the router will never run at the same time.
+ *
+ * <p>Tasks are also ordered by their priority class (see {@link Task#getPriority()}): within a lane, a more urgent task runs before a less urgent one
+ * even if it was submitted later, and a free worker always takes the lane with the most urgent waiting task.  Tasks of the same priority class run in
+ * the order they were submitted.  A task that has a deadline (see {@link Task#getDeadline()}) that passes before it starts executing is dropped
+ * without running, and counted.
+ *
+ * <p>Virtual threads are only available on Java 21 or later; on earlier runtimes {@link TaskExecutionMode#VIRTUAL} mode falls back to
+ * {@link TaskExecutionMode#POOL} mode.
+ *
+ * <p>Each lane keeps track of how long its tasks waited between submission and execution, so that saturation of a lane (or of the entire pool)
+ * can be observed.
+ *
+ * <p>Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TaskExecutor {
+
+    private static final Logger LOGGER       = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+    private static final String DEFAULT_LANE = "(default)";
+
+    private final TaskExecutionMode           mode;
+    private final int                         maxQueuedTasks;
+    private final Map<String,Lane>            lanes;        // key is the lane's target; guarded by this instance...
+    private final PriorityBlockingQueue<Lane> readyLanes;   // in pool mode, lanes with tasks waiting, that no worker currently owns...
+    private final Thread[]                    workers;      // in pool mode, our worker threads; empty in virtual mode...
+    private final ExecutorService             virtual;      // in virtual mode, the virtual thread per task executor; null in pool mode...
+    private final CountDownLatch              terminated;   // in virtual mode, never counts down, so that join() waits forever...
+
+    private int                               queuedTasks;  // total tasks waiting in all lanes; guarded by this instance...
+    private long                              sequence;     // incremented for each task submitted, for FIFO order within a priority class...
+
+
+    /**
+     * Creates a new instance of {@link TaskExecutor} in the specified mode.  In {@link TaskExecutionMode#POOL} mode, the executor has the specified
+     * number of worker threads, and will accept no more than the specified number of queued (waiting to be executed) tasks; the worker threads are
+     * started immediately.  In {@link TaskExecutionMode#VIRTUAL} mode, both the number of worker threads and the maximum number of queued tasks are
+     * ignored.
+     *
+     * @param _mode the execution mode
+     * @param _workers the number of worker threads (must be at least one)
+     * @param _maxQueuedTasks the maximum number of tasks that may be waiting for execution (must be at least one)
+     */
+    public TaskExecutor( final TaskExecutionMode _mode, final int _workers, final int _maxQueuedTasks ) {
+
+        // sanity checks...
+        if( isNull( _mode ) )
+            throw new IllegalArgumentException( "No task execution mode specified" );
+        if( _workers < 1 )
+            throw new IllegalArgumentException( "Must have at least one worker thread: " + _workers );
+        if( _maxQueuedTasks < 1 )
+            throw new IllegalArgumentException( "Must allow at least one queued task: " + _maxQueuedTasks );
+
+        // the basics...
+        lanes      = new HashMap<>();
+        readyLanes = new PriorityBlockingQueue<>( 16, Lane.READY_ORDER );
+        terminated = new CountDownLatch( 1 );
+        virtual    = (_mode == VIRTUAL) ? getVirtualThreadExecutor() : null;
+        mode       = isNotNull( virtual ) ? VIRTUAL : TaskExecutionMode.POOL;
+
+        // in virtual mode, there are no workers and no limit on queued tasks...
+        if( mode == VIRTUAL ) {
+            maxQueuedTasks = Integer.MAX_VALUE;
+            workers = new Thread[0];
+            return;
+        }
+
+        // otherwise, start up our workers...
+        maxQueuedTasks = _maxQueuedTasks;
+        workers = new Thread[_workers];
+        for( int i = 0; i < _workers; i++ ) {
+            workers[i] = new Thread( this::work, "TaskWorker-" + i );
+            workers[i].setDaemon( true );
+            workers[i].start();
+        }
+    }
+
+
+    /**
+     * Creates a new instance of {@link TaskExecutor} in {@link TaskExecutionMode#POOL} mode, with the specified number of worker threads, that will
+     * accept no more than the specified number of queued (waiting to be executed) tasks.
+     *
+     * @param _workers the number of worker threads (must be at least one)
+     * @param _maxQueuedTasks the maximum number of tasks that may be waiting for execution (must be at least one)
+     */
+    public TaskExecutor( final int _workers, final int _maxQueuedTasks ) {
+        this( TaskExecutionMode.POOL, _workers, _maxQueuedTasks );
+    }
+
+
+    /**
+     * Queues the specified task for execution in the lane for its target.
+     *
+     * @param _task the task to execute
+     * @throws IllegalStateException if the maximum number of queued tasks has been reached
+     */
+    public void execute( final Task _task ) {
+
+        // sanity check...
+        if( isNull( _task ) )
+            throw new IllegalArgumentException( "No task specified" );
+
+        synchronized( this ) {
+
+            if( queuedTasks >= maxQueuedTasks )
+                throw new IllegalStateException( "ISPMonitor task queue is full" );
+
+            // add our task to the lane for its target, making the lane if this is the first time we've seen this target...
+            String target = isNull( _task.getTarget() ) ? DEFAULT_LANE : _task.getTarget();
+            Lane lane = lanes.computeIfAbsent( target, Lane::new );
+            lane.tasks.add( new QueuedTask( _task, sequence++ ) );
+            queuedTasks++;
+
+            // if no worker owns this lane, and it's not already waiting for one, then it's ready for a worker...
+            if( !lane.scheduled ) {
+                lane.scheduled = true;
+                dispatch( lane );
+            }
+
+            // if the lane is waiting for a worker, and our new task is now its most urgent, then re-queue it so that it's in the right position...
+            else if( lane.ready && (lane.tasks.peek() != lane.readyTask) && readyLanes.remove( lane ) ) {
+                dispatch( lane );
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all the worker threads have terminated, which normally means forever.  In virtual mode, this always waits forever.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for( Thread worker : workers ) {
+            worker.join();
+        }
+        if( mode == VIRTUAL )
+            terminated.await();
+    }
+
+
+    /**
+     * Returns the mode this executor is actually running in, which may differ from the requested mode if virtual threads aren't available.
+     *
+     * @return the mode this executor is running in
+     */
+    public TaskExecutionMode getMode() {
+        return mode;
+    }
+
+
+    /**
+     * Returns a snapshot of the statistics for every lane this executor has ever seen.
+     *
+     * @return a list of lane statistics
+     */
+    public synchronized List<LaneStatistics> getLaneStatistics() {
+        List<LaneStatistics> result = new ArrayList<>( lanes.size() );
+        for( Lane lane : lanes.values() ) {
+            result.add( new LaneStatistics( lane ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * Hands the specified lane (which must have at least one task waiting) off for execution: in pool mode, to the ready queue for the next free
+     * worker; in virtual mode, to a new virtual thread.  Must be called while synchronized on this instance.
+     *
+     * @param _lane the lane to dispatch
+     */
+    private void dispatch( final Lane _lane ) {
+        if( mode == VIRTUAL )
+            virtual.execute( () -> runNext( _lane ) );
+        else {
+            _lane.ready     = true;
+            _lane.readyTask = _lane.tasks.peek();
+            readyLanes.add( _lane );
+        }
+    }
+
+
+    /**
+     * The body of each worker thread in pool mode.  A worker takes ownership of the ready lane with the most urgent task, and runs that task.
+     */
+    private void work() {
+
+        try {
+            //noinspection InfiniteLoopStatement
+            while( true ) {
+                runNext( readyLanes.take() );
+            }
+        }
+        catch( InterruptedException _e ) {
+            LOGGER.log( SEVERE, "Task worker interrupted", _e );
+        }
+    }
+
+
+    /**
+     * Runs the most urgent task in the specified lane (which the calling thread owns), then either dispatches the lane again (if it has more tasks)
+     * or releases it.  Since only one thread owns a lane at a time, a lane's tasks run sequentially.  If the task's deadline has already passed, it
+     * is expired instead of being run.
+     *
+     * @param _lane the lane to run the next task from
+     */
+    private void runNext( final Lane _lane ) {
+
+        // get the most urgent task in this lane, and note how long it waited (or that it expired)...
+        QueuedTask queuedTask;
+        boolean    expired;
+        synchronized( this ) {
+            _lane.ready = false;
+            queuedTask = _lane.tasks.poll();
+            queuedTasks--;
+            expired = (queuedTask.deadline != 0) && (System.currentTimeMillis() > queuedTask.deadline);
+            if( expired )
+                _lane.expired++;
+            else
+                _lane.recordWait( System.nanoTime() - queuedTask.queuedNanos );
+        }
+
+        // we catch everything except Errors here, log them, then ignore them, so that one bad task doesn't kill a worker...
+        try {
+            if( expired ) {
+                LOGGER.finer( "Task for " + _lane.target + " expired before it could be run" );
+                queuedTask.task.expire();
+            }
+            else
+                queuedTask.task.run();
+        }
+        catch( RuntimeException _e ) {
+            LOGGER.log( SEVERE, "Unhandled exception caught in task for " + _lane.target, _e );
+        }
+
+        // if there's more to do in this lane, it's ready again; otherwise we release it...
+        synchronized( this ) {
+            if( _lane.tasks.isEmpty() )
+                _lane.scheduled = false;
+            else
+                dispatch( _lane );
+        }
+    }
+
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or {@code null} if the Java runtime doesn't support virtual threads (they
+     * were introduced in Java 21).  We get at it reflectively so that ISPMonitor still builds and runs on earlier runtimes.
+     *
+     * @return the virtual thread per task executor, or {@code null} if virtual threads are not supported
+     */
+    private static ExecutorService getVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch( ReflectiveOperationException _e ) {
+            LOGGER.warning( "Virtual threads are not supported by this Java runtime; using a worker thread pool instead" );
+            return null;
+        }
+    }
+
+
+    /**
+     * Simple POJO to contain a snapshot of the statistics for a single lane.  Instances of this class are immutable and threadsafe.
+     */
+    public static class LaneStatistics {
+
+        public final String target;
+        public final int    queued;       // the number of tasks waiting in this lane...
+        public final long   executed;     // the number of tasks that have been taken from this lane and run...
+        public final long   expired;      // the number of tasks that were dropped from this lane because their deadline passed...
+        public final long   totalWaitMS;  // the total time tasks that were run have waited in this lane...
+        public final long   maxWaitMS;    // the longest time any task has waited in this lane...
+
+
+        private LaneStatistics( final Lane _lane ) {
+            target      = _lane.target;
+            queued      = _lane.tasks.size();
+            executed    = _lane.executed;
+            expired     = _lane.expired;
+            totalWaitMS = TimeUnit.NANOSECONDS.toMillis( _lane.totalWaitNanos );
+            maxWaitMS   = TimeUnit.NANOSECONDS.toMillis( _lane.maxWaitNanos   );
+        }
+
+
+        public String toString() {
+            long average = (executed == 0) ? 0 : totalWaitMS / executed;
+            return target + ": " + queued + " queued, " + executed + " executed, " + expired + " expired, average wait " + average
+                    + "ms, max wait " + maxWaitMS + "ms";
+        }
+    }
+
+
+    /**
+     * The tasks waiting for a single target, and the statistics about them.  All fields are guarded by the owning {@link TaskExecutor}.
+     */
+    private static class Lane {
+
+        // orders lanes in the ready queue by the task that was most urgent when they were queued...
+        private static final Comparator<Lane> READY_ORDER = ( _a, _b ) -> QueuedTask.ORDER.compare( _a.readyTask, _b.readyTask );
+
+        private final String                    target;
+        private final PriorityQueue<QueuedTask> tasks;
+
+        private boolean                         scheduled;        // true if this lane is in the ready queue or owned by a worker...
+        private boolean                         ready;            // true if this lane is in the ready queue...
+        private QueuedTask                      readyTask;        // the most urgent task when this lane was put in the ready queue...
+        private long                            executed;
+        private long                            expired;
+        private long                            totalWaitNanos;
+        private long                            maxWaitNanos;
+
+
+        private Lane( final String _target ) {
+            target = _target;
+            tasks  = new PriorityQueue<>( QueuedTask.ORDER );
+        }
+
+
+        private void recordWait( final long _waitNanos ) {
+            executed++;
+            totalWaitNanos += _waitNanos;
+            if( _waitNanos > maxWaitNanos )
+                maxWaitNanos = _waitNanos;
+        }
+    }
+
+
+    private static class QueuedTask {
+
+        // orders tasks by priority class, then by the order they were submitted...
+        private static final Comparator<QueuedTask> ORDER = Comparator.<QueuedTask,TaskPriority>comparing( _qt -> _qt.priority )
+                .thenComparingLong( _qt -> _qt.sequence );
+
+        private final Task         task;
+        private final TaskPriority priority;
+        private final long         deadline;
+        private final long         sequence;
+        private final long         queuedNanos;
+
+
+        private QueuedTask( final Task _task, final long _sequence ) {
+            task        = _task;
+            priority    = isNull( _task.getPriority() ) ? TaskPriority.ROUTINE : _task.getPriority();
+            deadline    = _task.getDeadline();
+            sequence    = _sequence;
+            queuedNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.dilatush.ispmonitor;
+
+/**
+ * Enumerates the priority classes of {@link Task}s, from most urgent to least urgent.  When a task executor has a choice, it always executes a task
+ * of a more urgent class before one of a less urgent class.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public enum TaskPriority {
+
+    CONTROL,        // commands that change the state of something, such as switching the router's ISP...
+    VERIFICATION,   // queries that verify the result of a control command, such as querying the router's ISP...
+    ROUTINE;        // periodic probes and checks...
+}
@@ -0,0 +1,376 @@
+package com.dilatush.ispmonitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static com.dilatush.ispmonitor.EventType.Heartbeat;
+import static com.dilatush.util.General.isNull;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Implements a hierarchical timing wheel that runs actions on the event thread when their deadline (in ticks, see
+ * {@link ISPMonitor#secondsToTicks(double)}) arrives.  The wheel has four levels of 64 slots each: level 0 holds timeouts due within the current
+ * 64 ticks (8 seconds), level 1 those due within the current 4,096 ticks, and so on, with anything further out than about 24 days held in an overflow
+ * list.  As time advances, the timeouts in a higher level slot are cascaded down to lower levels when that slot's time range begins.  Scheduling,
+ * cancelling, and expiring a timeout are all constant time, no matter how many timeouts there are.
+ *
+ * <p>A driver thread sleeps until the next tick at which something needs to happen (an expiry or a cascade), then posts a
+ * {@link EventType#Heartbeat} event.  The state machine handles that event by calling {@link #advance()}, which runs any expired actions.  This
+ * means that the event thread is only woken when there's actually something to do.
+ *
+ * <p>Except for the driver thread, instances of this class are mutable and <i>not</i> threadsafe; they must only be used from the event thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TimingWheel {
+
+    private static final Logger LOGGER          = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+    private static final Event  HEARTBEAT_EVENT = new Event( Heartbeat );
+    private static final int    SLOT_BITS       = 6;
+    private static final int    SLOTS           = 1 << SLOT_BITS;
+    private static final int    SLOT_MASK       = SLOTS - 1;
+    private static final int    LEVELS          = 4;
+    private static final int    OVERFLOW        = LEVELS;   // the pseudo-level of the overflow list...
+    private static final int    MAX_TICKS       = 1 << (SLOT_BITS * (LEVELS + 1));   // the furthest out a timeout may be scheduled (about 4 years)...
+
+    private final long          startNanos;
+    private final long          tickNanos;
+    private final Timeout[][]   slots;         // the head of the list in each slot, by level and slot...
+    private final long[]        occupied;      // for each level, a bit for each slot that has at least one timeout in it...
+    private final AtomicLong    dueNanos;      // when the driver should next post a heartbeat, or Long.MAX_VALUE if never...
+    private final Thread        driver;
+
+    private Timeout             overflow;      // the head of the list of timeouts that are too far out for the wheel...
+    private long                currentTick;   // the last tick that has been processed...
+
+
+    /**
+     * Creates a new instance of {@link TimingWheel} with the specified tick rate, and starts its driver thread.
+     *
+     * @param _ticksPerSecond the number of ticks per second
+     */
+    /* package-private */ TimingWheel( final int _ticksPerSecond ) {
+
+        startNanos  = System.nanoTime();
+        tickNanos   = TimeUnit.SECONDS.toNanos( 1 ) / _ticksPerSecond;
+        slots       = new Timeout[LEVELS][SLOTS];
+        occupied    = new long[LEVELS];
+        dueNanos    = new AtomicLong( Long.MAX_VALUE );
+        currentTick = 0;
+
+        driver = new Thread( this::drive, "TimingWheel" );
+        driver.setDaemon( true );
+        driver.start();
+    }
+
+
+    /**
+     * Schedules the specified timeout to expire the specified number of ticks from now.  If the timeout was already scheduled, it is rescheduled.
+     *
+     * @param _timeout the timeout to schedule
+     * @param _ticks the number of ticks from now that the timeout should expire (must be at least one, and no more than 2^30)
+     */
+    /* package-private */ void schedule( final Timeout _timeout, final int _ticks ) {
+
+        // sanity checks...
+        if( isNull( _timeout ) )
+            throw new IllegalArgumentException( "No timeout specified" );
+        if( (_ticks < 1) || (_ticks > MAX_TICKS) )
+            throw new IllegalArgumentException( "Ticks must be in [1.." + MAX_TICKS + "]: " + _ticks );
+
+        // if it's already scheduled, take it out first...
+        cancel( _timeout );
+
+        // the wheel's time only moves when something happens, so if nothing is waiting to happen, catch it up to now...
+        long nowTick = nowTick();
+        if( nextWakeTick() > nowTick )
+            currentTick = nowTick;
+
+        // put it in the wheel, and make sure the driver will wake up in time to deal with it...
+        _timeout.dueTick = nowTick + _ticks;
+        insert( _timeout );
+        arm( wakeTick( _timeout ) );
+    }
+
+
+    /**
+     * Schedules the specified timeout to expire in (at least) the specified number of seconds from now.
+     *
+     * @param _timeout the timeout to schedule
+     * @param _seconds the number of seconds from now that the timeout should expire (must be greater than zero)
+     */
+    /* package-private */ void schedule( final Timeout _timeout, final double _seconds ) {
+        schedule( _timeout, ISPMonitor.secondsToTicks( _seconds ) );
+    }
+
+
+    /**
+     * Cancels the specified timeout, if it is scheduled.  Otherwise, does nothing.
+     *
+     * @param _timeout the timeout to cancel
+     */
+    /* package-private */ void cancel( final Timeout _timeout ) {
+
+        if( !_timeout.isScheduled() )
+            return;
+
+        // unlink it from its list...
+        if( _timeout.prev != null )
+            _timeout.prev.next = _timeout.next;
+        else if( _timeout.level == OVERFLOW )
+            overflow = _timeout.next;
+        else {
+            slots[_timeout.level][_timeout.slot] = _timeout.next;
+            if( _timeout.next == null )
+                occupied[_timeout.level] &= ~(1L << _timeout.slot);
+        }
+        if( _timeout.next != null )
+            _timeout.next.prev = _timeout.prev;
+
+        _timeout.prev  = null;
+        _timeout.next  = null;
+        _timeout.level = -1;
+    }
+
+
+    /**
+     * Advances the wheel to the current time, cascading and expiring timeouts as needed.  Expired timeouts have their action run.  Must be called
+     * from the event thread, in response to the {@link EventType#Heartbeat} event posted by the driver.
+     */
+    /* package-private */ void advance() {
+
+        long nowTick = nowTick();
+
+        // process each tick at which something happens, until we catch up to now...
+        long tick;
+        while( (tick = nextWakeTick()) <= nowTick ) {
+
+            currentTick = tick;
+
+            // cascade any higher levels (and the overflow) whose time range begins at this tick, highest first...
+            if( (tick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0 )
+                cascadeOverflow();
+            for( int level = LEVELS - 1; level > 0; level-- ) {
+                if( (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0 )
+                    cascade( level, slotFor( tick, level ) );
+            }
+
+            // run the actions for anything expiring at this tick...
+            expire( slotFor( tick, 0 ) );
+        }
+        currentTick = nowTick;
+
+        // tell the driver when to wake us up next...
+        dueNanos.set( Long.MAX_VALUE );
+        arm( nextWakeTick() );
+    }
+
+
+    /**
+     * Puts the specified timeout (with its due tick set) into the right level and slot, relative to the current tick.  The right level is the lowest
+     * one whose time range (the current tick's range at the next level up) includes the due tick.
+     *
+     * @param _timeout the timeout to insert
+     */
+    private void insert( final Timeout _timeout ) {
+
+        // find the level...
+        int level = 0;
+        while( (level < LEVELS) && ((_timeout.dueTick >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) ) {
+            level++;
+        }
+
+        // if it's too far out for the wheel, it goes in the overflow list...
+        _timeout.prev = null;
+        _timeout.level = level;
+        if( level == OVERFLOW ) {
+            _timeout.next = overflow;
+            if( overflow != null )
+                overflow.prev = _timeout;
+            overflow = _timeout;
+            return;
+        }
+
+        // otherwise, it goes in the slot for its due tick at that level...
+        int slot = slotFor( _timeout.dueTick, level );
+        _timeout.slot = slot;
+        _timeout.next = slots[level][slot];
+        if( _timeout.next != null )
+            _timeout.next.prev = _timeout;
+        slots[level][slot] = _timeout;
+        occupied[level] |= (1L << slot);
+    }
+
+
+    private void cascade( final int _level, final int _slot ) {
+
+        Timeout timeout;
+        while( (timeout = slots[_level][_slot]) != null ) {
+            cancel( timeout );
+            insert( timeout );
+        }
+    }
+
+
+    /**
+     * Reinserts every timeout in the overflow list.  Those still too far out for the wheel go right back into the overflow list, so we detach the
+     * list first, and walk the detached list; taking them from the head of the overflow list would never end.
+     */
+    private void cascadeOverflow() {
+
+        Timeout timeout = overflow;
+        overflow = null;
+        while( timeout != null ) {
+            Timeout next = timeout.next;
+            insert( timeout );
+            timeout = next;
+        }
+    }
+
+
+    /**
+     * Runs the actions of all the timeouts in the specified level 0 slot.  We take them one at a time, as an action may cancel or reschedule any
+     * timeout (including others in this slot).  A rescheduled timeout can't land back in this slot, as it must be due at least one tick from now.
+     */
+    private void expire( final int _slot ) {
+
+        Timeout timeout;
+        while( (timeout = slots[0][_slot]) != null ) {
+
+            cancel( timeout );
+
+            // we catch everything except Errors here, log them, then ignore them, so that one bad action doesn't stop the others...
+            try {
+                timeout.action.run();
+            }
+            catch( RuntimeException _e ) {
+                LOGGER.log( SEVERE, "Unhandled exception caught in timeout action", _e );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the next tick after the current tick at which something must happen: either a level 0 slot expiring, or a higher level slot (or the
+     * overflow list) cascading.  Returns {@link Long#MAX_VALUE} if there are no timeouts at all.
+     */
+    private long nextWakeTick() {
+
+        for( int level = 0; level < LEVELS; level++ ) {
+
+            // any occupied slot at this level is after the current tick's slot at this level...
+            int  current   = slotFor( currentTick, level );
+            long candidate = (current == SLOT_MASK) ? 0 : occupied[level] & (-1L << (current + 1));
+            if( candidate != 0 )
+                return tickFor( level, Long.numberOfTrailingZeros( candidate ) );
+        }
+
+        if( overflow != null )
+            return ((currentTick >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS);
+
+        return Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Returns the tick at which the specified (scheduled) timeout requires attention: either its due tick (if it's in level 0), or the tick at which
+     * its slot cascades.
+     */
+    private long wakeTick( final Timeout _timeout ) {
+        return (_timeout.level == OVERFLOW)
+                ? ((currentTick >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS)
+                : tickFor( _timeout.level, _timeout.slot );
+    }
+
+
+    /**
+     * Returns the first tick of the specified slot at the specified level, within the current tick's range at the next level up.
+     */
+    private long tickFor( final int _level, final int _slot ) {
+        int shift = SLOT_BITS * (_level + 1);
+        return ((currentTick >>> shift) << shift) | ((long) _slot << (SLOT_BITS * _level));
+    }
+
+
+    private long nowTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+
+    private static int slotFor( final long _tick, final int _level ) {
+        return (int) ((_tick >>> (SLOT_BITS * _level)) & SLOT_MASK);
+    }
+
+
+    /**
+     * Makes sure the driver will post a heartbeat no later than the specified tick.
+     */
+    private void arm( final long _tick ) {
+
+        if( _tick == Long.MAX_VALUE )
+            return;
+
+        long nanos = startNanos + _tick * tickNanos;
+        long due;
+        while( (nanos - (due = dueNanos.get()) < 0) || (due == Long.MAX_VALUE) ) {
+            if( dueNanos.compareAndSet( due, nanos ) ) {
+                LockSupport.unpark( driver );
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * The body of the driver thread: sleep until something is due, post a heartbeat, then wait for the event thread to tell us when to wake next.
+     */
+    private void drive() {
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+
+            long due = dueNanos.get();
+            if( due == Long.MAX_VALUE ) {
+                LockSupport.park( this );
+                continue;
+            }
+
+            long wait = due - System.nanoTime();
+            if( wait > 0 ) {
+                LockSupport.parkNanos( this, wait );
+                continue;
+            }
+
+            if( dueNanos.compareAndSet( due, Long.MAX_VALUE ) )
+                ISPMonitor.postEvent( HEARTBEAT_EVENT );
+        }
+    }
+
+
+    /**
+     * A reusable timeout: an action that can be scheduled (and rescheduled) to run on the event thread at some number of ticks in the future.
+     */
+    /* package-private */ static class Timeout {
+
+        private final Runnable action;
+
+        private Timeout        prev;
+        private Timeout        next;
+        private int            level;    // the level this timeout is in (OVERFLOW for the overflow list), or -1 if it isn't scheduled...
+        private int            slot;
+        private long           dueTick;
+
+
+        /* package-private */ Timeout( final Runnable _action ) {
+            action = _action;
+            level  = -1;
+        }
+
+
+        /* package-private */ boolean isScheduled() {
+            return level >= 0;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.dilatush.ispmonitor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.isNotNull;
+import static com.dilatush.util.General.isNull;
+
+/**
+ * Tests whether data actually flows through an {@link SSHTunnel}, by sending small timestamped packets around the tunnel's test loop and timing
+ * their return.  The test loop is a local forward from the tunnel's TX port to the remote host, and a remote forward from there back to the
+ * tunnel's RX port; this prober listens on the RX port and echoes whatever arrives there, and connects to the TX port to send its packets.  So each
+ * packet makes a round trip to the remote host and back, and its echo makes another, all through the real data path of the tunnel.
+ *
+ * <p>A packet is sent every probe interval.  If the oldest packet still waiting for its echo is older than the stall time, the tunnel is stalled:
+ * it's marked not live, the packets still outstanding are counted as lost, and the connection is closed (and reopened for the next probe).  This
+ * catches a tunnel whose ssh process is still running, but that no longer carries any data, within a few hundred milliseconds, rather than the many
+ * seconds it takes SSH's keepalives to give up.  The round-trip times and losses are kept in {@link RollingStatistics}.
+ *
+ * <p>All the work is done on this prober's own thread, with non-blocking channels and a {@link Selector}.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+/* package-private */ class TunnelProber {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
+
+    private static final int    PACKET_LENGTH     = 16;    // a sequence number and the time it was sent...
+    private static final int    MAX_OUTSTANDING   = 64;    // the most packets we'll have waiting for echoes...
+    private static final int    STATISTICS_WINDOW = 100;
+    private static final double LATENCY_WEIGHT    = 0.2;
+
+    private final String              name;
+    private final int                 txPort;
+    private final int                 rxPort;
+    private final long                intervalNanos;
+    private final long                stallNanos;
+    private final RollingStatistics   statistics;     // guarded by itself...
+    private final long[]              sentNanos;      // when each outstanding packet was sent, as a ring indexed by sequence number...
+    private final ByteBuffer          sendBuffer;
+    private final ByteBuffer          receiveBuffer;
+
+    private Selector                  selector;
+    private SocketChannel             client;         // our connection to the TX port, or null if we don't have one...
+    private boolean                   connected;
+    private long                      nextSeq;        // the sequence number of the next packet to send...
+    private long                      oldestSeq;      // the sequence number of the oldest packet still waiting for its echo...
+    private long                      nextSendNanos;
+    private long                      connectNanos;   // when we started connecting...
+
+    private volatile boolean          live;           // true if the last packet's echo came back in time...
+    private volatile long             echoes;         // the number of echoes we've gotten...
+
+
+    /**
+     * Creates a new instance of {@link TunnelProber} for the tunnel with the specified name and test ports, sending a packet at the specified
+     * interval and deciding that the tunnel has stalled when an echo is later than the specified time.  The prober doesn't start until
+     * {@link #start()} is called.
+     *
+     * @param _name the name of the tunnel (for logging)
+     * @param _txPort the local port of the tunnel's local test forward
+     * @param _rxPort the local port the tunnel's remote test forward comes back to
+     * @param _intervalMS the interval between packets, in milliseconds
+     * @param _stallMS how long a packet may wait for its echo before the tunnel is considered stalled, in milliseconds
+     */
+    /* package-private */ TunnelProber( final String _name, final int _txPort, final int _rxPort, final int _intervalMS, final int _stallMS ) {
+
+        // sanity checks...
+        if( (_intervalMS < 1) || (_stallMS < _intervalMS) )
+            throw new IllegalArgumentException( "Invalid tunnel probe interval or stall time: " + _intervalMS + ", " + _stallMS );
+
+        name          = _name;
+        txPort        = _txPort;
+        rxPort        = _rxPort;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos( _intervalMS );
+        stallNanos    = TimeUnit.MILLISECONDS.toNanos( _stallMS );
+        statistics    = new RollingStatistics( STATISTICS_WINDOW, LATENCY_WEIGHT );
+        sentNanos     = new long[MAX_OUTSTANDING];
+        sendBuffer    = ByteBuffer.allocateDirect( PACKET_LENGTH );
+        receiveBuffer = ByteBuffer.allocateDirect( PACKET_LENGTH * MAX_OUTSTANDING );
+    }
+
+
+    /**
+     * Starts listening on the RX port, and starts our thread.  Does nothing if we've already started.
+     *
+     * @throws IOException on any problem opening the selector or listening on the RX port
+     */
+    /* package-private */ synchronized void start() throws IOException {
+
+        if( isNotNull( selector ) )
+            return;
+
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), rxPort ) );
+        server.configureBlocking( false );
+        server.register( selector, SelectionKey.OP_ACCEPT );
+
+        Thread thread = new Thread( this::run, "TunnelProber-" + name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Returns {@code true} if packets are getting through the tunnel: the last packet's echo came back within the stall time.
+     *
+     * @return {@code true} if the tunnel is carrying data
+     */
+    /* package-private */ boolean isLive() {
+        return live;
+    }
+
+
+    /**
+     * Returns the number of echoes that have come back through the tunnel since this prober started.
+     *
+     * @return the number of echoes
+     */
+    /* package-private */ long getEchoes() {
+        return echoes;
+    }
+
+
+    /**
+     * The body of our thread: send packets when they're due, echo whatever arrives on the RX port, time the echoes that come back, and watch for
+     * stalls.
+     */
+    private void run() {
+
+        nextSendNanos = System.nanoTime();
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+
+            // we catch everything except Errors here, log them, then ignore them, so that we don't terminate this thread...
+            try {
+
+                // wait until the next packet is due, handling whatever is ready in the meantime...
+                long waitMS = TimeUnit.NANOSECONDS.toMillis( nextSendNanos - System.nanoTime() );
+                if( waitMS > 0 )
+                    selector.select( this::ready, waitMS );
+                else
+                    selector.selectNow( this::ready );
+
+                // if we've stalled, say so...
+                long now = System.nanoTime();
+                if( (oldestSeq < nextSeq) && (now - sentNanos[(int) (oldestSeq % MAX_OUTSTANDING)] > stallNanos) )
+                    fail( "no echo in " + TimeUnit.NANOSECONDS.toMillis( stallNanos ) + "ms" );
+                else if( isNotNull( client ) && !connected && (now - connectNanos > stallNanos) )
+                    fail( "no connection to test port " + txPort + " in " + TimeUnit.NANOSECONDS.toMillis( stallNanos ) + "ms" );
+
+                // if it's time, send another packet...
+                if( now - nextSendNanos >= 0 ) {
+                    nextSendNanos = now + intervalNanos;
+                    send( now );
+                }
+            }
+            catch( Exception _e ) {
+                LOGGER.log( Level.SEVERE, "Unhandled exception caught in tunnel prober for " + name, _e );
+            }
+        }
+    }
+
+
+    /**
+     * Sends a packet around the test loop, connecting first if we need to.
+     */
+    private void send( final long _nowNanos ) throws IOException {
+
+        // if we're not connected, start connecting; we'll send when the next packet is due...
+        if( isNull( client ) ) {
+            try {
+                connectNanos = _nowNanos;
+                client = SocketChannel.open();
+                client.configureBlocking( false );
+                connected = client.connect( new InetSocketAddress( InetAddress.getLoopbackAddress(), txPort ) );
+                client.register( selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT );
+            }
+            catch( IOException _e ) {
+                fail( "can't connect to test port " + txPort );
+            }
+            return;
+        }
+        if( !connected )
+            return;
+
+        // if we have too many packets waiting, don't send any more (we'll stall soon anyway)...
+        if( nextSeq - oldestSeq >= MAX_OUTSTANDING )
+            return;
+
+        // send our packet...
+        sendBuffer.clear();
+        sendBuffer.putLong( nextSeq );
+        sendBuffer.putLong( _nowNanos );
+        sendBuffer.flip();
+        try {
+            client.write( sendBuffer );
+        }
+        catch( IOException _e ) {
+            fail( "can't send to test port " + txPort );
+            return;
+        }
+        sentNanos[(int) (nextSeq % MAX_OUTSTANDING)] = _nowNanos;
+        nextSeq++;
+    }
+
+
+    /**
+     * Called by the selector for each channel that's ready.
+     */
+    private void ready( final SelectionKey _key ) {
+
+        try {
+            if( !_key.isValid() )
+                return;
+
+            // a new connection on the RX port, coming back around the loop...
+            if( _key.isAcceptable() ) {
+                SocketChannel echo = ((ServerSocketChannel) _key.channel()).accept();
+                if( isNotNull( echo ) ) {
+                    echo.configureBlocking( false );
+                    echo.register( selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect( PACKET_LENGTH * MAX_OUTSTANDING ) );
+                }
+            }
+
+            // our connection to the TX port is established...
+            else if( _key.isConnectable() ) {
+                client.finishConnect();
+                connected = true;
+                _key.interestOps( SelectionKey.OP_READ );
+            }
+
+            // echoes coming back to us...
+            else if( _key.channel() == client )
+                receive();
+
+            // packets arriving on the RX port (or room to finish echoing them), which we echo...
+            else
+                echo( _key );
+        }
+        catch( IOException _e ) {
+            if( _key.channel() == client )
+                fail( "lost connection to test port " + txPort );
+            else
+                close( _key.channel() );
+        }
+    }
+
+
+    /**
+     * Echoes whatever has arrived on the connection to our RX port with the specified key.  Each such connection has its own buffer (the key's
+     * attachment) holding whatever it couldn't echo yet; while that's not empty, we stop reading from the connection and wait until we can write
+     * to it instead, so that no part of an echo is ever lost (if the loop stays backed up, the prober will see the stall).
+     */
+    private void echo( final SelectionKey _key ) throws IOException {
+
+        SocketChannel channel = (SocketChannel) _key.channel();
+        ByteBuffer    pending = (ByteBuffer) _key.attachment();
+        if( _key.isReadable() && (channel.read( pending ) < 0) ) {
+            close( channel );
+            return;
+        }
+        pending.flip();
+        channel.write( pending );
+        pending.compact();
+        _key.interestOps( (pending.position() > 0) ? SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+    }
+
+
+    /**
+     * Reads the echoes that have come back to us, timing each one.
+     */
+    private void receive() throws IOException {
+
+        if( client.read( receiveBuffer ) < 0 ) {
+            fail( "test loop closed" );
+            return;
+        }
+        receiveBuffer.flip();
+        long now = System.nanoTime();
+        while( receiveBuffer.remaining() >= PACKET_LENGTH ) {
+            long seq  = receiveBuffer.getLong();
+            long sent = receiveBuffer.getLong();
+
+            // if it isn't the echo we're expecting next, something is badly wrong...
+            if( seq != oldestSeq ) {
+                receiveBuffer.clear();
+                fail( "echo out of sequence" );
+                return;
+            }
+            oldestSeq++;
+            synchronized( statistics ) {
+                statistics.recordLatency( TimeUnit.NANOSECONDS.toMicros( now - sent ) );
+            }
+            echoes++;
+            if( !live )
+                LOGGER.fine( "Tunnel to " + name + " is carrying data" );
+            live = true;
+        }
+        receiveBuffer.compact();
+    }
+
+
+    /**
+     * Something went wrong with the test loop: count the outstanding packets as lost, mark the tunnel as not live, and close our connection.
+     */
+    private void fail( final String _why ) {
+
+        synchronized( statistics ) {
+            for( long seq = oldestSeq; seq < nextSeq; seq++ ) {
+                statistics.recordLoss();
+            }
+        }
+        oldestSeq = nextSeq;
+        if( live )
+            LOGGER.info( "Tunnel to " + name + " is not carrying data (" + _why + "); " + this );
+        live = false;
+
+        receiveBuffer.clear();
+        if( isNotNull( client ) )
+            close( client );
+        client    = null;
+        connected = false;
+    }
+
+
+    private void close( final Channel _channel ) {
+        try {
+            _channel.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.FINE, "Problem closing tunnel test channel for " + name, _e );
+        }
+    }
+
+
+    public String toString() {
+        synchronized( statistics ) {
+            return "tunnel probes: " + statistics;
+        }
+    }
+}